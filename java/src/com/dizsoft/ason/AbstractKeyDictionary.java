@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.util.AbstractMap;
+
+/**
+ * Base of key dictionaries, maps key names to key ids and back.
+ * KeyDictionary is the dictionary of a single tree, ConcurrentKeyDictionary is shared between threads.
+ * The Map view is kept for compatibility, its entries can not be modified through entrySet().
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public abstract class AbstractKeyDictionary extends AbstractMap<String,Integer> {
+
+    /**
+     * get the id of key name.
+     * @param name key name
+     * @return id, 0 if not found.
+     */
+    public abstract int getId(String name);
+
+    /**
+     * get the key name of id.
+     * @param id key id
+     * @return name, null if not found.
+     */
+    public abstract String getName(int id);
+
+    /**
+     * get the id of key name, a new id is assigned if not found.
+     * @param name key name
+     * @return id
+     */
+    public abstract int add(String name);
+
+    /**
+     * get the largest id in this dictionary.
+     * @return largest id, 0 if empty.
+     */
+    public abstract int getMaxId();
+
+    /**
+     * add a key with given id.
+     * @param name key name
+     * @param id key id
+     * @return id of name before, null if it is new.
+     */
+    @Override
+    public abstract Integer put(String name, Integer id);
+}
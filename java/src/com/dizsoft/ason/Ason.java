@@ -26,21 +26,35 @@
 package com.dizsoft.ason;
 
 import com.dizsoft.ason.parser.AsonParser;
+import com.dizsoft.ason.parser.AsonReader;
 import com.dizsoft.ason.parser.JsonParser;
+import com.dizsoft.ason.parser.ObjectParser;
 import com.dizsoft.ason.serializer.AsonSerializer;
+import com.dizsoft.ason.serializer.AsonWriter;
 import com.dizsoft.ason.serializer.JsonSerializer;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import com.dizsoft.ason.serializer.ObjectSerializer;
+import com.dizsoft.ason.io.StreamInput;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Ason Helper class for create, parse and serialize.
- * Your will need fastjson-1.2.4.jar if you need json parse,serialize support.
  * @author DizSoft Inc. jwang@dizsoft.com
  */
 public class Ason {
@@ -70,12 +84,32 @@ public class Ason {
     public static final int FLAG_DICTHEAD      = 0x04;
     /**
      * output ason without dictionary.
+     * for documents created on a SharedDictionary the header carries its hash id.
      */
     public static final int FLAG_DICTNONE      = 0x08;
     /**
      * output ason with bigid.
      */
     public static final int FLAG_FORCEBIGID    = 0x02;
+    /**
+     * output arrays element by element, for readers without packed array support.
+     * number arrays are packed by default.
+     */
+    public static final int FLAG_NOPACKEDARRAY = 0x10;
+    /**
+     * output arrays of objects sharing their keys column by column.
+     */
+    public static final int FLAG_COLUMNAR      = 0x20;
+    /**
+     * output key ids, dictionary ids, lengths and counts as varints, FLAG_FORCEBIGID is ignored.
+     * keys are numbered by frequency unless ids have to match the reader's dictionary (FLAG_DICTNONE or session).
+     */
+    public static final int FLAG_VARINT        = 0x40;
+    /**
+     * append an index table after the document, for AsonLazyValue to reach any value without scanning its siblings.
+     * implies FLAG_DICTHEAD unless FLAG_DICTNONE, FLAG_COLUMNAR is ignored. the other readers skip the table.
+     */
+    public static final int FLAG_INDEX         = 0x100;
     
     /**
      * output json with pretty format.
@@ -94,7 +128,7 @@ public class Ason {
     
     /**
      * Create a new unordered Root object type AsonValue with dict map
-     * @param dictMap the dict map,can be null
+     * @param dictMap the dict map,can be null. a KeyDictionary or ConcurrentKeyDictionary is shared, other maps are copied.
      * @return created AsonValue of object type
      */
     public static AsonValue CreateRootObject(Map<String,Integer> dictMap) {
@@ -102,7 +136,7 @@ public class Ason {
     }
     /**
      * Create a new ordered/unordered Root object type AsonValue with dict map
-     * @param dictMap the dict map,can be null
+     * @param dictMap the dict map,can be null. a KeyDictionary or ConcurrentKeyDictionary is shared, other maps are copied.
      * @param ordered ordered/unordered
      * @return created AsonValue of object type
      */
@@ -111,7 +145,7 @@ public class Ason {
     }
     /**
      * Create a new ordered/unordered Root object type AsonValue with dict map and init capacity
-     * @param dictMap the dict map,can be null
+     * @param dictMap the dict map,can be null. a KeyDictionary or ConcurrentKeyDictionary is shared, other maps are copied.
      * @param ordered ordered/unordered
      * @param initCapacity init capacity
      * @return created AsonValue of object type
@@ -134,7 +168,7 @@ public class Ason {
     }
     /**
      * Create a new Root array type AsonValue with dict map
-     * @param dictMap the dict map,can be null
+     * @param dictMap the dict map,can be null. a KeyDictionary or ConcurrentKeyDictionary is shared, other maps are copied.
      * @return created AsonValue of array type
      */
     public static AsonValue CreateRootArray(Map<String,Integer> dictMap) {
@@ -142,7 +176,7 @@ public class Ason {
     }
     /**
      * Create a new Root array type AsonValue with dict map
-     * @param dictMap the dict map,can be null
+     * @param dictMap the dict map,can be null. a KeyDictionary or ConcurrentKeyDictionary is shared, other maps are copied.
      * @param initCapacity
      * @return created AsonValue of array type
      */
@@ -150,24 +184,48 @@ public class Ason {
         return new AsonValue(dictMap, new ArrayList<AsonValue>(initCapacity));
     }
 
+    /**
+     * Register a pre-shared dictionary, for messages written with FLAG_DICTNONE to carry only its hash id.
+     * both sides must register the same entries.
+     * @param dictMap name to id map
+     * @return registered dictionary, use it to create documents.
+     */
+    public static SharedDictionary RegisterDictionary(Map<String,Integer> dictMap) {
+        return SharedDictionary.register(new SharedDictionary(dictMap));
+    }
+    /**
+     * Find a registered pre-shared dictionary.
+     * @param hashId hash id of dictionary
+     * @return dictionary, null if not registered.
+     */
+    public static SharedDictionary GetDictionary(int hashId) {
+        return SharedDictionary.lookup(hashId);
+    }
+
+    /**
+     * Register a schema for schema positional messages, see AsonSchema. both sides must register the same schema.
+     * @param schema schema
+     * @return registered schema, use its dictionary to create documents.
+     */
+    public static AsonSchema RegisterSchema(AsonSchema schema) {
+        return AsonSchema.register(schema);
+    }
+
     /**
      * Create AsonValue from inputstream
+     * ason data is read exactly, the stream is left at the byte after the document so consecutive
+     * documents can be read from one stream. json data is read to the end of the stream.
+     * to parse many documents faster, reuse one StreamInput with AsonParser, or use AsonReader/AsonPushParser.
      * @param inputStream inputstream of ason/json data
      * @return AsonValue created
      * @throws java.io.IOException 
      */
     public static AsonValue CreateFrom(InputStream inputStream) throws java.io.IOException {
-        class MIS extends InputStream {
-            InputStream is;
-            int firstByte;
-            boolean firstRead = true;
-            MIS(InputStream is) throws java.io.IOException { this.is = is; firstByte=is.read(); }
-            @Override
-            public int read() throws IOException { if(firstRead){firstRead=false;return firstByte;} return is.read(); }
-            public byte getFirstByte() { return (byte)(firstByte&0xFF); }
-        }
-        MIS is = new MIS(inputStream);
-        if((is.getFirstByte()&0x80)!=0) return new AsonParser().parse(is);
+        PushbackInputStream is = new PushbackInputStream(inputStream, 1);
+        int firstByte = is.read();
+        if(firstByte<0) throw new EOFException();
+        is.unread(firstByte);
+        if((firstByte&0x80)!=0) return new AsonParser().parse(new StreamInput(is, StreamInput.DEFAULT_BUFFER_SIZE, true));
         return new JsonParser().parse(is);
     }
     /**
@@ -177,8 +235,81 @@ public class Ason {
      * @throws java.io.IOException 
      */
     public static AsonValue CreateFrom(byte data[]) throws java.io.IOException {
-        if((data[0]&0x80)!=0) return new AsonParser().parse(new ByteArrayInputStream(data));
-        return new JsonParser().parse(new String(data,"UTF-8"));
+        if((data[0]&0x80)!=0) return new AsonParser().parse(data);
+        return new JsonParser().parse(data);
+    }
+    /**
+     * Create AsonValue from ByteBuffer of ason data, between its position and limit.
+     * heap buffers are parsed in place, direct buffers are copied in chunks.
+     * @param buffer ByteBuffer of ason data
+     * @return AsonValue created
+     * @throws java.io.IOException 
+     */
+    public static AsonValue CreateFrom(ByteBuffer buffer) throws java.io.IOException {
+        return new AsonParser().parse(buffer);
+    }
+    /**
+     * Create AsonValue from byte array of ason/json data, the children of large struct mode containers
+     * are decoded in parallel. see AsonParser.parse(ByteBuffer,ForkJoinPool)
+     * @param data byte array of ason/json data, json is parsed in the calling thread.
+     * @param pool pool running the tasks, e.g. ForkJoinPool.commonPool()
+     * @return AsonValue created
+     * @throws java.io.IOException 
+     */
+    public static AsonValue CreateFrom(byte data[],ForkJoinPool pool) throws java.io.IOException {
+        if((data[0]&0x80)!=0) return new AsonParser().parse(ByteBuffer.wrap(data), pool);
+        return new JsonParser().parse(data);
+    }
+    /**
+     * Create AsonValue from ByteBuffer (or MappedByteBuffer) of ason data, the children of large struct mode
+     * containers are decoded in parallel. see AsonParser.parse(ByteBuffer,ForkJoinPool)
+     * @param buffer ByteBuffer of ason data
+     * @param pool pool running the tasks, e.g. ForkJoinPool.commonPool()
+     * @return AsonValue created
+     * @throws java.io.IOException 
+     */
+    public static AsonValue CreateFrom(ByteBuffer buffer,ForkJoinPool pool) throws java.io.IOException {
+        return new AsonParser().parse(buffer, pool);
+    }
+    /**
+     * Create java object from ason data without building AsonValue tree. see ObjectParser
+     * @param data byte array of ason data
+     * @param type class of the object
+     * @return object created, null for ason null.
+     * @throws java.io.IOException 
+     */
+    public static <T> T CreateObject(byte data[],Class<T> type) throws java.io.IOException {
+        return new ObjectParser().parse(data, type);
+    }
+    /**
+     * Create java object from inputstream of ason data without building AsonValue tree. see ObjectParser
+     * @param inputStream inputstream of ason data
+     * @param type class of the object
+     * @return object created, null for ason null.
+     * @throws java.io.IOException 
+     */
+    public static <T> T CreateObject(InputStream inputStream,Class<T> type) throws java.io.IOException {
+        return new ObjectParser().parse(inputStream, type);
+    }
+    /**
+     * Create read-only lazy view of ason data in ByteBuffer, nodes are decoded only when accessed.
+     * best used with struct mode data.
+     * @param buffer ByteBuffer of ason data
+     * @return lazy root value
+     */
+    public static AsonLazyValue CreateLazyFrom(ByteBuffer buffer) {
+        return AsonLazyValue.wrap(buffer);
+    }
+    /**
+     * Create read-only lazy view of ason file, the file is memory mapped.
+     * @param file ason file
+     * @return lazy root value
+     * @throws java.io.IOException 
+     */
+    public static AsonLazyValue CreateLazyFrom(File file) throws java.io.IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return AsonLazyValue.wrap(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
     }
     /**
      * Serialize AsonValue to outputstream
@@ -188,18 +319,115 @@ public class Ason {
      * @throws java.io.IOException 
      */
     public static void Serialize(AsonValue obj,OutputStream os, int flag) throws java.io.IOException {
+        if((flag&FLAG_OUTPUTJSON)!=0) {
+            new JsonSerializer().serialize(obj, os, (flag&FLAG_JSONPRETTYFORMAT)==FLAG_JSONPRETTYFORMAT);
+            return;
+        }
         new AsonSerializer(flag).serialize(obj, os);
     }
     /**
-     * Serialize AsonValue to byte array.
+     * Serialize AsonValue to channel, through a pooled direct buffer.
+     * @param obj AsonValue to be serialized
+     * @param channel channel to be write to, must be in blocking mode.
+     * @param flag output flag. see Ason.FLAG_XXX
+     * @throws java.io.IOException 
+     */
+    public static void Serialize(AsonValue obj,WritableByteChannel channel, int flag) throws java.io.IOException {
+        if((flag&FLAG_OUTPUTJSON)!=0) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel), 8192);
+            new JsonSerializer().serialize(obj, os, (flag&FLAG_JSONPRETTYFORMAT)==FLAG_JSONPRETTYFORMAT);
+            os.flush();
+            return;
+        }
+        new AsonSerializer(flag).serialize(obj, channel);
+    }
+    /**
+     * Serialize AsonValue into buffer from its position.
      * @param obj AsonValue to be serialized
+     * @param buffer buffer to be write to, BufferOverflowException is thrown if it is too small.
      * @param flag output flag. see Ason.FLAG_XXX
+     * @throws java.io.IOException 
+     */
+    public static void Serialize(AsonValue obj,ByteBuffer buffer, int flag) throws java.io.IOException {
+        if((flag&FLAG_OUTPUTJSON)!=0) {
+            buffer.put(ToBytes(obj, flag));
+            return;
+        }
+        new AsonSerializer(flag).serialize(obj, buffer);
+    }
+    /**
+     * Serialize AsonValue to byte array.
+     * @param obj AsonValue to be serialized
+     * @param flag output flag of the low 8 bits, for the others like Ason.FLAG_INDEX use ToBytes(AsonValue,int).
      * @return byte array.
      * @throws java.io.IOException 
      */
     public static byte[] ToBytes(AsonValue obj,byte flag) throws java.io.IOException {
+        return ToBytes(obj, flag&0xFF);
+    }
+    /**
+     * Serialize AsonValue to byte array.
+     * @param obj AsonValue to be serialized
+     * @param flag output flag. see Ason.FLAG_XXX
+     * @return byte array.
+     * @throws java.io.IOException 
+     */
+    public static byte[] ToBytes(AsonValue obj,int flag) throws java.io.IOException {
+        if((flag&FLAG_OUTPUTJSON)!=0) {
+            return ToJsonString(obj, (flag&FLAG_JSONPRETTYFORMAT)==FLAG_JSONPRETTYFORMAT).getBytes(StandardCharsets.UTF_8);
+        }
         return new AsonSerializer(flag).serialize(obj);
     }
+    /**
+     * Serialize java object to byte array without building AsonValue tree. see ObjectSerializer
+     * @param obj object to be serialized
+     * @param flag Ason.FLAG_OUTPUTJSON, Ason.FLAG_FORCEBIGID or Ason.FLAG_VARINT, output is always stream mode with inline dictionary.
+     * @return byte array.
+     * @throws java.io.IOException 
+     */
+    public static byte[] ObjectToBytes(Object obj,int flag) throws java.io.IOException {
+        return new ObjectSerializer(flag).serialize(obj);
+    }
+    /**
+     * Create a streaming writer, for output without building AsonValue tree.
+     * @param os outputstream to be write to
+     * @param flag Ason.FLAG_OUTPUTJSON, Ason.FLAG_FORCEBIGID or Ason.FLAG_VARINT, output is always stream mode with inline dictionary.
+     * @return writer
+     */
+    public static AsonWriter CreateWriter(OutputStream os, int flag) {
+        return new AsonWriter(os, flag);
+    }
+    /**
+     * Convert json to ason or ason to json token by token, without building AsonValue tree.
+     * the input format is detected by its first byte, every root value of the input is written as one document.
+     * memory use does not depend on the input size, only on its longest string, the keys of a document
+     * and the encoded size of its largest columnar table, which is kept while its rows are read.
+     * @param is inputstream of ason/json data
+     * @param os outputstream to be write to, it is flushed but not closed.
+     * @param flag Ason.FLAG_OUTPUTJSON for json, else stream mode ason with inline dictionary. Ason.FLAG_FORCEBIGID and Ason.FLAG_VARINT are honored.
+     * @return count of documents converted.
+     * @throws java.io.IOException 
+     */
+    public static long Transcode(InputStream is, OutputStream os, int flag) throws java.io.IOException {
+        PushbackInputStream pis = new PushbackInputStream(is, 1);
+        AsonWriter w = new AsonWriter(os, flag);
+        long n = 0;
+        int firstByte = pis.read();
+        if(firstByte>=0) {
+            pis.unread(firstByte);
+            if((firstByte&0x80)!=0) {
+                StreamInput in = new StreamInput(pis);
+                while(in.peek()>=0) {
+                    new AsonReader(in).copyValue(w);
+                    ++n;
+                }
+            } else {
+                n = new JsonParser().parse(pis, w);
+            }
+        }
+        w.flush();
+        return n;
+    }
     /**
      * Serialize AsonValue to json string.
      * @param obj AsonValue to be serialized
@@ -209,6 +437,16 @@ public class Ason {
     public static String ToJsonString(AsonValue obj,boolean format) {
         return new JsonSerializer().serialize(obj,format);
     }
+    /**
+     * Serialize AsonValue as json to writer.
+     * @param obj AsonValue to be serialized
+     * @param writer writer to be write to, it is not flushed.
+     * @param format write formated json or not.
+     * @throws java.io.IOException 
+     */
+    public static void ToJson(AsonValue obj,Writer writer,boolean format) throws java.io.IOException {
+        new JsonSerializer().serialize(obj,writer,format);
+    }
     
     public static void main(String[] args) throws Exception {
 //        AsonValue v = CreateFrom(new java.io.FileInputStream("/Users/jwang/Desktop/ason_test/widget.json"));
@@ -0,0 +1,822 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import com.dizsoft.ason.io.ByteBufferInput;
+import com.dizsoft.ason.parser.AsonParser;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only lazy view of ason data in a ByteBuffer (or MappedByteBuffer).
+ * Children of a container are located only when the container is first accessed,
+ * untouched subtrees are skipped by their length in struct mode.
+ * Stream mode data works too, but skipping a stream mode container needs to scan it.
+ * Key names are resolved through the head dictionary, inline dictionary entries are picked up
+ * while scanning; looking up an unknown key name scans the remaining data once.
+ * Data written with Ason.FLAG_INDEX is not scanned at all, children are found through its index table.
+ * Not thread safe.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class AsonLazyValue implements Iterable<AsonLazyValue> {
+    private final Document doc;
+    private final int offset;
+    private final byte type;
+
+    private int count = -1;
+    private int childOffsets[];
+    private int childKeys[];
+    private AsonLazyValue children[];
+    private int tableKeys[]; // key and column offsets of a columnar table
+    private int columnOffsets[];
+    private int dir = -1; // directory in the index table, -1 if none
+    private int childDirs[];
+
+    private AsonLazyValue(Document doc, int offset) {
+        this.doc = doc;
+        this.offset = offset;
+        this.type = doc.buf.get(offset);
+    }
+
+    /**
+     * element of a packed array, the value is at offset+1 without type byte.
+     */
+    private AsonLazyValue(Document doc, int offset, byte type) {
+        this.doc = doc;
+        this.offset = offset;
+        this.type = type;
+    }
+
+    /**
+     * container not in the data, a row or column of a table, or null.
+     */
+    private AsonLazyValue(Document doc, byte type, int keys[], AsonLazyValue children[], int count) {
+        this(doc, -1, type);
+        this.childKeys = keys;
+        this.children = children;
+        this.count = count;
+    }
+
+    /**
+     * Create lazy view of the ason data between position and limit of buffer.
+     * @param buffer ason data, the buffer itself is not modified.
+     * @return root value
+     */
+    public static AsonLazyValue wrap(ByteBuffer buffer) {
+        ByteBuffer buf = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        long hdr = buf.getInt(0)&0xFFFFFFFFL;
+        if((hdr&AsonParser.FLAG_ASON)==0) throw new IllegalArgumentException("not ason data.");
+        Document doc = new Document(buf, (hdr&AsonParser.FLAG_BIGID)!=0, (hdr&AsonParser.FLAG_VARINT)!=0);
+        int p = 4;
+        if((hdr&AsonParser.FLAG_SHAREDDICT)!=0) {
+            if((hdr&AsonParser.FLAG_SCHEMA)!=0) throw new IllegalArgumentException("schema message, it can only be read by AsonParser.");
+            doc.dictMap = SharedDictionary.lookup((int)hdr);
+            if(doc.dictMap==null) throw new IllegalArgumentException("unknown shared dictionary: 0x"+Integer.toHexString((int)hdr&SharedDictionary.HASHID_MASK));
+            doc.dictComplete = true;
+            hdr = 0;
+        }
+        int end = 4+(int)(hdr&AsonParser.DICT_SIZE_MASK);
+        while(p<end) {
+            int id = doc.varint?doc.varint(p):doc.id(p);
+            p = doc.skipField(p, doc.idSize);
+            int len = buf.get(p)&0xFF;
+            doc.dictMap.put(doc.string(p+1, len), id);
+            p += 1+len;
+        }
+        doc.rootOffset = end;
+        AsonLazyValue root = new AsonLazyValue(doc, end);
+        if((buf.getInt(0)&AsonParser.FLAG_INDEX)!=0) {
+            int lim = buf.limit();
+            if(lim-end<16 || buf.getInt(lim-4)!=AsonParser.INDEX_MAGIC) throw new IllegalArgumentException("invalid index table.");
+            long entries = buf.getInt(lim-12)&0xFFFFFFFFL;
+            long dirs = buf.getInt(lim-8)&0xFFFFFFFFL;
+            if(entries*12+dirs*8>lim-end-16) throw new IllegalArgumentException("invalid index table.");
+            doc.dirs = lim-12-(int)dirs*8;
+            doc.entries = doc.dirs-(int)entries*12;
+            if(buf.getInt(doc.entries-4)!=entries*12+dirs*8+12) throw new IllegalArgumentException("invalid index table.");
+            doc.dictComplete = true; // FLAG_INDEX writes all names in the head
+            if(dirs>0) root.dir = 0;
+        }
+        return root;
+    }
+
+    /**
+     * get the dictionary map, only contains the keys found so far.
+     * @return Dictionary map.
+     */
+    public AbstractKeyDictionary getDictMap() {
+        return doc.dictMap;
+    }
+
+    /**
+     * get the type of this node.
+     * @return type. see AsonValue.TYPE_XXX
+     */
+    public byte getType() {
+        if((type&0xF0)==0xA0 || (type&0xF0)==0xD0 || (type&0xF0)==0xE0 || (type&0xF0)==0xF0) {
+            return (byte)(type&0xF0);
+        }
+        if(isPacked() || isTable()) return AsonValue.TYPE_ARRAY;
+        return type;
+    }
+
+    public boolean isObject() {
+        return (type&0xF0)==0xF0;
+    }
+
+    public boolean isArray() {
+        return (type&0xF0)==0xE0 || isPacked() || isTable();
+    }
+
+    private boolean isPacked() {
+        return (type&0xF0)==0xB0;
+    }
+
+    private boolean isTable() {
+        return (type&0xF0)==0xC0;
+    }
+
+    public boolean isNull() {
+        return type==AsonValue.TYPE_NULL;
+    }
+
+    /**
+     * Get thet size of this node.
+     * @return child count if this node is array or object type. length if this node is byte[] or String.
+     */
+    public int size() {
+        if(dir>=0) return doc.dirSize(dir);
+        if(isObject() || isArray()) {
+            index();
+            return count;
+        }
+        Object v = getValue();
+        if(v instanceof byte[]) return ((byte[])v).length;
+        if(v instanceof String) return ((String)v).length();
+        return 0;
+    }
+
+    /**
+     * Get child node. this node must be array or object type.
+     * @param id key id if this nod is object or index if this node is array.
+     * @return child node if found. or null.
+     */
+    public AsonLazyValue get(int id) {
+        if(dir>=0) {
+            int first = doc.dirFirst(dir);
+            int n = doc.dirSize(dir);
+            if(isArray()) return id>=0 && id<n?entry(first+id):null;
+            int lo = 0, hi = n-1;
+            while(lo<=hi) {
+                int mid = (lo+hi)>>>1;
+                int k = doc.entryKey(first+mid);
+                if(k<id) lo = mid+1;
+                else if(k>id) hi = mid-1;
+                else return entry(first+mid);
+            }
+            return null;
+        }
+        if(isArray()) {
+            index();
+            return id>=0 && id<count?child(id):null;
+        } else if(isObject()) {
+            index();
+            for(int i=0;i<count;++i) {
+                if(childKeys[i]==id) return child(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get child node by key name. this node must be object type.
+     * @param key key name
+     * @return child node if found. or null.
+     */
+    public AsonLazyValue get(String key) {
+        if(!isObject()) return null;
+        if(dir<0) index();
+        Integer id = doc.dictMap.get(key);
+        if(id==null) {
+            doc.scanAll();
+            id = doc.dictMap.get(key);
+            if(id==null) return null;
+        }
+        return get(id);
+    }
+
+    /**
+     * Get a descendant node by path, e.g. "features[120334].properties.BLKLOT".
+     * a segment is a key name or [index], a key name of digits also indexes an array.
+     * with Ason.FLAG_INDEX data every step is a lookup in the index table.
+     * @param path dot separated key names and [index]
+     * @return node if found. or null.
+     */
+    public AsonLazyValue select(String path) {
+        AsonLazyValue v = this;
+        int p = 0;
+        int n = path.length();
+        while(v!=null && p<n) {
+            char c = path.charAt(p);
+            if(c=='.') {
+                ++p;
+            } else if(c=='[') {
+                int e = path.indexOf(']', p);
+                if(e<0) throw new IllegalArgumentException("invalid path: "+path);
+                v = v.isArray()?v.get(Integer.parseInt(path.substring(p+1, e))):null;
+                p = e+1;
+            } else {
+                int e = p;
+                while(e<n && path.charAt(e)!='.' && path.charAt(e)!='[') ++e;
+                String seg = path.substring(p, e);
+                if(v.isArray()) {
+                    try {
+                        v = v.get(Integer.parseInt(seg));
+                    } catch(NumberFormatException ex) {
+                        v = null;
+                    }
+                } else {
+                    v = v.get(seg);
+                }
+                p = e;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Get the values of one key of all rows. this node must be an array of objects.
+     * for a columnar table only that column is read.
+     * @param id key id
+     * @return array node of one value per row, rows without the key give null nodes. null if this node is not array.
+     */
+    public AsonLazyValue getColumn(int id) {
+        if(!isArray()) return null;
+        AsonLazyValue col[];
+        if(isTable()) {
+            tableIndex();
+            int k = 0;
+            while(k<tableKeys.length && tableKeys[k]!=id) ++k;
+            if(k<tableKeys.length) {
+                col = column(k);
+            } else {
+                col = new AsonLazyValue[doc.len(offset+1, type&0x0F)];
+            }
+        } else {
+            index();
+            col = new AsonLazyValue[count];
+            for(int i=0;i<count;++i) {
+                AsonLazyValue row = child(i);
+                col[i] = row.isObject()?row.get(id):null;
+            }
+        }
+        for(int i=0;i<col.length;++i) {
+            if(col[i]==null) col[i] = new AsonLazyValue(doc, AsonValue.TYPE_NULL, null, null, 0);
+        }
+        return new AsonLazyValue(doc, AsonValue.TYPE_ARRAY, null, col, col.length);
+    }
+
+    /**
+     * Get the values of one key of all rows. this node must be an array of objects.
+     * @param key key name
+     * @return array node of one value per row, rows without the key give null nodes. null if this node is not array.
+     */
+    public AsonLazyValue getColumn(String key) {
+        if(!isArray()) return null;
+        if(isTable()) tableIndex();
+        Integer id = doc.dictMap.get(key);
+        if(id==null) {
+            doc.scanAll();
+            id = doc.dictMap.get(key);
+        }
+        return getColumn(id==null?0:id);
+    }
+
+    /**
+     * Get the key iterator of this node. this node must be object type.
+     * @return
+     */
+    public Iterator<Integer> keyIterator() {
+        if(!isObject()) return null;
+        index();
+        return new Iterator<Integer>() {
+            int i = 0;
+            @Override
+            public boolean hasNext() { return i<count; }
+            @Override
+            public Integer next() {
+                if(i>=count) throw new NoSuchElementException();
+                return childKeys[i++];
+            }
+            @Override
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    /**
+     * Get the value iterator of this node. this node must be object or array type.
+     * @return
+     */
+    @Override
+    public Iterator<AsonLazyValue> iterator() {
+        if(!isObject() && !isArray()) return null;
+        index();
+        return new Iterator<AsonLazyValue>() {
+            int i = 0;
+            @Override
+            public boolean hasNext() { return i<count; }
+            @Override
+            public AsonLazyValue next() {
+                if(i>=count) throw new NoSuchElementException();
+                return child(i++);
+            }
+            @Override
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    /**
+     * get the data of this node. containers are returned as materialized AsonValue.
+     * @return byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,AsonValue or null.
+     */
+    public Object getValue() {
+        ByteBuffer buf = doc.buf;
+        int p = offset+1;
+        switch(type) {
+            case AsonValue.TYPE_TRUE: return Boolean.TRUE;
+            case AsonValue.TYPE_FALSE: return Boolean.FALSE;
+            case AsonValue.TYPE_INT8: return buf.get(p);
+            case AsonValue.TYPE_INT16: return buf.getShort(p);
+            case AsonValue.TYPE_INT32: return buf.getInt(p);
+            case AsonValue.TYPE_INT64: return buf.getLong(p);
+            case AsonValue.TYPE_FLOAT: return buf.getFloat(p);
+            case AsonValue.TYPE_DOUBLE: return buf.getDouble(p);
+            case AsonValue.TYPE_STRING: {
+                int e = p;
+                while(buf.get(e)!=0) ++e;
+                return doc.string(p, e-p);
+            }
+            case AsonParser.TYPE_STRING1:
+            case AsonParser.TYPE_STRING2:
+            case AsonParser.TYPE_STRING4: {
+                int sl = type-AsonValue.TYPE_STRING;
+                return doc.string(doc.skipField(p, sl), doc.len(p, sl));
+            }
+            case AsonParser.TYPE_BYTES1:
+            case AsonParser.TYPE_BYTES2:
+            case AsonParser.TYPE_BYTES4: {
+                int sl = type-AsonValue.TYPE_BYTES;
+                return doc.bytes(doc.skipField(p, sl), doc.len(p, sl));
+            }
+            case AsonValue.TYPE_BYTES: {
+                int n = 0;
+                int e = p;
+                int l;
+                while((l = buf.get(e)&0xFF)!=0) { n += l; e += 1+l; }
+                byte ret[] = new byte[n];
+                n = 0;
+                while((l = buf.get(p)&0xFF)!=0) {
+                    doc.copy(p+1, ret, n, l);
+                    n += l;
+                    p += 1+l;
+                }
+                return ret;
+            }
+        }
+        if(isObject() || isArray()) return toAsonValue();
+        return null;
+    }
+
+    public Long asInteger64() {
+        Object v = getValue();
+        if(v instanceof Number) return ((Number)v).longValue();
+        if(v instanceof Boolean) return (Boolean)v?1L:0L;
+        return null;
+    }
+
+    public Integer asInteger() {
+        Long l = asInteger64();
+        return l!=null && l<=Integer.MAX_VALUE?l.intValue():null;
+    }
+
+    public Double asDouble() {
+        Object v = getValue();
+        if(v instanceof Number) return ((Number)v).doubleValue();
+        if(v instanceof Boolean) return (Boolean)v?1.0:0.0;
+        return null;
+    }
+
+    public String asString() {
+        Object v = getValue();
+        if(v instanceof String || v instanceof Number || v instanceof Boolean) return v.toString();
+        return null;
+    }
+
+    /**
+     * Materialize this node and its subtree as AsonValue.
+     * @return root AsonValue sharing the dictionary map of this view.
+     */
+    public AsonValue toAsonValue() {
+        doc.scanAll();
+        if(doc.root==null) doc.root = Ason.CreateRootObject(doc.dictMap);
+        AsonValue ret = Ason.CreateRootObject(doc.dictMap);
+        ret.setValue(materialize());
+        return ret;
+    }
+
+    private AsonValue materialize() {
+        if(isPacked()) {
+            ByteBuffer b = doc.buf.duplicate();
+            b.position(doc.skipField(offset+2, type&0x0F));
+            try {
+                return new AsonValue(doc.root, AsonParser.readPacked(new ByteBufferInput(b), doc.buf.get(offset+1), doc.len(offset+2, type&0x0F)));
+            } catch(IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        } else if(isArray()) {
+            index();
+            AsonValue.AsonArray l = new AsonValue.AsonArray(count);
+            for(int i=0;i<count;++i) l.add(child(i).materialize());
+            return new AsonValue(doc.root, l);
+        } else if(isObject()) {
+            index();
+            AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered(count);
+            for(int i=0;i<count;++i) m.put(childKeys[i], child(i).materialize());
+            return new AsonValue(doc.root, m);
+        }
+        return new AsonValue(doc.root, getValue());
+    }
+
+    private AsonLazyValue child(int i) {
+        if(children[i]==null) {
+            if(isPacked()) {
+                byte et = doc.buf.get(offset+1);
+                children[i] = new AsonLazyValue(doc, doc.skipField(offset+2, type&0x0F)-1+i*AsonParser.packedWidth(et), et);
+            } else {
+                children[i] = new AsonLazyValue(doc, childOffsets[i]);
+                if(childDirs!=null) children[i].dir = childDirs[i];
+            }
+        }
+        return children[i];
+    }
+
+    /**
+     * child at entry e of the index table.
+     */
+    private AsonLazyValue entry(int e) {
+        AsonLazyValue ret = new AsonLazyValue(doc, offset+doc.entryOffset(e));
+        ret.dir = doc.entryDir(e);
+        return ret;
+    }
+
+    private void index() {
+        if(count>=0) return;
+        if(isPacked()) {
+            int n = doc.len(offset+2, type&0x0F);
+            children = new AsonLazyValue[n];
+            count = n;
+            return;
+        }
+        if(isTable()) {
+            tableIndex();
+            int rows = doc.len(offset+1, type&0x0F);
+            int nk = tableKeys.length;
+            AsonLazyValue cols[][] = new AsonLazyValue[nk][];
+            for(int k=0;k<nk;++k) cols[k] = column(k);
+            AsonLazyValue rs[] = new AsonLazyValue[rows];
+            for(int i=0;i<rows;++i) {
+                int n = 0;
+                for(int k=0;k<nk;++k) {
+                    if(cols[k][i]!=null) ++n;
+                }
+                int keys[] = new int[n];
+                AsonLazyValue vs[] = new AsonLazyValue[n];
+                n = 0;
+                for(int k=0;k<nk;++k) {
+                    if(cols[k][i]==null) continue;
+                    keys[n] = tableKeys[k];
+                    vs[n++] = cols[k][i];
+                }
+                rs[i] = new AsonLazyValue(doc, AsonValue.TYPE_OBJECT, keys, vs, n);
+            }
+            children = rs;
+            count = rows;
+            return;
+        }
+        if(dir>=0) {
+            int first = doc.dirFirst(dir);
+            int n = doc.dirSize(dir);
+            long order[] = new long[n]; // object entries are sorted by key, children are listed in data order
+            for(int i=0;i<n;++i) order[i] = ((long)doc.entryOffset(first+i)<<32)|i;
+            if(isObject()) Arrays.sort(order);
+            int offs[] = new int[n];
+            int keys[] = isObject()?new int[n]:null;
+            int dirs[] = new int[n];
+            for(int i=0;i<n;++i) {
+                int e = first+(int)order[i];
+                offs[i] = offset+doc.entryOffset(e);
+                if(keys!=null) keys[i] = doc.entryKey(e);
+                dirs[i] = doc.entryDir(e);
+            }
+            childOffsets = offs;
+            childKeys = keys;
+            childDirs = dirs;
+            children = new AsonLazyValue[n];
+            count = n;
+            return;
+        }
+        int offs[] = new int[8];
+        int keys[] = isObject()?new int[8]:null;
+        int n = 0;
+        int p = offset+1;
+        int end = -1;
+        if(type!=AsonValue.TYPE_ARRAY && type!=AsonValue.TYPE_OBJECT) {
+            int sl = type&0x0F;
+            int q = doc.skipField(p, sl);
+            end = q+doc.len(p, sl);
+            p = q;
+        }
+        for(;;) {
+            if(end>=0 && p>=end) break;
+            int key = 0;
+            if(keys!=null) {
+                key = doc.id(p);
+                p = doc.skipId(p);
+                if(end<0 && key==0) break;
+            } else if(end<0 && doc.buf.get(p)==0) {
+                break;
+            }
+            if(n==offs.length) {
+                offs = Arrays.copyOf(offs, n*2);
+                if(keys!=null) keys = Arrays.copyOf(keys, n*2);
+            }
+            offs[n] = p;
+            if(keys!=null) keys[n] = key;
+            ++n;
+            p = doc.skip(p, false);
+        }
+        childOffsets = offs;
+        childKeys = keys;
+        children = new AsonLazyValue[n];
+        count = n;
+    }
+
+    /**
+     * read keys and column offsets of this table.
+     */
+    private void tableIndex() {
+        if(tableKeys!=null) return;
+        int sl = type&0x0F;
+        int rows = doc.len(offset+1, sl);
+        int p = doc.skipField(offset+1, sl);
+        int nk = doc.len(p, sl);
+        p = doc.skipField(p, sl);
+        int keys[] = new int[nk];
+        int offs[] = new int[nk];
+        for(int k=0;k<nk;++k) {
+            keys[k] = doc.id(p);
+            p = doc.skipId(p);
+        }
+        for(int k=0;k<nk;++k) {
+            offs[k] = p;
+            p = doc.skipColumn(p, rows, false);
+        }
+        columnOffsets = offs;
+        tableKeys = keys;
+    }
+
+    /**
+     * values of column k of this table by row, null for rows without the key.
+     */
+    private AsonLazyValue[] column(int k) {
+        int rows = doc.len(offset+1, type&0x0F);
+        int p = columnOffsets[k];
+        int flags = doc.buf.get(p++);
+        int absent = -1;
+        int nulls = -1;
+        if((flags&AsonParser.TABLE_ABSENT)!=0) {
+            absent = p;
+            p += (rows+7)>>3;
+        }
+        if((flags&AsonParser.TABLE_NULL)!=0) {
+            nulls = p;
+            p += (rows+7)>>3;
+        }
+        AsonLazyValue vals = new AsonLazyValue(doc, p);
+        vals.index();
+        AsonLazyValue ret[] = new AsonLazyValue[rows];
+        int j = 0;
+        for(int i=0;i<rows;++i) {
+            if(absent>=0 && (doc.buf.get(absent+(i>>3))&(1<<(i&7)))!=0) continue;
+            if(nulls>=0 && (doc.buf.get(nulls+(i>>3))&(1<<(i&7)))!=0) {
+                ret[i] = new AsonLazyValue(doc, AsonValue.TYPE_NULL, null, null, 0);
+            } else {
+                if(j>=vals.count) throw new IllegalStateException("invalid table column");
+                ret[i] = vals.child(j++);
+            }
+        }
+        return ret;
+    }
+
+    private static final class Document {
+        final ByteBuffer buf;
+        final boolean bigId;
+        final boolean varint;
+        final int idSize;
+        KeyDictionary dictMap = new KeyDictionary();
+        AsonValue root;
+        int rootOffset;
+        boolean dictComplete;
+        int entries = -1; // offsets of the index table
+        int dirs = -1;
+
+        Document(ByteBuffer buf, boolean bigId, boolean varint) {
+            this.buf = buf;
+            this.bigId = bigId;
+            this.varint = varint;
+            this.idSize = bigId?4:2;
+        }
+
+        int dirFirst(int d) { return buf.getInt(dirs+d*8); }
+        int dirSize(int d) { return buf.getInt(dirs+d*8+4); }
+        int entryKey(int e) { return buf.getInt(entries+e*12); }
+        int entryOffset(int e) { return buf.getInt(entries+e*12+4); }
+        int entryDir(int e) { return buf.getInt(entries+e*12+8); }
+
+        int id(int p) {
+            if(varint) return varint(p)>>>1;
+            return bigId?buf.getInt(p)&0x7FFFFFFF:buf.getShort(p)&0x7FFF;
+        }
+
+        int skipId(int p) {
+            boolean inline = varint?(buf.get(p)&1)!=0:(bigId?buf.getInt(p)<0:buf.getShort(p)<0);
+            int q = skipField(p, idSize);
+            if(!inline) return q;
+            int len = buf.get(q)&0xFF;
+            dictMap.put(string(q+1, len), id(p));
+            return q+1+len;
+        }
+
+        int varint(int p) {
+            int v = 0;
+            for(int shift=0;shift<35;shift+=7) {
+                int b = buf.get(p++);
+                v |= (b&0x7F)<<shift;
+                if(b>=0) return v;
+            }
+            throw new IllegalStateException("invalid varint");
+        }
+
+        /**
+         * @param size bytes of the field when it is not a varint
+         * @return offset after the id or length field at p.
+         */
+        int skipField(int p, int size) {
+            if(!varint) return p+size;
+            while(buf.get(p)<0) ++p;
+            return p+1;
+        }
+
+        int len(int p, int sl) {
+            if(varint) return varint(p);
+            if(sl==1) return buf.get(p)&0xFF;
+            if(sl==2) return buf.getShort(p)&0xFFFF;
+            if(sl==4) return buf.getInt(p);
+            return 0;
+        }
+
+        /**
+         * @param collect descend into struct mode containers to collect inline dictionary entries.
+         * @return offset after the value at p.
+         */
+        int skip(int p, boolean collect) {
+            byte t = buf.get(p++);
+            switch(t) {
+                case AsonValue.TYPE_NULL:
+                case AsonValue.TYPE_TRUE:
+                case AsonValue.TYPE_FALSE: return p;
+                case AsonValue.TYPE_INT8: return p+1;
+                case AsonValue.TYPE_INT16: return p+2;
+                case AsonValue.TYPE_INT32:
+                case AsonValue.TYPE_FLOAT: return p+4;
+                case AsonValue.TYPE_INT64:
+                case AsonValue.TYPE_DOUBLE: return p+8;
+                case AsonValue.TYPE_STRING:
+                    while(buf.get(p)!=0) ++p;
+                    return p+1;
+                case AsonValue.TYPE_BYTES: {
+                    int l;
+                    while((l = buf.get(p)&0xFF)!=0) p += 1+l;
+                    return p+1;
+                }
+                case AsonValue.TYPE_ARRAY:
+                    while(buf.get(p)!=0) p = skip(p, collect);
+                    return p+1;
+                case AsonValue.TYPE_OBJECT:
+                    for(;;) {
+                        int id = id(p);
+                        p = skipId(p);
+                        if(id==0) return p;
+                        p = skip(p, collect);
+                    }
+            }
+            int sl = t&0x0F;
+            if(sl!=1 && sl!=2 && sl!=4) throw new IllegalStateException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+            if((t&0xF0)==0xC0) {
+                int rows = len(p, sl);
+                p = skipField(p, sl);
+                int nk = len(p, sl);
+                p = skipField(p, sl);
+                for(int k=0;k<nk;++k) p = skipId(p);
+                for(int k=0;k<nk;++k) p = skipColumn(p, rows, collect);
+                return p;
+            }
+            if((t&0xF0)==0xB0) {
+                int w = AsonParser.packedWidth(buf.get(p));
+                if(w==0) throw new IllegalStateException("invalid packed element type: 0x"+Integer.toHexString(buf.get(p)&0xFF));
+                return skipField(p+1, sl)+len(p+1, sl)*w;
+            }
+            int q = skipField(p, sl);
+            int end = q+len(p, sl);
+            if(collect && ((t&0xF0)==0xE0 || (t&0xF0)==0xF0)) {
+                boolean obj = (t&0xF0)==0xF0;
+                p = q;
+                while(p<end) {
+                    if(obj) p = skipId(p);
+                    p = skip(p, true);
+                }
+            }
+            return end;
+        }
+
+        /**
+         * @return offset after the table column at p.
+         */
+        int skipColumn(int p, int rows, boolean collect) {
+            int flags = buf.get(p++);
+            if((flags&AsonParser.TABLE_ABSENT)!=0) p += (rows+7)>>3;
+            if((flags&AsonParser.TABLE_NULL)!=0) p += (rows+7)>>3;
+            return skip(p, collect);
+        }
+
+        /**
+         * walk the whole data once to collect all inline dictionary entries.
+         */
+        void scanAll() {
+            if(dictComplete) return;
+            skip(rootOffset, true);
+            dictComplete = true;
+        }
+
+        String string(int p, int len) {
+            try {
+                if(buf.hasArray()) return new String(buf.array(), buf.arrayOffset()+p, len, "UTF-8");
+                byte b[] = new byte[len];
+                copy(p, b, 0, len);
+                return new String(b, "UTF-8");
+            } catch(UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] bytes(int p, int len) {
+            byte b[] = new byte[len];
+            copy(p, b, 0, len);
+            return b;
+        }
+
+        void copy(int p, byte dst[], int off, int len) {
+            ByteBuffer d = buf.duplicate();
+            d.position(p);
+            d.get(dst, off, len);
+        }
+    }
+}
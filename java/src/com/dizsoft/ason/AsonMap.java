@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Base of object node maps, keyed by primitive int key id.
+ * Entries are kept in slots, iterate them without allocation by:
+ * <pre>
+ * for(int i=0;i&lt;m.slots();++i) {
+ *     AsonValue v = m.valueAt(i);
+ *     if(v==null) continue;
+ *     int id = m.keyAt(i);
+ * }
+ * </pre>
+ * null values are not stored, put(key,null) removes the key.
+ * Modifying the map while iterating is not supported.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public abstract class AsonMap extends AbstractMap<Integer,AsonValue> {
+    protected static final int SMALL_SIZE = 8; // up to this many entries are searched linearly
+
+    public abstract AsonValue get(int key);
+    public abstract AsonValue put(int key, AsonValue value);
+    public abstract AsonValue remove(int key);
+
+    /**
+     * get the slot count, slots are 0 to slots()-1.
+     * @return
+     */
+    public abstract int slots();
+    /**
+     * get the key in slot, only valid if valueAt(slot) is not null.
+     * @param slot slot index
+     * @return key id
+     */
+    public abstract int keyAt(int slot);
+    /**
+     * get the value in slot.
+     * @param slot slot index
+     * @return value, null if slot is empty.
+     */
+    public abstract AsonValue valueAt(int slot);
+
+    public boolean containsKey(int key) {
+        return get(key)!=null;
+    }
+
+    protected static int hash(int key) {
+        int h = key*0x9E3779B9;
+        return h^(h>>>16);
+    }
+
+    protected static int tableSize(int n) {
+        int cap = 16;
+        while(cap<n*2) cap <<= 1;
+        return cap;
+    }
+
+    @Override
+    public AsonValue get(Object key) {
+        return key instanceof Integer?get(((Integer)key).intValue()):null;
+    }
+
+    @Override
+    public AsonValue put(Integer key, AsonValue value) {
+        return put(key.intValue(), value);
+    }
+
+    @Override
+    public AsonValue remove(Object key) {
+        return key instanceof Integer?remove(((Integer)key).intValue()):null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key)!=null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size()==0;
+    }
+
+    public Iterator<Integer> keyIterator() {
+        return new SlotIterator<Integer>() {
+            @Override
+            Integer at(int slot) {
+                return keyAt(slot);
+            }
+        };
+    }
+
+    public Iterator<AsonValue> valueIterator() {
+        return new SlotIterator<AsonValue>() {
+            @Override
+            AsonValue at(int slot) {
+                return valueAt(slot);
+            }
+        };
+    }
+
+    @Override
+    public Set<Integer> keySet() {
+        return new AbstractSet<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return keyIterator();
+            }
+            @Override
+            public int size() {
+                return AsonMap.this.size();
+            }
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+        };
+    }
+
+    @Override
+    public Collection<AsonValue> values() {
+        return new AbstractCollection<AsonValue>() {
+            @Override
+            public Iterator<AsonValue> iterator() {
+                return valueIterator();
+            }
+            @Override
+            public int size() {
+                return AsonMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Integer,AsonValue>> entrySet() {
+        return new AbstractSet<Entry<Integer,AsonValue>>() {
+            @Override
+            public Iterator<Entry<Integer,AsonValue>> iterator() {
+                return new SlotIterator<Entry<Integer,AsonValue>>() {
+                    @Override
+                    Entry<Integer,AsonValue> at(int slot) {
+                        return new SimpleImmutableEntry<>(keyAt(slot), valueAt(slot));
+                    }
+                };
+            }
+            @Override
+            public int size() {
+                return AsonMap.this.size();
+            }
+        };
+    }
+
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private int next = advance(0);
+
+        abstract T at(int slot);
+
+        private int advance(int i) {
+            int n = slots();
+            while(i<n && valueAt(i)==null) ++i;
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next<slots();
+        }
+
+        @Override
+        public T next() {
+            if(next>=slots()) throw new NoSuchElementException();
+            T ret = at(next);
+            next = advance(next+1);
+            return ret;
+        }
+    }
+}
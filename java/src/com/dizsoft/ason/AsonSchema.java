@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fixed shape of messages known to both sides in advance, for schema positional mode.
+ * A serializer with a schema writes object fields in schema order without key ids, and fields of fixed type
+ * without type bytes, the header only carries the 24 bit hash id of the schema:
+ * <pre>
+ * AsonSchema schema = Ason.RegisterSchema(AsonSchema.of(Telemetry.class));  // on both sides
+ * AsonValue doc = Ason.CreateRootObject(schema.getDictionary());
+ * AsonSerializer s = new AsonSerializer(Ason.FLAG_VARINT);
+ * s.setSchema(schema);
+ * s.serialize(doc, os);
+ * </pre>
+ * Values of fields by type:
+ * <pre>
+ * TYPE_TRUE         boolean, one byte 0 or 1
+ * TYPE_INT8         one byte
+ * TYPE_INT16~64     zigzag varint, checked against the width when written
+ * TYPE_FLOAT/DOUBLE 4/8 bytes
+ * TYPE_STRING/BYTES varint length and content
+ * TYPE_ARRAY        varint count and elements of the element field
+ * TYPE_OBJECT       values of the fields in order, without end
+ * TYPE_ANY          plain ason value with type byte, it can not hold objects
+ * </pre>
+ * A nullable field is preceded by one byte, 0 for null and 1 for a value. Keys not in the schema can not be written.
+ * Parsed documents are created on getDictionary(), which holds every field name.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class AsonSchema {
+    /**
+     * field of any value but object, written as plain ason value.
+     */
+    public static final byte TYPE_ANY = 0;
+
+    private static final ConcurrentHashMap<Integer,AsonSchema> registry = new ConcurrentHashMap<>();
+
+    private final Field root;
+    private final SharedDictionary dict;
+    private final int hashId;
+
+    /**
+     * Create schema with root field, it is not registered.
+     * @param root root field, its name is not used.
+     */
+    public AsonSchema(Field root) {
+        this.root = root = copy(root); // ids are of this schema
+        Map<String,Integer> names = new LinkedHashMap<>();
+        collectNames(root, names);
+        this.dict = new SharedDictionary(names);
+        assignIds(root, dict);
+        long h = 0xcbf29ce484222325L;
+        h = hash(h, root);
+        this.hashId = (int)(h^(h>>>24)^(h>>>48))&SharedDictionary.HASHID_MASK;
+    }
+
+    /**
+     * Create schema from the shape of a sample value. integers are TYPE_INT64, other numbers TYPE_DOUBLE,
+     * null values TYPE_ANY and array elements take the shape they all have, other fields are not nullable.
+     * @param sample sample message, a root node
+     * @return schema, not registered.
+     * @throws IllegalArgumentException if array elements are objects of different shapes.
+     */
+    public static AsonSchema of(AsonValue sample) {
+        return new AsonSchema(fieldOf(null, sample, sample.getDictMap()));
+    }
+
+    /**
+     * Create schema from the properties of a class, see ObjectBinding. primitives are not nullable,
+     * other properties are. Map and Object properties are TYPE_ANY, enums and Character TYPE_STRING.
+     * @param type class of messages
+     * @return schema, not registered.
+     * @throws IllegalArgumentException if the class refers to itself.
+     */
+    public static AsonSchema of(Class<?> type) {
+        return new AsonSchema(fieldOf(null, type, false, new HashSet<>()));
+    }
+
+    /**
+     * get the root field.
+     * @return root field
+     */
+    public Field getRoot() {
+        return root;
+    }
+
+    /**
+     * get the dictionary of all field names, documents created on it are written without id mapping.
+     * @return dictionary
+     */
+    public SharedDictionary getDictionary() {
+        return dict;
+    }
+
+    /**
+     * get the hash id written in message headers.
+     * @return 24 bit hash id
+     */
+    public int getHashId() {
+        return hashId;
+    }
+
+    /**
+     * Register schema, registering an equal schema again returns the registered one.
+     * @param schema schema
+     * @return registered schema
+     * @throws IllegalStateException if another schema with the same hash id is registered.
+     */
+    public static AsonSchema register(AsonSchema schema) {
+        AsonSchema old = registry.putIfAbsent(schema.hashId, schema);
+        if(old==null) return schema;
+        if(!old.root.equals(schema.root)) {
+            throw new IllegalStateException("Schema hash id 0x"+Integer.toHexString(schema.hashId)+" is used by another schema.");
+        }
+        return old;
+    }
+
+    /**
+     * find registered schema.
+     * @param hashId 24 bit hash id
+     * @return schema, null if not registered.
+     */
+    public static AsonSchema lookup(int hashId) {
+        return registry.get(hashId&SharedDictionary.HASHID_MASK);
+    }
+
+    /**
+     * remove registered schema.
+     * @param hashId 24 bit hash id
+     * @return removed schema, null if not registered.
+     */
+    public static AsonSchema unregister(int hashId) {
+        return registry.remove(hashId&SharedDictionary.HASHID_MASK);
+    }
+
+    /**
+     * One field of a schema, or the root and array elements, which have no name.
+     */
+    public static final class Field {
+        private final String name;
+        private final byte type;
+        private final boolean nullable;
+        private final Field fields[];
+        private final Field element;
+        private int id; // key id of name in the schema dictionary
+        private boolean sampleNull; // taken from a null sample value, any other shape can replace it
+
+        private Field(String name, byte type, boolean nullable, Field fields[], Field element) {
+            this.name = name;
+            this.type = type;
+            this.nullable = nullable && type!=TYPE_ANY;
+            this.fields = fields;
+            this.element = element;
+        }
+
+        /**
+         * Create field of scalar type.
+         * @param name field name
+         * @param type AsonValue.TYPE_TRUE for boolean, TYPE_INT8~64, TYPE_FLOAT, TYPE_DOUBLE, TYPE_STRING, TYPE_BYTES or TYPE_ANY
+         * @param nullable the value may be null
+         * @return field
+         */
+        public static Field scalar(String name, byte type, boolean nullable) {
+            switch(type) {
+                case AsonValue.TYPE_TRUE: case AsonValue.TYPE_INT8: case AsonValue.TYPE_INT16: case AsonValue.TYPE_INT32:
+                case AsonValue.TYPE_INT64: case AsonValue.TYPE_FLOAT: case AsonValue.TYPE_DOUBLE:
+                case AsonValue.TYPE_STRING: case AsonValue.TYPE_BYTES: case TYPE_ANY:
+                    return new Field(name, type, nullable, null, null);
+            }
+            throw new IllegalArgumentException("Invalid schema field type: 0x"+Integer.toHexString(type&0xFF));
+        }
+
+        /**
+         * Create object field.
+         * @param name field name
+         * @param nullable the value may be null
+         * @param fields fields in written order
+         * @return field
+         */
+        public static Field object(String name, boolean nullable, Field... fields) {
+            Set<String> names = new HashSet<>();
+            for(Field f : fields) {
+                if(f.name==null || !names.add(f.name)) throw new IllegalArgumentException("Field names of an object must be unique, got "+f.name);
+            }
+            return new Field(name, AsonValue.TYPE_OBJECT, nullable, fields.clone(), null);
+        }
+
+        /**
+         * Create array field.
+         * @param name field name
+         * @param nullable the value may be null
+         * @param element field of the elements, its name is not used.
+         * @return field
+         */
+        public static Field array(String name, boolean nullable, Field element) {
+            return new Field(name, AsonValue.TYPE_ARRAY, nullable, null, element);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * get the key id of this field in the schema dictionary.
+         * @return key id, 0 for root and array elements.
+         */
+        public int getId() {
+            return id;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public boolean isNullable() {
+            return nullable;
+        }
+
+        /**
+         * get the fields of an object field.
+         * @return fields, null if not object.
+         */
+        public Field[] getFields() {
+            return fields;
+        }
+
+        /**
+         * get the element field of an array field.
+         * @return element, null if not array.
+         */
+        public Field getElement() {
+            return element;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Field)) return false;
+            Field f = (Field)o;
+            return type==f.type && nullable==f.nullable && (name==null?f.name==null:name.equals(f.name))
+                    && Arrays.equals(fields, f.fields) && (element==null?f.element==null:element.equals(f.element));
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{name, type, nullable, fields==null?null:Arrays.hashCode(fields), element});
+        }
+    }
+
+    private static Field fieldOf(String name, AsonValue v, AbstractKeyDictionary d) {
+        byte t = v.getType();
+        if(t==AsonValue.TYPE_NULL) {
+            Field f = Field.scalar(name, TYPE_ANY, true);
+            f.sampleNull = true;
+            return f;
+        }
+        if(t==AsonValue.TYPE_TRUE || t==AsonValue.TYPE_FALSE) return Field.scalar(name, AsonValue.TYPE_TRUE, false);
+        if(t>=AsonValue.TYPE_INT8 && t<=AsonValue.TYPE_INT64) return Field.scalar(name, AsonValue.TYPE_INT64, false);
+        if(t==AsonValue.TYPE_FLOAT || t==AsonValue.TYPE_DOUBLE) return Field.scalar(name, AsonValue.TYPE_DOUBLE, false);
+        if(t==AsonValue.TYPE_STRING || t==AsonValue.TYPE_BYTES) return Field.scalar(name, t, false);
+        if(t==AsonValue.TYPE_OBJECT) {
+            AsonMap m = (AsonMap)v.getValue();
+            List<Field> fs = new ArrayList<>();
+            for(int i=0;i<m.slots();++i) {
+                AsonValue fv = m.valueAt(i);
+                if(fv!=null) fs.add(fieldOf(d.getName(m.keyAt(i)), fv, d));
+            }
+            return Field.object(name, false, fs.toArray(new Field[fs.size()]));
+        }
+        Field e = null;
+        for(AsonValue ev : v) {
+            Field f = fieldOf(null, ev, d);
+            e = e==null?f:merge(e, f);
+        }
+        return Field.array(name, false, e==null?Field.scalar(null, TYPE_ANY, true):e);
+    }
+
+    /**
+     * shape holding values of both a and b.
+     * @throws IllegalArgumentException if they differ and one of them holds objects.
+     */
+    private static Field merge(Field a, Field b) {
+        if(a.equals(b) || b.sampleNull) return a.sampleNull||a.type==TYPE_ANY||a.nullable?a:renamed(a, a.name, true);
+        if(a.sampleNull) return b.nullable||b.type==TYPE_ANY?renamed(b, a.name, b.nullable):renamed(b, a.name, true);
+        boolean nullable = a.nullable || b.nullable;
+        if(a.type==AsonValue.TYPE_OBJECT && b.type==AsonValue.TYPE_OBJECT) {
+            Map<String,Field> fs = new LinkedHashMap<>();
+            for(Field f : a.fields) fs.put(f.name, f);
+            for(Field f : b.fields) {
+                Field o = fs.get(f.name);
+                fs.put(f.name, o==null?renamed(f, f.name, true):merge(o, f));
+            }
+            for(Field f : a.fields) {
+                if(!contains(b.fields, f.name)) fs.put(f.name, renamed(fs.get(f.name), f.name, true));
+            }
+            return Field.object(a.name, nullable, fs.values().toArray(new Field[fs.size()]));
+        }
+        if(a.type==AsonValue.TYPE_ARRAY && b.type==AsonValue.TYPE_ARRAY) return Field.array(a.name, nullable, merge(a.element, b.element));
+        if(a.type==AsonValue.TYPE_INT64 && b.type==AsonValue.TYPE_DOUBLE || a.type==AsonValue.TYPE_DOUBLE && b.type==AsonValue.TYPE_INT64) {
+            return Field.scalar(a.name, AsonValue.TYPE_DOUBLE, nullable);
+        }
+        if(holdsObject(a) || holdsObject(b)) throw new IllegalArgumentException("Values of "+(a.name==null?"array elements":a.name)+" have different shapes.");
+        return Field.scalar(a.name, TYPE_ANY, true);
+    }
+
+    private static Field renamed(Field f, String name, boolean nullable) {
+        if(f.sampleNull) return f;
+        return new Field(name, f.type, nullable, f.fields, f.element);
+    }
+
+    private static boolean contains(Field fs[], String name) {
+        for(Field f : fs) {
+            if(f.name.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private static boolean holdsObject(Field f) {
+        return f.type==AsonValue.TYPE_OBJECT || (f.element!=null && holdsObject(f.element));
+    }
+
+    private static Field fieldOf(String name, Type type, boolean nullable, Set<Class<?>> path) {
+        Class<?> c = rawClass(type);
+        if(c==boolean.class || c==Boolean.class) return Field.scalar(name, AsonValue.TYPE_TRUE, nullable);
+        if(c==byte.class || c==Byte.class) return Field.scalar(name, AsonValue.TYPE_INT8, nullable);
+        if(c==short.class || c==Short.class) return Field.scalar(name, AsonValue.TYPE_INT16, nullable);
+        if(c==int.class || c==Integer.class || c==char.class) return Field.scalar(name, AsonValue.TYPE_INT32, nullable);
+        if(c==long.class || c==Long.class) return Field.scalar(name, AsonValue.TYPE_INT64, nullable);
+        if(c==float.class || c==Float.class) return Field.scalar(name, AsonValue.TYPE_FLOAT, nullable);
+        if(c==double.class || c==Double.class) return Field.scalar(name, AsonValue.TYPE_DOUBLE, nullable);
+        if(c==String.class || c==Character.class || c.isEnum()) return Field.scalar(name, AsonValue.TYPE_STRING, nullable);
+        if(c==byte[].class) return Field.scalar(name, AsonValue.TYPE_BYTES, nullable);
+        if(c.isArray()) {
+            Type ct = type instanceof GenericArrayType?((GenericArrayType)type).getGenericComponentType():c.getComponentType();
+            return Field.array(name, nullable, fieldOf(null, ct, !c.getComponentType().isPrimitive(), path));
+        }
+        if(Collection.class.isAssignableFrom(c)) {
+            Type et = type instanceof ParameterizedType?((ParameterizedType)type).getActualTypeArguments()[0]:Object.class;
+            return Field.array(name, nullable, fieldOf(null, et, true, path));
+        }
+        if(c==Object.class || c==Number.class || Map.class.isAssignableFrom(c)) return Field.scalar(name, TYPE_ANY, true);
+        if(!path.add(c)) throw new IllegalArgumentException("Class "+c.getName()+" refers to itself, it has no fixed shape.");
+        ObjectBinding.Property ps[] = ObjectBinding.of(c).getProperties();
+        Field fs[] = new Field[ps.length];
+        for(int i=0;i<ps.length;++i) {
+            fs[i] = fieldOf(ps[i].getName(), ps[i].getGenericType(), !ps[i].getType().isPrimitive(), path);
+        }
+        path.remove(c);
+        return Field.object(name, nullable, fs);
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if(type instanceof Class) return (Class<?>)type;
+        if(type instanceof ParameterizedType) return rawClass(((ParameterizedType)type).getRawType());
+        if(type instanceof GenericArrayType) return java.lang.reflect.Array.newInstance(rawClass(((GenericArrayType)type).getGenericComponentType()), 0).getClass();
+        if(type instanceof WildcardType) return rawClass(((WildcardType)type).getUpperBounds()[0]);
+        return Object.class;
+    }
+
+    private static Field copy(Field f) {
+        Field fs[] = null;
+        if(f.fields!=null) {
+            fs = new Field[f.fields.length];
+            for(int i=0;i<fs.length;++i) fs[i] = copy(f.fields[i]);
+        }
+        return new Field(f.name, f.type, f.nullable, fs, f.element==null?null:copy(f.element));
+    }
+
+    private static void collectNames(Field f, Map<String,Integer> names) {
+        if(f.fields!=null) {
+            for(Field c : f.fields) {
+                if(!names.containsKey(c.name)) names.put(c.name, names.size()+1);
+                collectNames(c, names);
+            }
+        }
+        if(f.element!=null) collectNames(f.element, names);
+    }
+
+    private static void assignIds(Field f, KeyDictionary dict) {
+        if(f.fields!=null) {
+            for(Field c : f.fields) {
+                c.id = dict.getId(c.name);
+                assignIds(c, dict);
+            }
+        }
+        if(f.element!=null) assignIds(f.element, dict);
+    }
+
+    /**
+     * FNV-1a over the field tree in pre-order.
+     */
+    private static long hash(long h, Field f) {
+        h = (h^(f.type&0xFF))*0x100000001b3L;
+        h = (h^(f.nullable?1:0))*0x100000001b3L;
+        if(f.name!=null) {
+            byte b[] = f.name.getBytes(StandardCharsets.UTF_8);
+            h = (h^b.length)*0x100000001b3L;
+            for(byte c : b) {
+                h = (h^(c&0xFF))*0x100000001b3L;
+            }
+        }
+        if(f.fields!=null) {
+            h = (h^f.fields.length)*0x100000001b3L;
+            for(Field c : f.fields) h = hash(h, c);
+        }
+        if(f.element!=null) h = hash(h, f.element);
+        return h;
+    }
+}
@@ -27,13 +27,15 @@ package com.dizsoft.ason;
 
 import com.dizsoft.ason.utils.Utils;
 import java.math.BigDecimal;
-import java.math.BigInteger;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * AsonValue class, for holding ason data.
@@ -54,35 +56,101 @@ public final class AsonValue implements Iterable<AsonValue> {
     public static final byte TYPE_ARRAY   = (byte) 0xE0;
     public static final byte TYPE_OBJECT  = (byte) 0xF0;
     
+    /**
+     * next free id entry of old dictionary maps, ignored when a map is taken as dictionary.
+     * @deprecated KeyDictionary keeps its own id counter.
+     */
+    @Deprecated
     public static final String KEY_NEXT_IDVAL = "_$NEXT_FREE_ID$_";
 //    public static final AsonValue NULL_VALUE = new AsonValue(null);
 
-    protected Object value;
-    protected Map<String,Integer> keyNameDictMap;
+    protected byte type;
+    protected long bits; // integer value, or raw double bits of float/double value
+    protected Object value; // String, byte[], List or Map. null for other types, PackedSlot for elements of packed arrays, Root for root nodes
 
     /**
      * Create AsonValue with value from Root node.
-     * @param rootNode Root node, can not be null.
-     * @param value init data, can be one of byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,List,Map.
+     * @param rootNode Root node, can not be null. its dictionary names the String keys of maps in value.
+     * @param value init data, can be one of byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,List,Map,
+     * or int[],long[],float[],double[] for a packed array.
      */
     public AsonValue(AsonValue rootNode,Object value) {
         if(rootNode==null) throw new IllegalArgumentException("rootNode can not be null.");
-        this.keyNameDictMap = rootNode.getDictMap();
-        setValue(value);
+        setValue(value, rootNode.getDictMap());
+    }
+    /**
+     * Create integer AsonValue, stored in the smallest int type holding it.
+     * @param rootNode Root node or any node of the same tree, can be null.
+     * @param value init data
+     */
+    public AsonValue(AsonValue rootNode,long value) {
+        setLong(value);
+    }
+    /**
+     * Create float AsonValue.
+     * @param rootNode Root node or any node of the same tree, can be null.
+     * @param value init data
+     */
+    public AsonValue(AsonValue rootNode,float value) {
+        setFloat(value);
+    }
+    /**
+     * Create double AsonValue, stored as float if the float prints the same.
+     * @param rootNode Root node or any node of the same tree, can be null.
+     * @param value init data
+     */
+    public AsonValue(AsonValue rootNode,double value) {
+        setDouble(value);
+    }
+    /**
+     * Create double AsonValue.
+     * @param rootNode Root node or any node of the same tree, can be null.
+     * @param value init data
+     * @param narrow store as float if the float prints the same, else always double.
+     */
+    public AsonValue(AsonValue rootNode,double value,boolean narrow) {
+        if(narrow) {
+            setDouble(value);
+        } else {
+            type = TYPE_DOUBLE;
+            bits = Double.doubleToRawLongBits(value);
+        }
+    }
+    /**
+     * Create boolean AsonValue.
+     * @param rootNode Root node or any node of the same tree, can be null.
+     * @param value init data
+     */
+    public AsonValue(AsonValue rootNode,boolean value) {
+        type = value?TYPE_TRUE:TYPE_FALSE;
     }
     
+    /**
+     * Create root node, the only node of a tree holding the dictionary.
+     */
     AsonValue(Map<String,Integer> dictMap, Object value) {
-        if(dictMap==null) dictMap = new HashMap<>(16);
-        this.keyNameDictMap = dictMap;
-        setValue(value);
+        AbstractKeyDictionary d;
+        if(dictMap==null) {
+            d = new KeyDictionary();
+        } else if(dictMap instanceof AbstractKeyDictionary) {
+            d = (AbstractKeyDictionary)dictMap;
+        } else {
+            d = new KeyDictionary(dictMap);
+        }
+        this.value = new Root(d);
+        setValue(value, d);
+    }
+    
+    private AsonValue() {
     }
     
     /**
-     * get the dictionary map of this node.
-     * @return Dictionary map.
+     * get the dictionary map of the tree. only the root node holds it, the other nodes are not linked to their root.
+     * a subtree is serialized with key names by setting it as value of Ason.CreateRootObject(root.getDictMap()).
+     * @return Dictionary map, null if this node is not a root node.
      */
-    public Map<String,Integer> getDictMap() {
-        return keyNameDictMap;
+    public AbstractKeyDictionary getDictMap() {
+        return value instanceof Root?((Root)value).dict:null;
     }
 
     /**
@@ -90,20 +158,7 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return type. see AsonValue.TYPE_XXX
      */
     public byte getType() {
-        if(value==null) return TYPE_NULL;
-        else if(value instanceof byte[]) return TYPE_BYTES;
-        else if(value instanceof Byte) return TYPE_INT8;
-        else if(value instanceof Short) return TYPE_INT16;
-        else if(value instanceof Integer) return TYPE_INT32;
-        else if(value instanceof Long) return TYPE_INT64;
-        else if(value instanceof Float) return TYPE_FLOAT;
-        else if(value instanceof Double) return TYPE_DOUBLE;
-        else if(value instanceof String) return TYPE_STRING;
-        else if(value instanceof Boolean) return (Boolean)value?TYPE_TRUE:TYPE_FALSE;
-        else if(value instanceof List) return TYPE_ARRAY;
-        else if(value instanceof Map) return TYPE_OBJECT;
-//        else if(value instanceof AsonObject) return ((AsonObject)value).isArray()?TYPE_ARRAY:TYPE_OBJECT;
-        return -1;
+        return type;
     }
 
     /**
@@ -111,50 +166,57 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public boolean isObject() {
-        return value instanceof Map;
-//        return (value instanceof AsonObject) && !((AsonObject)value).isArray();
+        return type==TYPE_OBJECT;
     }
     /**
      * check if this node is an array type.
      * @return 
      */
     public boolean isArray() {
-        return value instanceof List;
-//        return (value instanceof AsonObject) && ((AsonObject)value).isArray();
+        return type==TYPE_ARRAY;
     }
     /**
      * check if this node is null type.
      * @return 
      */
     public boolean isNull() {
-        return value==null;
+        return type==TYPE_NULL;
+    }
+    
+    private boolean isNumber() {
+        return type>=TYPE_INT8 && type<=TYPE_DOUBLE;
+    }
+    
+    /**
+     * return the long value of this node without boxing. this node must be number type.
+     * @return value, float/double are truncated.
+     */
+    public long longValue() {
+        return type>=TYPE_FLOAT?(long)Double.longBitsToDouble(bits):bits;
+    }
+    /**
+     * return the double value of this node without boxing. this node must be number type.
+     * @return value
+     */
+    public double doubleValue() {
+        return type>=TYPE_FLOAT?Double.longBitsToDouble(bits):bits;
     }
- 
-//    public AsonObject getAsonObject() {
-//        return value instanceof AsonObject?(AsonObject)value:null;
-//    }
     
     /**
      * return the byte[] representation of this node
      * @return 
      */
     public byte[] asBytes() {
-        if(value instanceof byte[]) {
-            return (byte[])value;
-        } else if(value instanceof Byte) {
-            return new byte[]{(Byte)value};
-        } else if(value instanceof Short) {
-            return Utils.Int162Bytes((Short)value);
-        } else if(value instanceof Integer) {
-            return Utils.Int322Bytes((Integer)value);
-        } else if(value instanceof Long) {
-            return Utils.Int642Bytes((Long)value);
-        } else if(value instanceof Float) {
-            return Utils.Int322Bytes(Float.floatToIntBits((Float)value));
-        } else if(value instanceof Double) {
-            return Utils.Int642Bytes(Double.doubleToLongBits((Double)value));
-        } else if(value instanceof String) {
-            try { return ((String)value).getBytes("UTF-8"); }catch(Exception e){}
+        switch(type) {
+            case TYPE_BYTES: return (byte[])data();
+            case TYPE_INT8: return new byte[]{(byte)bits};
+            case TYPE_INT16: return Utils.Int162Bytes((short)bits);
+            case TYPE_INT32: return Utils.Int322Bytes((int)bits);
+            case TYPE_INT64: return Utils.Int642Bytes(bits);
+            case TYPE_FLOAT: return Utils.Int322Bytes(Float.floatToIntBits((float)doubleValue()));
+            case TYPE_DOUBLE: return Utils.Int642Bytes(bits);
+            case TYPE_STRING:
+                try { return ((String)data()).getBytes("UTF-8"); }catch(Exception e){}
         }
         return null;
     }
@@ -163,15 +225,15 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public Integer asInteger() {
-        if(value instanceof Number) {
-            if(((Number)value).longValue()<=Integer.MAX_VALUE) {
-                return ((Number)value).intValue();
+        if(isNumber()) {
+            if(longValue()<=Integer.MAX_VALUE) {
+                return (int)longValue();
             }
-        } else if(value instanceof Boolean) {
-            return (Boolean)value?1:0;
-        } else if(value instanceof String) {
-            Number n = parseNumber((String)value);
-            if(n!=null && ((Number)value).longValue()<=Integer.MAX_VALUE) return n.intValue();
+        } else if(type==TYPE_TRUE || type==TYPE_FALSE) {
+            return type==TYPE_TRUE?1:0;
+        } else if(type==TYPE_STRING) {
+            Number n = parseNumber((String)data());
+            if(n!=null && n.longValue()<=Integer.MAX_VALUE) return n.intValue();
         }
         return null;
     }
@@ -180,12 +242,12 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public Long asInteger64() {
-        if(value instanceof Number) {
-            return ((Number)value).longValue();
-        } else if(value instanceof Boolean) {
-            return (Boolean)value?1L:0L;
-        } else if(value instanceof String) {
-            Number n = parseNumber((String)value);
+        if(isNumber()) {
+            return longValue();
+        } else if(type==TYPE_TRUE || type==TYPE_FALSE) {
+            return type==TYPE_TRUE?1L:0L;
+        } else if(type==TYPE_STRING) {
+            Number n = parseNumber((String)data());
             if(n!=null) return n.longValue();
         }
         return null;
@@ -195,12 +257,12 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public Float asFloat() {
-        if(value instanceof Number) {
-            return ((Number)value).floatValue();
-        } else if(value instanceof Boolean) {
-            return (Boolean)value?1.0f:0.0f;
-        } else if(value instanceof String) {
-            Number n = parseNumber((String)value);
+        if(isNumber()) {
+            return (float)doubleValue();
+        } else if(type==TYPE_TRUE || type==TYPE_FALSE) {
+            return type==TYPE_TRUE?1.0f:0.0f;
+        } else if(type==TYPE_STRING) {
+            Number n = parseNumber((String)data());
             if(n!=null) return n.floatValue();
         }
         return null;
@@ -210,12 +272,12 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public Double asDouble() {
-        if(value instanceof Number) {
-            return ((Number)value).doubleValue();
-        } else if(value instanceof Boolean) {
-            return (Boolean)value?1.0:0.0;
-        } else if(value instanceof String) {
-            Number n = parseNumber((String)value);
+        if(isNumber()) {
+            return doubleValue();
+        } else if(type==TYPE_TRUE || type==TYPE_FALSE) {
+            return type==TYPE_TRUE?1.0:0.0;
+        } else if(type==TYPE_STRING) {
+            Number n = parseNumber((String)data());
             if(n!=null) return n.doubleValue();
         }
         return null;
@@ -225,17 +287,22 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public String asString() {
-        if(value instanceof String) {
-            return (String)value;
-        } else if(value instanceof Integer || value instanceof Long || value instanceof Float || value instanceof Double) {
-            return value.toString();
-        } else if(value instanceof Boolean) {
-            return value.toString();
+        switch(type) {
+            case TYPE_STRING: return (String)data();
+            case TYPE_INT8:
+            case TYPE_INT16:
+            case TYPE_INT32:
+            case TYPE_INT64: return Long.toString(bits);
+            case TYPE_FLOAT: return Float.toString((float)doubleValue());
+            case TYPE_DOUBLE: return Double.toString(doubleValue());
+            case TYPE_TRUE: return "true";
+            case TYPE_FALSE: return "false";
         }
         return null;
     }
     
     private Number parseNumber(String string) {
+        if(string.isEmpty()) return null;
         char b = string.charAt(0);
         if ((b >= '0' && b <= '9') || b == '-') {
             try {
@@ -260,106 +327,188 @@ public final class AsonValue implements Iterable<AsonValue> {
         return null;
     }
     
-    private Number minsizedNum(Number n) {
-        if(n instanceof Short) {
-            Short s = (Short)n;
-            if(s.byteValue()==s) return s.byteValue();
-        } else if(n instanceof Integer) {
-            Integer i = (Integer)n;
-            if(i.byteValue()==i) return i.byteValue();
-            else if(i.shortValue()==i) return i.shortValue();
-        } else if(n instanceof Long) {
-            Long l = (Long)n;
-            if(l.byteValue()==l) return l.byteValue();
-            else if(l.shortValue()==l) return l.shortValue();
-            else if(l.intValue()==l) return l.intValue();
+    private void setLong(long l) {
+        if(l==(byte)l) type = TYPE_INT8;
+        else if(l==(short)l) type = TYPE_INT16;
+        else if(l==(int)l) type = TYPE_INT32;
+        else type = TYPE_INT64;
+        bits = l;
+        data(null);
+    }
+    
+    private void setFloat(float f) {
+        type = TYPE_FLOAT;
+        bits = Double.doubleToRawLongBits(f);
+        data(null);
+    }
+    
+    private void setDouble(double d) {
+        if(Double.toString(d).equals(Float.toString((float)d))) {
+            setFloat((float)d);
+        } else {
+            type = TYPE_DOUBLE;
+            bits = Double.doubleToRawLongBits(d);
+            data(null);
+        }
+    }
+    
+    private void setNumber(Number n) {
+        if(n instanceof Float) {
+            setFloat(n.floatValue());
+        } else if(n instanceof Double) {
+            setDouble(n.doubleValue());
         } else if(n instanceof BigDecimal) {
             BigDecimal b = (BigDecimal)n;
-            try { return b.byteValueExact(); }catch(Exception e){}
-            try { return b.shortValueExact(); }catch(Exception e){}
-            try { return b.intValueExact(); }catch(Exception e){}
-            try { return b.longValueExact(); }catch(Exception e){}
-            if(b.toString().equals(Float.toString(b.floatValue()))) return b.floatValue();
-//            if(b.floatValue()==b.doubleValue()) return b.floatValue();
-            return b.doubleValue();
-        } else if(n instanceof BigInteger) {
-            BigInteger b = (BigInteger)n;
-            long bl = b.longValue();
-            if(bl==b.byteValue()) return b.byteValue();
-            if(bl==b.shortValue()) return b.shortValue();
-            if(bl==b.intValue()) return b.intValue();
-            return bl;
-        } else if(n instanceof Double) {
-            Double b = (Double)n;
-//            if(b.floatValue()==b.doubleValue()) return new Float(b.floatValue());
-            if(b.toString().equals(Float.toString(b.floatValue()))) return b.floatValue();
+            try {
+                setLong(b.longValueExact());
+                return;
+            }catch(Exception e){}
+            if(b.toString().equals(Float.toString(b.floatValue()))) {
+                setFloat(b.floatValue());
+            } else {
+                type = TYPE_DOUBLE;
+                bits = Double.doubleToRawLongBits(b.doubleValue());
+                data(null);
+            }
+        } else {
+            setLong(n.longValue());
         }
-        return n;
     }
     
     /**
-     * get the origin data of this node.
+     * get the origin data of this node. numbers and booleans are boxed on each call.
      * @return 
      */
     public Object getValue() {
-        return value;
+        switch(type) {
+            case TYPE_INT8: return (byte)bits;
+            case TYPE_INT16: return (short)bits;
+            case TYPE_INT32: return (int)bits;
+            case TYPE_INT64: return bits;
+            case TYPE_FLOAT: return (float)doubleValue();
+            case TYPE_DOUBLE: return doubleValue();
+            case TYPE_TRUE: return Boolean.TRUE;
+            case TYPE_FALSE: return Boolean.FALSE;
+        }
+        return data();
     }
     
     /**
-     * set the value of this node.
-     * @param value can be one of byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,List,Map.
+     * get the elements of an array node, a packed array gives its element nodes on get.
+     * @return elements, null if this node is not an array.
+     */
+    @SuppressWarnings("unchecked")
+    public List<AsonValue> asList() {
+        return type==TYPE_ARRAY?(List<AsonValue>)data():null;
+    }
+    
+    /**
+     * get the numbers of a packed array node without creating element nodes.
+     * @return int[], long[], float[] or double[]. null if this node is not a packed array.
+     */
+    public Object getPackedArray() {
+        Object d = data();
+        return d instanceof PackedArray?((PackedArray)d).array():null;
+    }
+    
+    /**
+     * set the value of this node. String keys of a Map value are named by the dictionary of this node,
+     * use setValue(value, root.getDictMap()) when this node is not a root node.
+     * @param value can be one of byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,List,Map,
+     * or int[],long[],float[],double[] for a packed array.
      */
     public void setValue(Object value) {
+        setValue(value, getDictMap());
+    }
+    
+    /**
+     * set the value of this node.
+     * @param value can be one of byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,List,Map,
+     * or int[],long[],float[],double[] for a packed array.
+     * @param dictMap dictionary of the root node, names the String keys of maps in value. can be null if value has no String key.
+     */
+    public void setValue(Object value, AbstractKeyDictionary dictMap) {
+        if(this.value instanceof PackedSlot) {
+            PackedSlot slot = (PackedSlot)this.value;
+            Object n = value instanceof AsonValue?((AsonValue)value).getValue():value;
+            if(!(n instanceof Number) || !slot.owner.store(slot.index, (Number)n)) {
+                throw new UnsupportedOperationException("Element of packed array only takes numbers of the element type, change the array through its node.");
+            }
+            load(slot.owner, slot.index);
+            this.value = slot;
+            return;
+        }
+        if(PackedArray.isNumberArray(value)) value = new PackedArray(value);
         if(value==null) {
+            type = TYPE_NULL;
         } else if(value instanceof Number) {
-            value = minsizedNum((Number)value);
-        } else if((value instanceof AsonArray) || (value instanceof AsonObject) || (value instanceof AsonObjectOrdered)) {
+            setNumber((Number)value);
+            return;
+        } else if(value instanceof String) {
+            type = TYPE_STRING;
+        } else if(value instanceof byte[]) {
+            type = TYPE_BYTES;
+        } else if(value instanceof Boolean) {
+            type = (Boolean)value?TYPE_TRUE:TYPE_FALSE;
+            value = null;
+        } else if(value instanceof AsonValue) {
+            AsonValue v = (AsonValue)value;
+            type = v.type;
+            bits = v.bits;
+            value = v.data();
+            if(value instanceof PackedSlot) value = null;
         } else if(value instanceof List) {
-            AsonArray nl = new AsonArray(((List)value).size());
-            Iterator it = ((List)value).iterator();
-            while(it.hasNext()) {
-                Object o = it.next();
-                if(o instanceof AsonValue) {
-                    nl.add((AsonValue)o);
-                } else {
-                    nl.add(new AsonValue(this, o));
+            type = TYPE_ARRAY;
+            if(!(value instanceof AsonArray) && !(value instanceof PackedArray)) {
+                AsonArray nl = new AsonArray(((List)value).size());
+                Iterator it = ((List)value).iterator();
+                while(it.hasNext()) {
+                    Object o = it.next();
+                    if(o instanceof AsonValue) {
+                        nl.add((AsonValue)o);
+                    } else {
+                        nl.add(child(o, dictMap));
+                    }
                 }
+                value = nl;
             }
-            value = nl;
         } else if(value instanceof Map) {
-            Map<Integer,AsonValue> nm;
-            if(value instanceof LinkedHashMap) {
-                nm = new AsonObject(((Map)value).size());
-            } else {
-                nm = new AsonObjectOrdered(((Map)value).size());
-            }
-            Iterator it = ((Map)value).keySet().iterator();
-            while(it.hasNext()) {
-                Object k = it.next();
-                Integer nk;
-                if(k instanceof Integer) {
-                    nk = (Integer)k;
+            type = TYPE_OBJECT;
+            if(!(value instanceof AsonMap)) {
+                AsonMap nm;
+                if(value instanceof LinkedHashMap) {
+                    nm = new AsonObjectOrdered(((Map)value).size());
                 } else {
-                    String sid = k.toString();
-                    nk = keyNameDictMap.get(sid);
-                    if(nk==null) {
-                        nk = nextFreeId();
-                        keyNameDictMap.put(sid, nk);
-                    }
+                    nm = new AsonObject(((Map)value).size());
                 }
-                Object v = ((Map)value).get(k);
-                if(!(v instanceof AsonValue)) {
-                    v = new AsonValue(this, v);
+                Iterator it = ((Map)value).keySet().iterator();
+                while(it.hasNext()) {
+                    Object k = it.next();
+                    Integer nk;
+                    if(k instanceof Integer) {
+                        nk = (Integer)k;
+                    } else {
+                        if(dictMap==null) throw new IllegalStateException("String key without dictionary, use setValue(value, root.getDictMap()).");
+                        nk = dictMap.add(k.toString());
+                    }
+                    Object v = ((Map)value).get(k);
+                    if(!(v instanceof AsonValue)) {
+                        v = child(v, dictMap);
+                    }
+                    nm.put(nk, (AsonValue)v);
                 }
-                nm.put(nk, (AsonValue)v);
+                value = nm;
             }
-            value = nm;
-        } else if(value instanceof AsonValue) {
-            this.value = ((AsonValue)value).getValue();
-        } else if(!(value instanceof String) && !(value instanceof byte[]) && !(value instanceof Boolean)) {
+        } else {
             throw new IllegalArgumentException("Invalid value type:"+value.getClass().getName()+", accpeted type: byte[],Boolean,String,Number,Map,List and subclasses.");
         }
-        this.value = value;
+        data(value);
+    }
+    
+    private static AsonValue child(Object value, AbstractKeyDictionary dictMap) {
+        AsonValue ret = new AsonValue();
+        ret.setValue(value, dictMap);
+        return ret;
     }
     
     /**
@@ -371,47 +520,31 @@ public final class AsonValue implements Iterable<AsonValue> {
         if(obj instanceof AsonValue) {
             add(id,(AsonValue)obj);
         } else {
-            add(id, new AsonValue(this, obj));
+            add(id, child(obj, getDictMap()));
         }
     }
     /**
-     * Add an AsonValue into this node. this node must be object type.
+     * Add an AsonValue into this node. this node must be object type and the root node,
+     * use add(root.getDictMap().add(id), obj) for the other nodes.
      * @param id key of the added data
      * @param obj AsnonValue
      */
     public void add(String id,AsonValue obj) {
-        Integer iid = keyNameDictMap.get(id);
-        if(iid==null) {
-            iid = nextFreeId();
-            keyNameDictMap.put(id, iid);
-        }
-        add(iid, obj);
+        AbstractKeyDictionary d = getDictMap();
+        if(d==null) throw new IllegalStateException("String key on a node other than root, use add(root.getDictMap().add(id), obj).");
+        add(d.add(id), obj);
     }
     
-    protected int nextFreeId() {
-        Integer nid = keyNameDictMap.get(KEY_NEXT_IDVAL);
-        if(nid==null) {
-            nid = 0;
-            Iterator<Integer> it = keyNameDictMap.values().iterator();
-            while(it.hasNext()) {
-                int id = it.next();
-                if(id>nid) nid=id;
-            }
-            ++nid;
-        }
-        keyNameDictMap.put(KEY_NEXT_IDVAL, nid+1);
-        return nid;
-    }
     /**
      * Add data into this node. this node must be object or array type.
      * @param id int key when this node is object type or index if this node is array type.
      * @param obj data to be added.can be one of byte[],Byte,Short,Integer,Long,Float,Double,String,Boolean,List,Map.
      */
     public void add(int id,Object obj) {
-        if(value instanceof AsonValue) {
+        if(obj instanceof AsonValue) {
             add(id,(AsonValue)obj);
         } else {
-            add(id,new AsonValue(this, obj));
+            add(id,child(obj, getDictMap()));
         }
     }
     /**
@@ -420,10 +553,10 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @param obj AsonValue to be added.
      */
     public void add(int id,AsonValue obj) {
-        if(value instanceof Map) {
-            ((Map<Integer,AsonValue>)value).put(id, obj);
-        } else if(value instanceof List) {
-            ((List<AsonValue>)value).add(id, obj);
+        if(type==TYPE_OBJECT) {
+            ((AsonMap)data()).put(id, obj);
+        } else if(type==TYPE_ARRAY) {
+            elements().add(id, obj);
         }
     }
     /**
@@ -434,7 +567,7 @@ public final class AsonValue implements Iterable<AsonValue> {
         if(obj instanceof AsonValue) {
             add((AsonValue)obj);
         } else {
-            add(new AsonValue(this, obj));
+            add(child(obj, getDictMap()));
         }
     }
     /**
@@ -442,8 +575,8 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @param obj AsonValue to be added.
      */
     public void add(AsonValue obj) {
-        if(value instanceof List) {
-            ((List<AsonValue>)value).add(obj);
+        if(type==TYPE_ARRAY) {
+            elements().add(obj);
         }
     }
     /**
@@ -451,10 +584,10 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @param id key id if this nod is object or index if this node is array.
      */
     public void remove(int id) {
-        if(value instanceof Map) {
-            ((Map<Integer,AsonValue>)value).remove(id);
-        } else if(value instanceof List) {
-            ((List<AsonValue>)value).remove(id);
+        if(type==TYPE_OBJECT) {
+            ((AsonMap)data()).remove(id);
+        } else if(type==TYPE_ARRAY) {
+            elements().remove(id);
         }
     }
     /**
@@ -463,10 +596,10 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return AsonValue if found. or null.
      */
     public AsonValue get(int id) {
-        if(value instanceof Map) {
-            return ((Map<Integer,AsonValue>)value).get(id);
-        } else if(value instanceof List) {
-            return ((List<AsonValue>)value).get(id);
+        if(type==TYPE_OBJECT) {
+            return ((AsonMap)data()).get(id);
+        } else if(type==TYPE_ARRAY) {
+            return ((List<AsonValue>)data()).get(id);
         }
         return null;
     }
@@ -475,8 +608,8 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return 
      */
     public Iterator<Integer> keyIterator() {
-        if(value instanceof Map) {
-            return ((Map<Integer,AsonValue>)value).keySet().iterator();
+        if(type==TYPE_OBJECT) {
+            return ((AsonMap)data()).keyIterator();
         }
         return null;
     }
@@ -487,10 +620,10 @@ public final class AsonValue implements Iterable<AsonValue> {
      */
     @Override
     public Iterator<AsonValue> iterator() {
-        if(value instanceof Map) {
-            return ((Map<Integer,AsonValue>)value).values().iterator();
-        } else if(value instanceof List) {
-            return ((List<AsonValue>)value).iterator();
+        if(type==TYPE_OBJECT) {
+            return ((AsonMap)data()).valueIterator();
+        } else if(type==TYPE_ARRAY) {
+            return ((List<AsonValue>)data()).iterator();
         }
         return null;
     }
@@ -499,29 +632,423 @@ public final class AsonValue implements Iterable<AsonValue> {
      * @return child count if this node is array or object type. length if this node is byte[] or String.
      */
     public int size() {
-        if(value instanceof Map) {
-            return ((Map<Integer,AsonValue>)value).size();
-        } else if(value instanceof List) {
-            return ((List<AsonValue>)value).size();
-        } else if(value instanceof byte[]) {
-            return ((byte[])value).length;
-        } else if(value instanceof String) {
-            return ((String)value).length();
+        if(type==TYPE_OBJECT) {
+            return ((AsonMap)data()).size();
+        } else if(type==TYPE_ARRAY) {
+            return ((List<AsonValue>)data()).size();
+        } else if(type==TYPE_BYTES) {
+            return ((byte[])data()).length;
+        } else if(type==TYPE_STRING) {
+            return ((String)data()).length();
         }
         return 0;
     }
+    
+    /**
+     * elements of this array node for changing, a packed array is unpacked first.
+     * @return 
+     */
+    private List<AsonValue> elements() {
+        Object d = data();
+        if(d instanceof PackedArray) data(d = ((PackedArray)d).unpack());
+        return (List<AsonValue>)d;
+    }
+    
+    /**
+     * the String, byte[], List or Map of this node, also for a root node.
+     */
+    private Object data() {
+        return value instanceof Root?((Root)value).value:value;
+    }
+    
+    private void data(Object d) {
+        if(value instanceof Root) {
+            ((Root)value).value = d;
+        } else {
+            value = d;
+        }
+    }
 
 
     public static class AsonArray extends ArrayList<AsonValue> {
         public AsonArray() { super(); }
         public AsonArray(int initialCapacity) { super(initialCapacity); }
+        public AsonArray(Collection<AsonValue> c) { super(c); }
     }
-    public static class AsonObject extends HashMap<Integer, AsonValue> {
-        public AsonObject() { super(); }
-        public AsonObject(int initialCapacity) { super(initialCapacity); }
+    /**
+     * Array of numbers of one type held in a primitive array, read from a packed array
+     * or set from int[], long[], float[] or double[]. element nodes are created on each get,
+     * setValue on them writes through to the array and only takes numbers the array can hold.
+     * It is fixed size, the node holding it turns it into an AsonArray when elements are added or removed.
+     */
+    public static final class PackedArray extends AbstractList<AsonValue> implements RandomAccess {
+        private final Object array;
+        private final int size;
+
+        public PackedArray(int array[]) { this((Object)array); }
+        public PackedArray(long array[]) { this((Object)array); }
+        public PackedArray(float array[]) { this((Object)array); }
+        public PackedArray(double array[]) { this((Object)array); }
+
+        PackedArray(Object array) {
+            if(array instanceof int[]) size = ((int[])array).length;
+            else if(array instanceof long[]) size = ((long[])array).length;
+            else if(array instanceof float[]) size = ((float[])array).length;
+            else if(array instanceof double[]) size = ((double[])array).length;
+            else throw new IllegalArgumentException("Invalid packed array type:"+(array==null?"null":array.getClass().getName()));
+            this.array = array;
+        }
+
+        static boolean isNumberArray(Object o) {
+            return o instanceof int[] || o instanceof long[] || o instanceof float[] || o instanceof double[];
+        }
+
+        /**
+         * get the numbers, not copied. changes are seen by this array.
+         * @return int[], long[], float[] or double[]
+         */
+        public Object array() {
+            return array;
+        }
+
+        /**
+         * get the element type, int arrays take the smallest type holding all values.
+         * @return TYPE_INT8, TYPE_INT16, TYPE_INT32, TYPE_INT64, TYPE_FLOAT or TYPE_DOUBLE
+         */
+        public byte getElementType() {
+            if(array instanceof long[]) return TYPE_INT64;
+            if(array instanceof float[]) return TYPE_FLOAT;
+            if(array instanceof double[]) return TYPE_DOUBLE;
+            byte ret = TYPE_INT8;
+            for(int v : (int[])array) {
+                if(v!=(short)v) return TYPE_INT32;
+                if(v!=(byte)v) ret = TYPE_INT16;
+            }
+            return ret;
+        }
+
+        @Override
+        public AsonValue get(int index) {
+            if(index<0 || index>=size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+            AsonValue ret = new AsonValue();
+            ret.load(this, index);
+            ret.value = new PackedSlot(this, index);
+            return ret;
+        }
+
+        /**
+         * copy the numbers into element nodes not bound to this array.
+         * @return 
+         */
+        AsonArray unpack() {
+            AsonArray ret = new AsonArray(size);
+            for(int i=0;i<size;++i) {
+                AsonValue v = new AsonValue();
+                v.load(this, i);
+                ret.add(v);
+            }
+            return ret;
+        }
+
+        /**
+         * store a number into the array.
+         * @return false if the number does not fit the element type.
+         */
+        private boolean store(int index, Number n) {
+            boolean integral = n instanceof Byte || n instanceof Short || n instanceof Integer || n instanceof Long;
+            if(array instanceof int[]) {
+                if(!integral || n.longValue()!=n.intValue()) return false;
+                ((int[])array)[index] = n.intValue();
+            } else if(array instanceof long[]) {
+                if(!integral) return false;
+                ((long[])array)[index] = n.longValue();
+            } else if(array instanceof float[]) {
+                if(!(n instanceof Float) && !(n instanceof Double && (double)n.floatValue()==n.doubleValue())) return false;
+                ((float[])array)[index] = n.floatValue();
+            } else {
+                if(!(n instanceof Float) && !(n instanceof Double)) return false;
+                ((double[])array)[index] = n.doubleValue();
+            }
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+    /**
+     * value of the root node, holds the dictionary of the tree.
+     */
+    private static final class Root {
+        final AbstractKeyDictionary dict;
+        Object value;
+
+        Root(AbstractKeyDictionary dict) {
+            this.dict = dict;
+        }
+    }
+    /**
+     * value of an element node of a PackedArray, changes of the node are written to the array.
+     */
+    private static final class PackedSlot {
+        final PackedArray owner;
+        final int index;
+
+        PackedSlot(PackedArray owner, int index) {
+            this.owner = owner;
+            this.index = index;
+        }
+    }
+
+    /**
+     * set this node to an element of a packed array.
+     */
+    private void load(PackedArray p, int index) {
+        Object a = p.array();
+        if(a instanceof int[]) {
+            setLong(((int[])a)[index]);
+        } else if(a instanceof long[]) {
+            setLong(((long[])a)[index]);
+        } else if(a instanceof float[]) {
+            setFloat(((float[])a)[index]);
+        } else {
+            type = TYPE_DOUBLE;
+            bits = Double.doubleToRawLongBits(((double[])a)[index]);
+        }
+    }
+
+    /**
+     * Unordered object map. small maps are kept in a linear array, larger ones
+     * in an open addressing table with linear probing.
+     */
+    public static class AsonObject extends AsonMap {
+        private int keys[];
+        private AsonValue vals[];
+        private int size;
+        private boolean hashed;
+
+        public AsonObject() { this(SMALL_SIZE); }
+        public AsonObject(int initialCapacity) {
+            if(initialCapacity<=SMALL_SIZE) {
+                keys = new int[SMALL_SIZE];
+                vals = new AsonValue[SMALL_SIZE];
+            } else {
+                hashed = true;
+                int cap = tableSize(initialCapacity);
+                keys = new int[cap];
+                vals = new AsonValue[cap];
+            }
+        }
+
+        private int find(int key) {
+            if(!hashed) {
+                for(int i=0;i<size;++i) {
+                    if(keys[i]==key) return i;
+                }
+                return -1;
+            }
+            int mask = keys.length-1;
+            for(int i=hash(key)&mask;vals[i]!=null;i=(i+1)&mask) {
+                if(keys[i]==key) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public AsonValue get(int key) {
+            int i = find(key);
+            return i<0?null:vals[i];
+        }
+
+        @Override
+        public AsonValue put(int key, AsonValue value) {
+            if(value==null) return remove(key);
+            int i = find(key);
+            if(i>=0) {
+                AsonValue old = vals[i];
+                vals[i] = value;
+                return old;
+            }
+            if(!hashed) {
+                if(size<SMALL_SIZE) {
+                    keys[size] = key;
+                    vals[size++] = value;
+                    return null;
+                }
+                rehash(tableSize(size+1));
+            } else if((size+1)*4>keys.length*3) {
+                rehash(keys.length*2);
+            }
+            insert(key, value);
+            ++size;
+            return null;
+        }
+
+        private void insert(int key, AsonValue value) {
+            int mask = keys.length-1;
+            int i = hash(key)&mask;
+            while(vals[i]!=null) i = (i+1)&mask;
+            keys[i] = key;
+            vals[i] = value;
+        }
+
+        private void rehash(int cap) {
+            int ok[] = keys;
+            AsonValue ov[] = vals;
+            keys = new int[cap];
+            vals = new AsonValue[cap];
+            hashed = true;
+            for(int i=0;i<ov.length;++i) {
+                if(ov[i]!=null) insert(ok[i], ov[i]);
+            }
+        }
+
+        @Override
+        public AsonValue remove(int key) {
+            int i = find(key);
+            if(i<0) return null;
+            AsonValue old = vals[i];
+            --size;
+            if(!hashed) {
+                keys[i] = keys[size];
+                vals[i] = vals[size];
+                vals[size] = null;
+                return old;
+            }
+            // backward shift deletion, keeps probe chains intact without tombstones
+            int mask = keys.length-1;
+            vals[i] = null;
+            for(int j=(i+1)&mask;vals[j]!=null;j=(j+1)&mask) {
+                int h = hash(keys[j])&mask;
+                if(i<=j?(h<=i || h>j):(h<=i && h>j)) {
+                    keys[i] = keys[j];
+                    vals[i] = vals[j];
+                    vals[j] = null;
+                    i = j;
+                }
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            java.util.Arrays.fill(vals, null);
+            size = 0;
+        }
+
+        @Override
+        public int size() { return size; }
+        @Override
+        public int slots() { return hashed?vals.length:size; }
+        @Override
+        public int keyAt(int slot) { return keys[slot]; }
+        @Override
+        public AsonValue valueAt(int slot) { return vals[slot]; }
     }
-    public static class AsonObjectOrdered extends LinkedHashMap<Integer, AsonValue> {
-        public AsonObjectOrdered() { super(); }
-        public AsonObjectOrdered(int initialCapacity) { super(initialCapacity); }
+    /**
+     * Insertion ordered object map. entries are kept in insertion order in parallel arrays,
+     * maps larger than SMALL_SIZE get an open addressing index of entry positions.
+     */
+    public static class AsonObjectOrdered extends AsonMap {
+        private int keys[];
+        private AsonValue vals[];
+        private int size;
+        private int index[]; // entry position+1, 0 for empty. null for small maps
+
+        public AsonObjectOrdered() { this(SMALL_SIZE); }
+        public AsonObjectOrdered(int initialCapacity) {
+            initialCapacity = Math.max(initialCapacity, 4);
+            keys = new int[initialCapacity];
+            vals = new AsonValue[initialCapacity];
+        }
+
+        private int find(int key) {
+            if(index==null) {
+                for(int i=0;i<size;++i) {
+                    if(keys[i]==key) return i;
+                }
+                return -1;
+            }
+            int mask = index.length-1;
+            for(int h=hash(key)&mask;index[h]!=0;h=(h+1)&mask) {
+                if(keys[index[h]-1]==key) return index[h]-1;
+            }
+            return -1;
+        }
+
+        @Override
+        public AsonValue get(int key) {
+            int i = find(key);
+            return i<0?null:vals[i];
+        }
+
+        @Override
+        public AsonValue put(int key, AsonValue value) {
+            if(value==null) return remove(key);
+            int i = find(key);
+            if(i>=0) {
+                AsonValue old = vals[i];
+                vals[i] = value;
+                return old;
+            }
+            if(size==keys.length) {
+                keys = java.util.Arrays.copyOf(keys, size*2);
+                vals = java.util.Arrays.copyOf(vals, size*2);
+            }
+            keys[size] = key;
+            vals[size++] = value;
+            if(index!=null && size*2<=index.length) {
+                indexEntry(size-1);
+            } else if(size>SMALL_SIZE) {
+                reindex();
+            }
+            return null;
+        }
+
+        private void indexEntry(int pos) {
+            int mask = index.length-1;
+            int h = hash(keys[pos])&mask;
+            while(index[h]!=0) h = (h+1)&mask;
+            index[h] = pos+1;
+        }
+
+        private void reindex() {
+            if(size<=SMALL_SIZE) {
+                index = null;
+                return;
+            }
+            index = new int[tableSize(size)];
+            for(int i=0;i<size;++i) indexEntry(i);
+        }
+
+        @Override
+        public AsonValue remove(int key) {
+            int i = find(key);
+            if(i<0) return null;
+            AsonValue old = vals[i];
+            --size;
+            System.arraycopy(keys, i+1, keys, i, size-i);
+            System.arraycopy(vals, i+1, vals, i, size-i);
+            vals[size] = null;
+            if(index!=null) reindex();
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            java.util.Arrays.fill(vals, 0, size, null);
+            size = 0;
+            index = null;
+        }
+
+        @Override
+        public int size() { return size; }
+        @Override
+        public int slots() { return size; }
+        @Override
+        public int keyAt(int slot) { return keys[slot]; }
+        @Override
+        public AsonValue valueAt(int slot) { return vals[slot]; }
     }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only key dictionary safe for concurrent use, to share one set of key ids between
+ * documents built by many threads:
+ * <pre>
+ * static final ConcurrentKeyDictionary DICT = new ConcurrentKeyDictionary();
+ * AsonValue doc = Ason.CreateRootObject(DICT);
+ * </pre>
+ * Lookups take no lock. A new key is inserted once through ConcurrentHashMap.computeIfAbsent,
+ * so each key gets exactly one id and ids stay dense. id to name slots live in fixed size chunks,
+ * a lock is only taken when a new chunk is added. Ids are claimed by a compare-and-set of their slot,
+ * so add and put never give one id to two names.
+ * Keys can not be removed or remapped.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class ConcurrentKeyDictionary extends AbstractKeyDictionary {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1<<CHUNK_BITS;
+    private static final int MAX_DENSE_ID = 1<<24; // larger ids go to sparseNames
+
+    private final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<String> chunks[] = newChunks(16);
+    private final ConcurrentHashMap<Integer,String> sparseNames = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    public ConcurrentKeyDictionary() {
+    }
+
+    /**
+     * Create dictionary with entries of map.
+     * @param map name to id map, KEY_NEXT_IDVAL entry of old dictionaries is ignored.
+     */
+    @SuppressWarnings("deprecation")
+    public ConcurrentKeyDictionary(Map<String,Integer> map) {
+        this();
+        for(Map.Entry<String,Integer> e : map.entrySet()) {
+            if(AsonValue.KEY_NEXT_IDVAL.equals(e.getKey())) continue;
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private static AtomicReferenceArray<String>[] newChunks(int n) {
+        return new AtomicReferenceArray[n];
+    }
+
+    @Override
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return id==null?0:id;
+    }
+
+    @Override
+    public String getName(int id) {
+        if(id<0) return null;
+        if(id>=MAX_DENSE_ID) return sparseNames.get(id);
+        AtomicReferenceArray<String> cs[] = chunks;
+        int c = id>>>CHUNK_BITS;
+        if(c>=cs.length || cs[c]==null) return null;
+        return cs[c].get(id&(CHUNK_SIZE-1));
+    }
+
+    @Override
+    public int add(String name) {
+        Integer id = ids.get(name);
+        if(id!=null) return id;
+        return ids.computeIfAbsent(name, n -> {
+            int nid;
+            do {
+                nid = nextId.getAndIncrement();
+            } while(!claimName(nid, n)); // skip ids taken by put, published before the id becomes visible in ids
+            return nid;
+        });
+    }
+
+    /**
+     * add a key with given id, for loading a predefined dictionary.
+     * @param name key name
+     * @param id key id
+     * @return id of name before, null if it is new.
+     * @throws IllegalStateException if name has another id or id is taken by another name.
+     */
+    @Override
+    public Integer put(String name, Integer id) {
+        boolean added[] = new boolean[1];
+        Integer old = ids.computeIfAbsent(name, n -> {
+            if(!claimName(id, n)) {
+                String other = getName(id);
+                if(!n.equals(other)) throw new IllegalStateException("Key id "+id+" is used by "+other);
+            }
+            int v;
+            while((v = nextId.get())<=id && !nextId.compareAndSet(v, id+1)) {
+            }
+            added[0] = true;
+            return id;
+        });
+        if(!old.equals(id)) throw new IllegalStateException("Key "+name+" has id "+old);
+        return added[0]?null:old;
+    }
+
+    /**
+     * set the name of a free id.
+     * @return false if id has a name already.
+     */
+    private boolean claimName(int id, String name) {
+        if(id>=MAX_DENSE_ID) {
+            return sparseNames.putIfAbsent(id, name)==null;
+        }
+        int c = id>>>CHUNK_BITS;
+        AtomicReferenceArray<String> cs[] = chunks;
+        if(c>=cs.length || cs[c]==null) cs = addChunk(c);
+        return cs[c].compareAndSet(id&(CHUNK_SIZE-1), null, name);
+    }
+
+    private synchronized AtomicReferenceArray<String>[] addChunk(int c) {
+        AtomicReferenceArray<String> cs[] = chunks;
+        if(c>=cs.length) {
+            int n = cs.length;
+            while(n<=c) n *= 2;
+            cs = java.util.Arrays.copyOf(cs, n);
+        }
+        if(cs[c]==null) cs[c] = new AtomicReferenceArray<>(CHUNK_SIZE);
+        chunks = cs;
+        return cs;
+    }
+
+    @Override
+    public int getMaxId() {
+        return nextId.get()-1;
+    }
+
+    @Override
+    public Integer get(Object name) {
+        return ids.get(name);
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return ids.containsKey(name);
+    }
+
+    @Override
+    public Integer remove(Object name) {
+        throw new UnsupportedOperationException("ConcurrentKeyDictionary is append only.");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("ConcurrentKeyDictionary is append only.");
+    }
+
+    @Override
+    public int size() {
+        return ids.size();
+    }
+
+    @Override
+    public Set<Entry<String,Integer>> entrySet() {
+        return Collections.unmodifiableMap(ids).entrySet();
+    }
+}
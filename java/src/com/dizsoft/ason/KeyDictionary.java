@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Key dictionary of an ason tree, maps key names to key ids and back.
+ * id to name lookups use an array indexed by id, ids far above the dictionary size are kept aside in a map.
+ * New ids are taken from an atomic counter, starting at 1.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class KeyDictionary extends AbstractKeyDictionary {
+    private final HashMap<String,Integer> ids;
+    private String names[];
+    private HashMap<Integer,String> sparseNames; // ids too large for names[]
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private int maxId;
+
+    public KeyDictionary() {
+        this(16);
+    }
+
+    public KeyDictionary(int initCapacity) {
+        ids = new HashMap<>(Math.max(16, initCapacity*4/3+1));
+        names = new String[Math.max(16, initCapacity+1)];
+    }
+
+    /**
+     * Create dictionary with entries of map.
+     * @param map name to id map, KEY_NEXT_IDVAL entry of old dictionaries is ignored.
+     */
+    @SuppressWarnings("deprecation")
+    public KeyDictionary(Map<String,Integer> map) {
+        this(map.size());
+        for(Map.Entry<String,Integer> e : map.entrySet()) {
+            if(AsonValue.KEY_NEXT_IDVAL.equals(e.getKey())) continue;
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return id==null?0:id;
+    }
+
+    @Override
+    public String getName(int id) {
+        if(id>=0 && id<names.length) return names[id];
+        return sparseNames==null?null:sparseNames.get(id);
+    }
+
+    @Override
+    public int add(String name) {
+        Integer id = ids.get(name);
+        if(id!=null) return id;
+        int nid = nextId.getAndIncrement();
+        put(name, nid);
+        return nid;
+    }
+
+    @Override
+    public int getMaxId() {
+        return maxId;
+    }
+
+    @Override
+    public Integer put(String name, Integer id) {
+        Integer old = ids.put(name, id);
+        if(old!=null && !old.equals(id)) clearName(old);
+        setName(id, name);
+        if(id>maxId) maxId = id;
+        int n;
+        while((n = nextId.get())<=id && !nextId.compareAndSet(n, id+1)) {
+        }
+        return old;
+    }
+
+    private void setName(int id, String name) {
+        if(id>=0 && id<names.length) {
+            names[id] = name;
+        } else if(id>=0 && id<Math.max(1024, ids.size()*4)) {
+            int size = names.length;
+            while(size<=id) size *= 2;
+            names = java.util.Arrays.copyOf(names, size);
+            names[id] = name;
+            if(sparseNames!=null) {
+                // sparse ids now in range of names[] would not be found anymore
+                java.util.Iterator<Map.Entry<Integer,String>> it = sparseNames.entrySet().iterator();
+                while(it.hasNext()) {
+                    Map.Entry<Integer,String> e = it.next();
+                    if(e.getKey()>=size) continue;
+                    names[e.getKey()] = e.getValue();
+                    it.remove();
+                }
+            }
+        } else {
+            if(sparseNames==null) sparseNames = new HashMap<>();
+            sparseNames.put(id, name);
+        }
+    }
+
+    private void clearName(int id) {
+        if(id>=0 && id<names.length) {
+            names[id] = null;
+        } else if(sparseNames!=null) {
+            sparseNames.remove(id);
+        }
+    }
+
+    @Override
+    public Integer get(Object name) {
+        return ids.get(name);
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return ids.containsKey(name);
+    }
+
+    @Override
+    public Integer remove(Object name) {
+        Integer id = ids.remove(name);
+        if(id!=null) clearName(id);
+        return id;
+    }
+
+    @Override
+    public void clear() {
+        ids.clear();
+        java.util.Arrays.fill(names, null);
+        sparseNames = null;
+        maxId = 0;
+        nextId.set(1);
+    }
+
+    @Override
+    public int size() {
+        return ids.size();
+    }
+
+    @Override
+    public Set<Entry<String,Integer>> entrySet() {
+        return Collections.unmodifiableMap(ids).entrySet();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Properties of a plain java class, for binding ason data to objects without AsonValue tree.
+ * A property is a non-static, non-transient field of any visibility, or a public getter (getX/isX) with its setter.
+ * A getter/setter pair takes over the field of the same name.
+ * The properties of a record are its components, read by their accessors and set through the canonical constructor.
+ * Records are found by reflection, so the class also loads on JDKs without them.
+ * Accessors are resolved once into method handles adapted to a few fixed shapes, so primitive values are not boxed,
+ * and the binding of each class is cached.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class ObjectBinding {
+    public static final int KIND_OBJECT  = 0;
+    public static final int KIND_BOOLEAN = 1;
+    public static final int KIND_BYTE    = 2;
+    public static final int KIND_SHORT   = 3;
+    public static final int KIND_CHAR    = 4;
+    public static final int KIND_INT     = 5;
+    public static final int KIND_LONG    = 6;
+    public static final int KIND_FLOAT   = 7;
+    public static final int KIND_DOUBLE  = 8;
+
+    private static final ConcurrentHashMap<Class<?>,ObjectBinding> CACHE = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_INDEX = new AtomicInteger();
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Method IS_RECORD = classMethod("isRecord");
+    private static final Method RECORD_COMPONENTS = classMethod("getRecordComponents");
+
+    private final Class<?> type;
+    private final int index;
+    private final MethodHandle constructor; // ()Object, null if there is no no-arg constructor
+    private final MethodHandle canonical; // (Object[])Object constructor of a record, null for other classes
+    private final Object defaults[]; // constructor arguments of absent record components
+    private final Property properties[];
+    private final Map<String,Property> byName;
+
+    /**
+     * get the binding of a class, it is created on first use.
+     * @param type class of the objects
+     * @return binding
+     * @throws IllegalArgumentException if type is an interface, array, primitive or abstract class.
+     */
+    public static ObjectBinding of(Class<?> type) {
+        ObjectBinding ret = CACHE.get(type);
+        if(ret!=null) return ret;
+        return CACHE.computeIfAbsent(type, ObjectBinding::new);
+    }
+
+    private ObjectBinding(Class<?> type) {
+        if(type.isInterface() || type.isArray() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers())) {
+            throw new IllegalArgumentException("Can not bind "+type.getName());
+        }
+        this.type = type;
+        this.index = NEXT_INDEX.getAndIncrement();
+        MethodHandle c = null;
+        try {
+            Constructor<?> ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            c = LOOKUP.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+        } catch(NoSuchMethodException|IllegalAccessException|SecurityException e) {
+            // write only
+        }
+        this.constructor = c;
+        Map<String,Property> props = new LinkedHashMap<>();
+        Object components[] = recordComponents(type);
+        if(components!=null) {
+            Class<?> types[] = new Class<?>[components.length];
+            defaults = new Object[components.length];
+            try {
+                for(int i=0;i<components.length;++i) {
+                    Object rc = components[i];
+                    Class<?> rt = rc.getClass();
+                    String name = (String)rt.getMethod("getName").invoke(rc);
+                    Method accessor = (Method)rt.getMethod("getAccessor").invoke(rc);
+                    types[i] = accessor.getReturnType();
+                    defaults[i] = types[i].isPrimitive()?java.lang.reflect.Array.get(java.lang.reflect.Array.newInstance(types[i], 1), 0):null;
+                    props.put(name, methodProperty(name, accessor, null));
+                }
+                Constructor<?> ctor = type.getDeclaredConstructor(types);
+                ctor.setAccessible(true);
+                canonical = LOOKUP.unreflectConstructor(ctor).asSpreader(Object[].class, types.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            } catch(ReflectiveOperationException|SecurityException e) {
+                throw new IllegalArgumentException("Can not bind "+type.getName(), e);
+            }
+            this.properties = props.values().toArray(new Property[props.size()]);
+            for(int i=0;i<properties.length;++i) properties[i].index = i;
+            this.byName = props;
+            return;
+        }
+        canonical = null;
+        defaults = null;
+        List<Class<?>> chain = new ArrayList<>();
+        for(Class<?> k=type;k!=null && k!=Object.class;k=k.getSuperclass()) chain.add(0, k);
+        for(Class<?> k : chain) {
+            for(Field f : k.getDeclaredFields()) {
+                int m = f.getModifiers();
+                if(Modifier.isStatic(m) || Modifier.isTransient(m) || f.isSynthetic()) continue;
+                props.put(f.getName(), fieldProperty(f));
+            }
+        }
+        Map<String,Method> getters = new LinkedHashMap<>();
+        Map<String,Method> setters = new HashMap<>();
+        for(Method m : type.getMethods()) {
+            if(Modifier.isStatic(m.getModifiers()) || m.isBridge() || m.getDeclaringClass()==Object.class) continue;
+            String n = m.getName();
+            if(m.getParameterCount()==0 && m.getReturnType()!=void.class) {
+                if(n.length()>3 && n.startsWith("get")) getters.put(decapitalize(n.substring(3)), m);
+                else if(n.length()>2 && n.startsWith("is") && m.getReturnType()==boolean.class) getters.put(decapitalize(n.substring(2)), m);
+            } else if(m.getParameterCount()==1 && n.length()>3 && n.startsWith("set")) {
+                setters.put(decapitalize(n.substring(3)), m);
+            }
+        }
+        for(Map.Entry<String,Method> e : getters.entrySet()) {
+            Method g = e.getValue();
+            Method s = setters.get(e.getKey());
+            if(s!=null && s.getParameterTypes()[0]!=g.getReturnType()) s = null;
+            Property f = props.get(e.getKey());
+            if(s==null && f!=null) continue; // keep the field, it can be set
+            props.put(e.getKey(), methodProperty(e.getKey(), g, s));
+        }
+        this.properties = props.values().toArray(new Property[props.size()]);
+        for(int i=0;i<properties.length;++i) properties[i].index = i;
+        this.byName = props;
+    }
+
+    /**
+     * get the class of this binding.
+     * @return
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * get the sequence number of this binding, for per reader lookup tables.
+     * @return index, unique per bound class.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * get all properties, superclass fields first.
+     * @return properties, the array must not be modified.
+     */
+    public Property[] getProperties() {
+        return properties;
+    }
+
+    /**
+     * @param name property name
+     * @return property, null if there is none of name.
+     */
+    public Property getProperty(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * check if the class is a record, whose objects are created by newRecord.
+     * @return
+     */
+    public boolean isRecord() {
+        return canonical!=null;
+    }
+
+    /**
+     * get the constructor arguments of a record without any component set, 0 or false for primitive components.
+     * @return new array, in the order of getProperties().
+     */
+    public Object[] recordArguments() {
+        return defaults.clone();
+    }
+
+    /**
+     * create a record through its canonical constructor.
+     * @param args values of the components, in the order of getProperties(). primitives are boxed in their own type.
+     * @return new record
+     * @throws IllegalStateException if the class is not a record.
+     */
+    public Object newRecord(Object args[]) {
+        if(canonical==null) throw new IllegalStateException(type.getName()+" is not a record.");
+        try {
+            return (Object)canonical.invokeExact(args);
+        } catch(RuntimeException|Error e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * create an object through the no-arg constructor.
+     * @return new object
+     * @throws IllegalStateException if the class has no no-arg constructor.
+     */
+    public Object newInstance() {
+        if(constructor==null) throw new IllegalStateException(type.getName()+" has no no-arg constructor.");
+        try {
+            return (Object)constructor.invokeExact();
+        } catch(RuntimeException|Error e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Property fieldProperty(Field f) {
+        try {
+            f.setAccessible(true);
+            MethodHandle g = LOOKUP.unreflectGetter(f);
+            MethodHandle s = Modifier.isFinal(f.getModifiers())?null:LOOKUP.unreflectSetter(f);
+            return new Property(f.getName(), f.getType(), f.getGenericType(), g, s);
+        } catch(IllegalAccessException|SecurityException e) {
+            throw new IllegalArgumentException("Can not access "+f, e);
+        }
+    }
+
+    private static Property methodProperty(String name, Method g, Method s) {
+        try {
+            g.setAccessible(true); // public methods of non-public classes
+            if(s!=null) s.setAccessible(true);
+            return new Property(name, g.getReturnType(), g.getGenericReturnType(), LOOKUP.unreflect(g), s==null?null:LOOKUP.unreflect(s));
+        } catch(IllegalAccessException|SecurityException e) {
+            throw new IllegalArgumentException("Can not access "+g, e);
+        }
+    }
+
+    private static Method classMethod(String name) {
+        try {
+            return Class.class.getMethod(name);
+        } catch(NoSuchMethodException e) {
+            return null; // before java 16
+        }
+    }
+
+    /**
+     * @return RecordComponent[] of type, null if it is not a record.
+     */
+    private static Object[] recordComponents(Class<?> type) {
+        if(IS_RECORD==null) return null;
+        try {
+            if(!(Boolean)IS_RECORD.invoke(type)) return null;
+            return (Object[])RECORD_COMPONENTS.invoke(type);
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Can not bind "+type.getName(), e);
+        }
+    }
+
+    private static String decapitalize(String s) {
+        if(s.length()>1 && Character.isUpperCase(s.charAt(0)) && Character.isUpperCase(s.charAt(1))) return s; // URL stays URL
+        return Character.toLowerCase(s.charAt(0))+s.substring(1);
+    }
+
+    private static int kindOf(Class<?> c) {
+        if(c==boolean.class) return KIND_BOOLEAN;
+        if(c==byte.class) return KIND_BYTE;
+        if(c==short.class) return KIND_SHORT;
+        if(c==char.class) return KIND_CHAR;
+        if(c==int.class) return KIND_INT;
+        if(c==long.class) return KIND_LONG;
+        if(c==float.class) return KIND_FLOAT;
+        if(c==double.class) return KIND_DOUBLE;
+        return KIND_OBJECT;
+    }
+
+    /**
+     * one property of a bound class. integral primitives are read and written as long,
+     * float and double as double, so the accessors take one of four shapes.
+     */
+    public static final class Property {
+        private final String name;
+        private final Class<?> type;
+        private final Type genericType;
+        private final int kind;
+        private final MethodHandle getter; // (Object)Object, (Object)long, (Object)double or (Object)boolean
+        private final MethodHandle setter; // (Object,X)void of the same X, null if read only
+        private int index;
+
+        Property(String name, Class<?> type, Type genericType, MethodHandle getter, MethodHandle setter) {
+            this.name = name;
+            this.type = type;
+            this.genericType = genericType;
+            this.kind = kindOf(type);
+            Class<?> x = kind==KIND_OBJECT?Object.class:(kind==KIND_BOOLEAN?boolean.class:(kind>=KIND_FLOAT?double.class:long.class));
+            this.getter = MethodHandles.explicitCastArguments(getter, MethodType.methodType(x, Object.class));
+            this.setter = setter==null?null:MethodHandles.explicitCastArguments(setter, MethodType.methodType(void.class, Object.class, x));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class<?> getType() {
+            return type;
+        }
+
+        /**
+         * @return position in getProperties() of its binding.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public Type getGenericType() {
+            return genericType;
+        }
+
+        /**
+         * @return KIND_XXX of the property type.
+         */
+        public int getKind() {
+            return kind;
+        }
+
+        public boolean isWritable() {
+            return setter!=null;
+        }
+
+        public Object get(Object bean) {
+            try {
+                return (Object)getter.invokeExact(bean);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        public long getLong(Object bean) {
+            try {
+                return (long)getter.invokeExact(bean);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        public double getDouble(Object bean) {
+            try {
+                return (double)getter.invokeExact(bean);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        public boolean getBoolean(Object bean) {
+            try {
+                return (boolean)getter.invokeExact(bean);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        public void set(Object bean, Object v) {
+            try {
+                setter.invokeExact(bean, v);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        /**
+         * set an integral property, v is narrowed to its type without check.
+         */
+        public void setLong(Object bean, long v) {
+            try {
+                setter.invokeExact(bean, v);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        public void setDouble(Object bean, double v) {
+            try {
+                setter.invokeExact(bean, v);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        public void setBoolean(Object bean, boolean v) {
+            try {
+                setter.invokeExact(bean, v);
+            } catch(Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        private static RuntimeException rethrow(Throwable e) {
+            if(e instanceof RuntimeException) return (RuntimeException)e;
+            if(e instanceof Error) throw (Error)e;
+            return new IllegalStateException(e);
+        }
+    }
+}
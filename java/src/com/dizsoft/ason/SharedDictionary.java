@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only key dictionary known to both sides in advance, so messages need not carry key names.
+ * A document built on a registered dictionary and serialized with Ason.FLAG_DICTNONE only writes
+ * the 24 bit hash id of the dictionary in its header, parsers look the id up in the local registry:
+ * <pre>
+ * SharedDictionary dict = Ason.RegisterDictionary(names);   // on both sides
+ * AsonValue doc = Ason.CreateRootObject(dict);
+ * Ason.Serialize(doc, os, Ason.FLAG_DICTNONE);
+ * </pre>
+ * The hash id is computed from the (id,name) entries, so it is the same on every process
+ * registering the same entries. Adding a key not in the dictionary throws IllegalArgumentException.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class SharedDictionary extends KeyDictionary {
+    public static final int HASHID_MASK = 0x00FFFFFF;
+
+    private static final ConcurrentHashMap<Integer,SharedDictionary> registry = new ConcurrentHashMap<>();
+
+    private final int hashId;
+    private final boolean sealed;
+
+    /**
+     * Create dictionary with entries of map, it is not registered.
+     * @param map name to id map, KEY_NEXT_IDVAL entry of old dictionaries is ignored.
+     */
+    public SharedDictionary(Map<String,Integer> map) {
+        super(map);
+        hashId = computeHashId(this);
+        sealed = true;
+    }
+
+    /**
+     * get the hash id written in message headers.
+     * @return 24 bit hash id
+     */
+    public int getHashId() {
+        return hashId;
+    }
+
+    /**
+     * Register dictionary, registering equal entries again returns the registered one.
+     * @param dict dictionary
+     * @return registered dictionary
+     * @throws IllegalStateException if another dictionary with the same hash id is registered.
+     */
+    public static SharedDictionary register(SharedDictionary dict) {
+        SharedDictionary old = registry.putIfAbsent(dict.hashId, dict);
+        if(old==null) return dict;
+        if(!sameEntries(old, dict)) {
+            throw new IllegalStateException("Dictionary hash id 0x"+Integer.toHexString(dict.hashId)+" is used by another dictionary.");
+        }
+        return old;
+    }
+
+    /**
+     * find registered dictionary.
+     * @param hashId 24 bit hash id
+     * @return dictionary, null if not registered.
+     */
+    public static SharedDictionary lookup(int hashId) {
+        return registry.get(hashId&HASHID_MASK);
+    }
+
+    /**
+     * remove registered dictionary.
+     * @param hashId 24 bit hash id
+     * @return removed dictionary, null if not registered.
+     */
+    public static SharedDictionary unregister(int hashId) {
+        return registry.remove(hashId&HASHID_MASK);
+    }
+
+    @Override
+    public int add(String name) {
+        int id = getId(name);
+        if(id==0) throw new IllegalArgumentException("Key "+name+" is not in shared dictionary.");
+        return id;
+    }
+
+    @Override
+    public Integer put(String name, Integer id) {
+        if(sealed) throw new UnsupportedOperationException("SharedDictionary is read only.");
+        return super.put(name, id);
+    }
+
+    @Override
+    public Integer remove(Object name) {
+        throw new UnsupportedOperationException("SharedDictionary is read only.");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("SharedDictionary is read only.");
+    }
+
+    private static boolean sameEntries(KeyDictionary a, KeyDictionary b) {
+        if(a.size()!=b.size()) return false;
+        for(Map.Entry<String,Integer> e : a.entrySet()) {
+            if(b.getId(e.getKey())!=e.getValue()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a over the entries in id order, folded to 24 bits.
+     */
+    private static int computeHashId(KeyDictionary dict) {
+        List<Map.Entry<String,Integer>> entries = new ArrayList<>(dict.entrySet());
+        Collections.sort(entries, (a, b) -> Integer.compare(a.getValue(), b.getValue()));
+        long h = 0xcbf29ce484222325L;
+        for(Map.Entry<String,Integer> e : entries) {
+            int id = e.getValue();
+            for(int i=24;i>=0;i-=8) {
+                h = (h^((id>>>i)&0xFF))*0x100000001b3L;
+            }
+            byte b[] = e.getKey().getBytes(StandardCharsets.UTF_8);
+            h = (h^b.length)*0x100000001b3L;
+            for(byte c : b) {
+                h = (h^(c&0xFF))*0x100000001b3L;
+            }
+        }
+        return (int)(h^(h>>>24)^(h>>>48))&HASHID_MASK;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered input source for ason data.
+ * All primitive reads work directly on the internal buffer, subclasses only need to refill it.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public abstract class AsonInput {
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected byte buf[];
+    protected int pos;
+    protected int limit;
+    /**
+     * source position of buf[0].
+     */
+    protected long offset;
+
+    private byte scratch[];
+
+    /**
+     * Make sure at least n bytes are available in buf between pos and limit.
+     * @param n bytes needed.
+     * @return false if the source has less than n bytes left.
+     * @throws IOException
+     */
+    protected abstract boolean fill(int n) throws IOException;
+
+    /**
+     * get the count of bytes consumed from this input.
+     * @return
+     */
+    public final long position() {
+        return offset+pos;
+    }
+
+    /**
+     * peek the next byte without consuming it.
+     * @return next byte (0-255), or -1 at the end of input.
+     * @throws IOException
+     */
+    public final int peek() throws IOException {
+        if(pos>=limit && !fill(1)) return -1;
+        return buf[pos]&0xFF;
+    }
+
+    /**
+     * read one byte.
+     * @return next byte (0-255), or -1 at the end of input.
+     * @throws IOException
+     */
+    public final int read() throws IOException {
+        if(pos>=limit && !fill(1)) return -1;
+        return buf[pos++]&0xFF;
+    }
+
+    /**
+     * read up to len bytes into b.
+     * @param b destination
+     * @param off offset in b
+     * @param len bytes wanted
+     * @return bytes read, -1 at the end of input.
+     * @throws IOException
+     */
+    public final int read(byte b[], int off, int len) throws IOException {
+        if(len==0) return 0;
+        if(pos>=limit && !fill(Math.min(len, buf.length)) && pos>=limit && !fill(1)) return -1;
+        int n = Math.min(len, limit-pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public final byte readByte() throws IOException {
+        require(1);
+        return buf[pos++];
+    }
+
+    public final int readUint8() throws IOException {
+        require(1);
+        return buf[pos++]&0xFF;
+    }
+
+    public final short readInt16() throws IOException {
+        require(2);
+        int p = pos;
+        pos += 2;
+        return (short)((buf[p]<<8) | (buf[p+1]&0xFF));
+    }
+
+    public final int readUint16() throws IOException {
+        require(2);
+        int p = pos;
+        pos += 2;
+        return ((buf[p]&0xFF)<<8) | (buf[p+1]&0xFF);
+    }
+
+    public final int readInt32() throws IOException {
+        require(4);
+        int p = pos;
+        pos += 4;
+        return (buf[p]<<24) | ((buf[p+1]&0xFF)<<16) | ((buf[p+2]&0xFF)<<8) | (buf[p+3]&0xFF);
+    }
+
+    public final long readInt64() throws IOException {
+        require(8);
+        int p = pos;
+        pos += 8;
+        int hi = (buf[p]<<24) | ((buf[p+1]&0xFF)<<16) | ((buf[p+2]&0xFF)<<8) | (buf[p+3]&0xFF);
+        int lo = (buf[p+4]<<24) | ((buf[p+5]&0xFF)<<16) | ((buf[p+6]&0xFF)<<8) | (buf[p+7]&0xFF);
+        return ((long)hi<<32) | (lo&0xFFFFFFFFL);
+    }
+
+    /**
+     * read an unsigned LEB128 varint of up to 32 bits.
+     * @return value, taken as unsigned 32 bits.
+     * @throws IOException if the varint is longer than 5 bytes.
+     */
+    public final int readVarint() throws IOException {
+        if(pos<limit && buf[pos]>=0) return buf[pos++]; // most ids and lengths are one byte
+        int v = 0;
+        for(int shift=0;shift<35;shift+=7) {
+            int b = readByte();
+            v |= (b&0x7F)<<shift;
+            if(b>=0) return v;
+        }
+        throw new IOException("invalid varint");
+    }
+
+    /**
+     * read an unsigned LEB128 varint of up to 64 bits.
+     * @return value, taken as unsigned 64 bits.
+     * @throws IOException if the varint is longer than 10 bytes.
+     */
+    public final long readVarint64() throws IOException {
+        if(pos<limit && buf[pos]>=0) return buf[pos++];
+        long v = 0;
+        for(int shift=0;shift<70;shift+=7) {
+            int b = readByte();
+            v |= (long)(b&0x7F)<<shift;
+            if(b>=0) return v;
+        }
+        throw new IOException("invalid varint");
+    }
+
+    public final float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt32());
+    }
+
+    public final double readDouble() throws IOException {
+        return Double.longBitsToDouble(readInt64());
+    }
+
+    /**
+     * read exactly len bytes into b.
+     * @param b destination
+     * @param off offset in b
+     * @param len bytes to read
+     * @throws IOException
+     */
+    public final void readFully(byte b[], int off, int len) throws IOException {
+        while(len>0) {
+            if(pos>=limit && !fill(Math.min(len, buf.length))) throw new EOFException();
+            int n = Math.min(len, limit-pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public final byte[] readBytes(int len) throws IOException {
+        byte b[] = new byte[len];
+        readFully(b, 0, len);
+        return b;
+    }
+
+    /**
+     * read len bytes of UTF-8 string. decodes straight from the internal buffer when possible.
+     * @param len length in bytes
+     * @return decoded string
+     * @throws IOException
+     */
+    public final String readString(int len) throws IOException {
+        if(limit-pos>=len || (len<=buf.length && fill(len))) {
+            String s = new String(buf, pos, len, UTF8);
+            pos += len;
+            return s;
+        }
+        return new String(readBytes(len), UTF8);
+    }
+
+    /**
+     * read a \0 terminated UTF-8 string. (the \0 is consumed)
+     * @return decoded string
+     * @throws IOException
+     */
+    public final String readCString() throws IOException {
+        int n = 0;
+        for(;;) {
+            if(pos>=limit && !fill(1)) throw new EOFException();
+            int s = pos;
+            while(pos<limit && buf[pos]!=0) ++pos;
+            if(pos<limit) {
+                String ret;
+                if(n==0) {
+                    ret = new String(buf, s, pos-s, UTF8);
+                } else {
+                    n = appendScratch(n, buf, s, pos-s);
+                    ret = new String(scratch, 0, n, UTF8);
+                }
+                ++pos;
+                return ret;
+            }
+            n = appendScratch(n, buf, s, pos-s);
+        }
+    }
+
+    /**
+     * read stream mode bytes: [len][data]...[len][data][0]
+     * @return the joined data
+     * @throws IOException
+     */
+    public final byte[] readChunkedBytes() throws IOException {
+        int n = 0;
+        int len;
+        while((len = readUint8())!=0) {
+            if(scratch==null || scratch.length<n+len) growScratch(n+len);
+            readFully(scratch, n, len);
+            n += len;
+        }
+        byte ret[] = new byte[n];
+        if(n>0) System.arraycopy(scratch, 0, ret, 0, n);
+        return ret;
+    }
+
+    /**
+     * skip n bytes.
+     * @param n bytes to skip
+     * @throws IOException
+     */
+    public void skip(long n) throws IOException {
+        while(n>0) {
+            if(pos>=limit && !fill((int)Math.min(n, buf.length))) throw new EOFException();
+            int c = (int)Math.min(n, limit-pos);
+            pos += c;
+            n -= c;
+        }
+    }
+
+    /**
+     * skip a \0 terminated string.
+     * @throws IOException
+     */
+    public final void skipCString() throws IOException {
+        for(;;) {
+            if(pos>=limit && !fill(1)) throw new EOFException();
+            while(pos<limit) {
+                if(buf[pos++]==0) return;
+            }
+        }
+    }
+
+    /**
+     * skip stream mode bytes: [len][data]...[len][data][0]
+     * @throws IOException
+     */
+    public final void skipChunkedBytes() throws IOException {
+        int len;
+        while((len = readUint8())!=0) skip(len);
+    }
+
+    /**
+     * get an input over bytes [from,to) of this input without copying, positions counted as position().
+     * only inputs holding all their data in memory have views.
+     * @param from start position
+     * @param to end position
+     * @return input over the bytes, or null if this input has no views.
+     */
+    public AsonInput view(long from, long to) {
+        return null;
+    }
+
+    protected final void require(int n) throws IOException {
+        if(limit-pos<n && !fill(n)) throw new EOFException();
+    }
+
+    private int appendScratch(int n, byte b[], int off, int len) {
+        if(scratch==null || scratch.length<n+len) growScratch(n+len);
+        System.arraycopy(b, off, scratch, n, len);
+        return n+len;
+    }
+
+    private void growScratch(int min) {
+        int size = scratch==null?256:scratch.length*2;
+        while(size<min) size*=2;
+        byte ns[] = new byte[size];
+        if(scratch!=null) System.arraycopy(scratch, 0, ns, 0, scratch.length);
+        scratch = ns;
+    }
+}
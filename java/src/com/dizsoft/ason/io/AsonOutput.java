@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered output target for ason data.
+ * All writes go straight into a ByteBuffer (heap or direct), subclasses only need to drain it.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public abstract class AsonOutput {
+    protected ByteBuffer buf;
+    protected long drained; // bytes taken out of buf by drain or flush, less the start position of buf
+
+    /**
+     * Make room for at least n bytes in buf.
+     * @param n bytes needed.
+     * @throws IOException
+     */
+    protected abstract void drain(int n) throws IOException;
+
+    /**
+     * write all buffered bytes to the target.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+    }
+
+    /**
+     * get the count of bytes written through this output.
+     * @return bytes written
+     */
+    public final long position() {
+        return drained+buf.position();
+    }
+
+    public final void writeByte(int v) throws IOException {
+        if(!buf.hasRemaining()) drain(1);
+        buf.put((byte)v);
+    }
+
+    public final void writeInt16(int v) throws IOException {
+        if(buf.remaining()<2) drain(2);
+        buf.putShort((short)v);
+    }
+
+    public final void writeInt32(int v) throws IOException {
+        if(buf.remaining()<4) drain(4);
+        buf.putInt(v);
+    }
+
+    public final void writeInt64(long v) throws IOException {
+        if(buf.remaining()<8) drain(8);
+        buf.putLong(v);
+    }
+
+    /**
+     * write v as an unsigned LEB128 varint, 7 bits per byte with the high bit set on all but the last.
+     * @param v value, taken as unsigned 32 bits.
+     * @throws IOException
+     */
+    public final void writeVarint(int v) throws IOException {
+        if(buf.remaining()<5) drain(5);
+        while((v&~0x7F)!=0) {
+            buf.put((byte)(v|0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    /**
+     * write v as an unsigned LEB128 varint of up to 10 bytes.
+     * @param v value, taken as unsigned 64 bits.
+     * @throws IOException
+     */
+    public final void writeVarint64(long v) throws IOException {
+        if(buf.remaining()<10) drain(10);
+        while((v&~0x7FL)!=0) {
+            buf.put((byte)(v|0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    public final void writeFloat(float v) throws IOException {
+        writeInt32(Float.floatToIntBits(v));
+    }
+
+    public final void writeDouble(double v) throws IOException {
+        writeInt64(Double.doubleToLongBits(v));
+    }
+
+    public final void write(byte b[]) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public final void write(byte b[], int off, int len) throws IOException {
+        while(len>0) {
+            if(!buf.hasRemaining()) drain(Math.min(len, 4096));
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * write s encoded as UTF-8, without \0 tail. unpaired surrogates are written as '?' like String.getBytes.
+     * @param s string to write
+     * @throws IOException
+     */
+    public final void writeUtf8(String s) throws IOException {
+        writeUtf8(s, 0, s.length());
+    }
+
+    /**
+     * write chars [start,end) of s encoded as UTF-8.
+     * @param s string to write
+     * @param start first char index
+     * @param end char index after the last one
+     * @throws IOException
+     */
+    public final void writeUtf8(String s, int start, int end) throws IOException {
+        for(int i=start;i<end;++i) {
+            char c = s.charAt(i);
+            if(c<0x80) {
+                if(!buf.hasRemaining()) drain(1);
+                buf.put((byte)c);
+            } else if(c<0x800) {
+                if(buf.remaining()<2) drain(2);
+                buf.put((byte)(0xC0|(c>>6)));
+                buf.put((byte)(0x80|(c&0x3F)));
+            } else if(Character.isHighSurrogate(c) && i+1<end && Character.isLowSurrogate(s.charAt(i+1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                if(buf.remaining()<4) drain(4);
+                buf.put((byte)(0xF0|(cp>>18)));
+                buf.put((byte)(0x80|((cp>>12)&0x3F)));
+                buf.put((byte)(0x80|((cp>>6)&0x3F)));
+                buf.put((byte)(0x80|(cp&0x3F)));
+            } else if(Character.isSurrogate(c)) {
+                if(!buf.hasRemaining()) drain(1);
+                buf.put((byte)'?');
+            } else {
+                if(buf.remaining()<3) drain(3);
+                buf.put((byte)(0xE0|(c>>12)));
+                buf.put((byte)(0x80|((c>>6)&0x3F)));
+                buf.put((byte)(0x80|(c&0x3F)));
+            }
+        }
+    }
+}
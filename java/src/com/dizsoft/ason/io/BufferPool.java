@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-thread cache of reusable output buffers.
+ * Each thread keeps one buffer, a nested acquire on the same thread gets a new one.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, true);
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ThreadLocal<ByteBuffer> cache = new ThreadLocal<>();
+
+    public BufferPool(int bufferSize, boolean direct) {
+        this.bufferSize = Math.max(16, bufferSize);
+        this.direct = direct;
+    }
+
+    /**
+     * get the default pool of direct buffers.
+     * @return
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * take a cleared buffer from the pool.
+     * @return
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer b = cache.get();
+        if(b!=null) {
+            cache.set(null);
+            b.clear();
+            return b;
+        }
+        return direct?ByteBuffer.allocateDirect(bufferSize):ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * give a buffer back to the pool.
+     * @param b buffer taken by acquire()
+     */
+    public void release(ByteBuffer b) {
+        if(b.capacity()==bufferSize && b.isDirect()==direct) cache.set(b);
+    }
+}
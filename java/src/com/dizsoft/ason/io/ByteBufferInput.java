@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AsonInput reading from a ByteBuffer, between its position and limit.
+ * Heap buffers are read in place, direct buffers are copied in chunks into a fixed buffer.
+ * The position of the given buffer is not changed.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class ByteBufferInput extends AsonInput {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final ByteBuffer src;
+
+    public ByteBufferInput(ByteBuffer buffer) {
+        if(buffer.hasArray()) {
+            src = null;
+            buf = buffer.array();
+            pos = buffer.arrayOffset()+buffer.position();
+            limit = buffer.arrayOffset()+buffer.limit();
+            offset = -pos;
+        } else {
+            src = buffer.duplicate();
+            buf = new byte[Math.min(CHUNK_SIZE, Math.max(16, src.remaining()))];
+        }
+    }
+
+    @Override
+    public AsonInput view(long from, long to) {
+        if(src!=null) return null;
+        return new ByteArrayInput(buf, (int)(from-offset), (int)(to-from));
+    }
+
+    @Override
+    protected boolean fill(int n) {
+        if(src==null) return limit-pos>=n;
+        int left = limit-pos;
+        if(left+src.remaining()<n) return false;
+        if(n>buf.length) {
+            byte nb[] = new byte[Math.max(n, buf.length*2)];
+            System.arraycopy(buf, pos, nb, 0, left);
+            buf = nb;
+        } else if(left>0) {
+            System.arraycopy(buf, pos, buf, 0, left);
+        }
+        offset += pos;
+        pos = 0;
+        limit = left;
+        int c = Math.min(buf.length-limit, src.remaining());
+        src.get(buf, limit, c);
+        limit += c;
+        return true;
+    }
+}
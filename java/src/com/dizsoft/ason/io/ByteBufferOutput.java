@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * AsonOutput writing into a ByteBuffer.
+ * A caller supplied buffer is filled from its position and never replaced, writing past its limit
+ * throws BufferOverflowException. A buffer created by this output grows as needed.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class ByteBufferOutput extends AsonOutput {
+    private final boolean growable;
+
+    /**
+     * write into target, from its position. its byte order is set to big endian.
+     * @param target caller supplied buffer
+     */
+    public ByteBufferOutput(ByteBuffer target) {
+        buf = target.order(ByteOrder.BIG_ENDIAN);
+        drained = -buf.position();
+        growable = false;
+    }
+
+    /**
+     * write into a growable buffer.
+     * @param initCapacity init capacity
+     * @param direct allocate direct buffer or not
+     */
+    public ByteBufferOutput(int initCapacity, boolean direct) {
+        initCapacity = Math.max(16, initCapacity);
+        buf = direct?ByteBuffer.allocateDirect(initCapacity):ByteBuffer.allocate(initCapacity);
+        growable = true;
+    }
+
+    @Override
+    protected void drain(int n) {
+        if(!growable) throw new BufferOverflowException();
+        int size = buf.capacity()*2;
+        while(size-buf.position()<n) size *= 2;
+        ByteBuffer nb = buf.isDirect()?ByteBuffer.allocateDirect(size):ByteBuffer.allocate(size);
+        buf.flip();
+        nb.put(buf);
+        buf = nb;
+    }
+
+    /**
+     * get the buffer written to, its position is at the end of the written data.
+     * @return
+     */
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    /**
+     * get a copy of the written data.
+     * @return
+     */
+    public byte[] toByteArray() {
+        byte ret[] = new byte[buf.position()];
+        ByteBuffer d = buf.duplicate();
+        d.flip();
+        d.get(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * AsonOutput writing to a WritableByteChannel through a (usually direct) ByteBuffer,
+ * so socket writes need no heap to native copy.
+ * call flush() when done and release() to give a pooled buffer back.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class ChannelOutput extends AsonOutput {
+    private final WritableByteChannel channel;
+    private final BufferPool pool;
+
+    /**
+     * @param channel target channel, must be in blocking mode.
+     * @param pool buffer is taken from this pool.
+     */
+    public ChannelOutput(WritableByteChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        buf = pool.acquire().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @param channel target channel, must be in blocking mode.
+     * @param buffer caller supplied buffer, it is cleared and set to big endian before use.
+     */
+    public ChannelOutput(WritableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.pool = null;
+        buf = buffer.order(ByteOrder.BIG_ENDIAN);
+        buf.clear();
+    }
+
+    @Override
+    protected void drain(int n) throws IOException {
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drained += buf.position();
+        buf.flip();
+        while(buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * give the buffer back to the pool, this output can not be used after that.
+     */
+    public void release() {
+        if(pool!=null && buf!=null) pool.release(buf);
+        buf = null;
+    }
+}
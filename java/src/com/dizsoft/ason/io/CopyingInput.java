@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * AsonInput reading from another input and keeping all bytes read, to read them again through views.
+ * Bytes are taken from the source only as they are needed, the source is left right after the last byte read.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class CopyingInput extends AsonInput {
+    private final AsonInput src;
+
+    public CopyingInput(AsonInput src) {
+        this.src = src;
+        buf = new byte[256];
+    }
+
+    @Override
+    protected boolean fill(int n) throws IOException {
+        int need = n-(limit-pos);
+        if(need<=0) return true;
+        if(limit+need>buf.length) buf = Arrays.copyOf(buf, Math.max(limit+need, buf.length*2));
+        while(need>0) {
+            int r = src.read(buf, limit, need);
+            if(r<0) return false;
+            limit += r;
+            need -= r;
+        }
+        return true;
+    }
+
+    @Override
+    public AsonInput view(long from, long to) {
+        return new ByteArrayInput(buf, (int)(from-offset), (int)(to-from));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * AsonInput reading from an InputStream with bulk refill of a fixed buffer.
+ * Bytes may be read ahead from the stream, reuse the same StreamInput to parse consecutive data.
+ * An exact StreamInput reads only the bytes asked for, the stream is left at the end of the parsed data,
+ * at the cost of more reads on the stream.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class StreamInput extends AsonInput {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream is;
+    private final boolean exact;
+    private boolean eof;
+
+    public StreamInput(InputStream is) {
+        this(is, DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamInput(InputStream is, int bufferSize) {
+        this(is, bufferSize, false);
+    }
+
+    /**
+     * @param is source stream
+     * @param bufferSize initial buffer size
+     * @param exact never read ahead of the requested bytes
+     */
+    public StreamInput(InputStream is, int bufferSize, boolean exact) {
+        this.is = is;
+        this.exact = exact;
+        buf = new byte[Math.max(16, bufferSize)];
+    }
+
+    @Override
+    protected boolean fill(int n) throws IOException {
+        int left = limit-pos;
+        if(left>=n) return true;
+        if(eof) return false;
+        if(n>buf.length) {
+            byte nb[] = new byte[Math.max(n, buf.length*2)];
+            System.arraycopy(buf, pos, nb, 0, left);
+            buf = nb;
+        } else if(left>0) {
+            System.arraycopy(buf, pos, buf, 0, left);
+        }
+        offset += pos;
+        pos = 0;
+        limit = left;
+        while(limit<n) {
+            int r = is.read(buf, limit, (exact?n:buf.length)-limit);
+            if(r<0) {
+                eof = true;
+                return false;
+            }
+            limit += r;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * AsonOutput writing to an OutputStream through a fixed heap buffer.
+ * call flush() when done, the stream itself is not flushed or closed.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class StreamOutput extends AsonOutput {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final OutputStream os;
+
+    public StreamOutput(OutputStream os) {
+        this(os, DEFAULT_BUFFER_SIZE);
+    }
+
+    public StreamOutput(OutputStream os, int bufferSize) {
+        this.os = os;
+        buf = ByteBuffer.allocate(Math.max(16, bufferSize));
+    }
+
+    @Override
+    protected void drain(int n) throws IOException {
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(buf.position()>0) {
+            os.write(buf.array(), buf.arrayOffset(), buf.position());
+            drained += buf.position();
+            buf.clear();
+        }
+    }
+}
@@ -25,15 +25,24 @@
  */
 package com.dizsoft.ason.parser;
 
+import com.dizsoft.ason.AbstractKeyDictionary;
 import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonSchema;
 import com.dizsoft.ason.AsonValue;
-import com.dizsoft.ason.utils.Utils;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import com.dizsoft.ason.KeyDictionary;
+import com.dizsoft.ason.SharedDictionary;
+import com.dizsoft.ason.io.AsonInput;
+import com.dizsoft.ason.io.ByteArrayInput;
+import com.dizsoft.ason.io.ByteBufferInput;
+import com.dizsoft.ason.io.StreamInput;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  *
@@ -42,6 +51,27 @@ import java.util.Map;
 public class AsonParser {
     public static final int FLAG_ASON          = 0x80000000;
     public static final int FLAG_BIGID         = 0x40000000;
+    /**
+     * no dictionary table follows, low 24 bits of header are the hash id of a SharedDictionary.
+     */
+    public static final int FLAG_SHAREDDICT    = 0x20000000;
+    /**
+     * key ids, dictionary ids, lengths and counts are unsigned LEB128 varints, container types are always the x1 variant.
+     * a key id is written as (id&lt;&lt;1)|inline.
+     */
+    public static final int FLAG_VARINT        = 0x10000000;
+    /**
+     * with FLAG_SHAREDDICT, low 24 bits are the hash id of an AsonSchema and the body is written by schema position.
+     */
+    public static final int FLAG_SCHEMA        = 0x08000000;
+    /**
+     * an index table follows the root value, see INDEX_MAGIC.
+     */
+    public static final int FLAG_INDEX         = 0x04000000;
+    /**
+     * dict table size bits of the header.
+     */
+    public static final int DICT_SIZE_MASK     = 0x00FFFFFF;
 
     public static final byte TYPE_STRING1 = (byte) 0xA1;
     public static final byte TYPE_STRING2 = (byte) 0xA2;
@@ -55,47 +85,470 @@ public class AsonParser {
     public static final byte TYPE_OBJECT1 = (byte) 0xF1;
     public static final byte TYPE_OBJECT2 = (byte) 0xF2;
     public static final byte TYPE_OBJECT4 = (byte) 0xF4;
+    /**
+     * packed number array: [element type (1byte)][count (1/2/4byte)][count values of element type without type byte]
+     */
+    public static final byte TYPE_PACKED1 = (byte) 0xB1;
+    public static final byte TYPE_PACKED2 = (byte) 0xB2;
+    public static final byte TYPE_PACKED4 = (byte) 0xB4;
+    /**
+     * columnar array of objects: [rows (1/2/4byte)][key count (1/2/4byte)][*key]...[*key][column]...[column]
+     * column: [flags (1byte)][absent bitmap (*)][null bitmap (*)][array of the other values in row order]
+     */
+    public static final byte TYPE_TABLE1  = (byte) 0xC1;
+    public static final byte TYPE_TABLE2  = (byte) 0xC2;
+    public static final byte TYPE_TABLE4  = (byte) 0xC4;
+    /**
+     * column flag, a bitmap of rows without the key follows. ((rows+7)/8 bytes, bit i&amp;7 of byte i/8 is row i)
+     */
+    public static final int TABLE_ABSENT = 0x01;
+    /**
+     * column flag, a bitmap of rows with null value follows.
+     */
+    public static final int TABLE_NULL   = 0x02;
+    /**
+     * last 4 bytes of an index table, "AIDX". The index table is
+     * [size (4byte)][entry]...[entry][directory]...[directory][entry count (4byte)][directory count (4byte)][magic (4byte)],
+     * size is the bytes after it, so readers of a stream skip the table, AsonLazyValue reads it from the end.
+     * a directory [first entry (4byte)][entry count (4byte)] lists the children of one container, in pre-order of
+     * the containers with the root first. an entry is [key (4byte)][offset in parent (4byte)][directory (4byte)]:
+     * key id in objects (sorted by key) or element index in arrays, offset of the child from the type byte of its
+     * container, and directory of the child, -1 if it is not a container. packed arrays have no directory.
+     */
+    public static final int INDEX_MAGIC  = 0x41494458;
+    /**
+     * struct mode containers of at least this many bytes are split among tasks by parse(ByteBuffer,ForkJoinPool).
+     */
+    public static final int PARALLEL_THRESHOLD = 1<<20;
+    private static final int PARALLEL_CHUNK = 64<<10; // bytes of children parsed by one task
 
-    protected Map<String,Integer> dictMap = new HashMap<>();
+    protected AbstractKeyDictionary dictMap;
     protected AsonValue rootNode;
     protected boolean flagBigId;
+    protected boolean flagVarint;
     protected int dictMode;
+    protected final AbstractKeyDictionary session;
+    private boolean dictComplete; // inline keys were collected already, they are skipped without adding
+
+    public AsonParser() {
+        this(null);
+    }
+
+    /**
+     * Create session parser, for messages written by a session AsonSerializer.
+     * keys read are kept in session, all messages of the connection must be parsed in order.
+     * @param session session dictionary, shared by all parsed values.
+     */
+    public AsonParser(AbstractKeyDictionary session) {
+        this.session = session;
+    }
 
     public AsonValue parse(InputStream asonInputStream) throws java.io.IOException {
-        byte tmp[] = new byte[4];
-        DataInputStream dis = new DataInputStream(asonInputStream);
+        return parse(new StreamInput(asonInputStream));
+    }
+
+    public AsonValue parse(byte data[]) throws java.io.IOException {
+        return parse(new ByteArrayInput(data));
+    }
+
+    public AsonValue parse(byte data[], int off, int len) throws java.io.IOException {
+        return parse(new ByteArrayInput(data, off, len));
+    }
+
+    public AsonValue parse(ByteBuffer buffer) throws java.io.IOException {
+        return parse(new ByteBufferInput(buffer));
+    }
+
+    public AsonValue parse(AsonInput in) throws java.io.IOException {
+        return parse(in, null, null);
+    }
+
+    /**
+     * Parse with the children of large struct mode containers decoded in parallel.
+     * the boundaries of the children are found by their lengths, then ranges of children are parsed by tasks of pool
+     * and put back in order. inline keys are read by each task into its own dictionary and added to the result when it ends.
+     * containers below PARALLEL_THRESHOLD bytes and stream mode containers are parsed in one task.
+     * @param buffer ason data between position and limit
+     * @param pool pool running the tasks
+     * @return AsonValue created
+     * @throws IOException
+     */
+    public AsonValue parse(ByteBuffer buffer, ForkJoinPool pool) throws java.io.IOException {
+        ByteBuffer data = buffer.slice();
+        return parse(new ByteBufferInput(data), data, pool);
+    }
 
-        dis.readFully(tmp,0,4);
-        long tas = Utils.Bytes2Uint32(tmp, 0);
+    private AsonValue parse(AsonInput in, ByteBuffer data, ForkJoinPool pool) throws IOException {
+        dictComplete = false;
+        long tas = in.readInt32()&0xFFFFFFFFL;
         if((tas&FLAG_ASON)==0) return null;
+        boolean indexed = (tas&FLAG_INDEX)!=0;
         flagBigId = (tas&FLAG_BIGID)!=0;
-        tas &= 0x0FFFFFFF;
-//        len-=tas;
-        while(tas>0) {
-            Integer id;
-            if(flagBigId) {
-                dis.readFully(tmp, 0, 4);
-                tas-=4;
-                id = Utils.Bytes2Int32(tmp, 0);
+        flagVarint = (tas&FLAG_VARINT)!=0;
+        if((tas&(FLAG_SHAREDDICT|FLAG_SCHEMA))==(FLAG_SHAREDDICT|FLAG_SCHEMA)) {
+            AsonSchema schema = AsonSchema.lookup((int)tas);
+            if(schema==null) throw new IOException("unknown schema: 0x"+Integer.toHexString((int)tas&SharedDictionary.HASHID_MASK));
+            dictMap = schema.getDictionary();
+            this.rootNode = Ason.CreateRootObject(this.dictMap);
+            return root(parseSchemaValue(in, schema.getRoot()));
+        } else if((tas&FLAG_SHAREDDICT)!=0) {
+            dictMap = sharedDictionary((int)tas);
+            tas = 0;
+        } else {
+            tas &= DICT_SIZE_MASK;
+            dictMap = session!=null?session:new KeyDictionary();
+        }
+        long end = in.position()+tas;
+        while(in.position()<end) {
+            int id = flagVarint?in.readVarint():(flagBigId?in.readInt32():in.readInt16());
+            int len = in.readUint8();
+            dictMap.put(in.readString(len), id);
+        }
+
+        this.rootNode = Ason.CreateRootObject(this.dictMap);
+        if(pool!=null) {
+            // only documents without dict table have inline keys
+            ContainerTask root = new ContainerTask(this, data, (int)in.position(), tas==0 && !(dictMap instanceof SharedDictionary));
+            try {
+                return root(pool.invoke(root));
+            } catch(UncheckedIOException e) {
+                throw ioException(e);
+            }
+        }
+        AsonValue ret = parseValue(in);
+        if(indexed) skipIndex(in);
+        return root(ret);
+    }
+
+    /**
+     * move the parsed top value into the root node, the node holding the dictionary.
+     */
+    private AsonValue root(AsonValue top) {
+        rootNode.setValue(top);
+        return rootNode;
+    }
+
+    private static IOException ioException(Throwable e) {
+        for(Throwable t=e;t!=null;t=t.getCause()) {
+            if(t instanceof IOException) return (IOException)t;
+        }
+        return new IOException(e.getMessage(), e);
+    }
+
+    /**
+     * parser for a task of parse(ByteBuffer,ForkJoinPool), sharing the root of this one.
+     * @param collect the document has inline keys, the new parser reads them into its own dictionary, see merge
+     */
+    private AsonParser fork(boolean collect) {
+        AsonParser ret = new AsonParser(session);
+        ret.dictMap = collect?new KeyDictionary():dictMap;
+        ret.rootNode = rootNode;
+        ret.flagBigId = flagBigId;
+        ret.flagVarint = flagVarint;
+        ret.dictComplete = !collect;
+        return ret;
+    }
+
+    /**
+     * add the inline keys read by a forked parser to the dictionary of the document.
+     */
+    private void merge(AsonParser ps) {
+        if(ps.dictComplete || ps.dictMap.isEmpty()) return;
+        synchronized(dictMap) {
+            dictMap.putAll(ps.dictMap);
+        }
+    }
+
+    private static ByteBufferInput input(ByteBuffer data, int from, int to) {
+        ByteBuffer b = data.duplicate();
+        b.limit(to).position(from);
+        return new ByteBufferInput(b);
+    }
+
+    /**
+     * parse the value at an offset, a large struct mode container is split into RangeTasks.
+     */
+    private static final class ContainerTask extends RecursiveTask<AsonValue> {
+        private static final long serialVersionUID = 1L;
+        private final AsonParser parser;
+        private final ByteBuffer data;
+        private final int offset;
+        private final boolean collect;
+
+        /**
+         * @param collect the document has inline keys, see fork
+         */
+        ContainerTask(AsonParser parser, ByteBuffer data, int offset, boolean collect) {
+            this.parser = parser;
+            this.data = data;
+            this.offset = offset;
+            this.collect = collect;
+        }
+
+        @Override
+        protected AsonValue compute() {
+            try {
+                return parse();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private AsonValue parse() throws IOException {
+            AsonParser ps = parser.fork(collect);
+            AsonInput in = input(data, offset, data.limit());
+            byte type = in.readByte();
+            boolean obj = type==TYPE_OBJECT1 || type==TYPE_OBJECT2 || type==TYPE_OBJECT4;
+            if(!obj && type!=TYPE_ARRAY1 && type!=TYPE_ARRAY2 && type!=TYPE_ARRAY4) {
+                return serial(ps);
+            }
+            int len = ps.readLen(in, type&0x0F);
+            if(len<0 || in.position()+len>data.limit()-offset) throw new IOException("invalid container length");
+            if(len<PARALLEL_THRESHOLD) {
+                return serial(ps);
+            }
+            // boundary scan
+            long end = in.position()+len;
+            int offs[] = new int[64];
+            int keys[] = obj?new int[64]:null;
+            int n = 0;
+            while(in.position()<end) {
+                if(n+1>=offs.length) {
+                    offs = Arrays.copyOf(offs, offs.length*2);
+                    if(obj) keys = Arrays.copyOf(keys, offs.length);
+                }
+                if(obj) keys[n] = ps.parseId(in);
+                offs[n++] = offset+(int)in.position();
+                ps.skipValue(in);
+            }
+            offs[n] = offset+(int)end;
+            parser.merge(ps);
+            AsonValue vals[] = new AsonValue[n];
+            if(n>0) new RangeTask(parser, data, offs, vals, 0, n, collect).invoke();
+            if(obj) {
+                AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered(n);
+                for(int i=0;i<n;++i) m.put(keys[i], vals[i]);
+                return new AsonValue(parser.rootNode, m);
+            }
+            AsonValue.AsonArray l = new AsonValue.AsonArray(n);
+            for(int i=0;i<n;++i) l.add(vals[i]);
+            return new AsonValue(parser.rootNode, l);
+        }
+
+        private AsonValue serial(AsonParser ps) throws IOException {
+            AsonValue ret = ps.parseValue(input(data, offset, data.limit()));
+            parser.merge(ps);
+            return ret;
+        }
+    }
+
+    /**
+     * parse children [from,to) of a scanned container into vals.
+     */
+    private static final class RangeTask extends RecursiveTask<Void> {
+        private static final long serialVersionUID = 1L;
+        private final AsonParser parser;
+        private final ByteBuffer data;
+        private final int offs[];
+        private final AsonValue vals[];
+        private final int from;
+        private final int to;
+        private final boolean collect;
+
+        RangeTask(AsonParser parser, ByteBuffer data, int offs[], AsonValue vals[], int from, int to, boolean collect) {
+            this.parser = parser;
+            this.data = data;
+            this.offs = offs;
+            this.vals = vals;
+            this.from = from;
+            this.to = to;
+            this.collect = collect;
+        }
+
+        @Override
+        protected Void compute() {
+            if(to-from==1 && offs[to]-offs[from]>=PARALLEL_THRESHOLD) {
+                vals[from] = new ContainerTask(parser, data, offs[from], collect).compute();
+            } else if(to-from==1 || offs[to]-offs[from]<=PARALLEL_CHUNK) {
+                AsonParser ps = parser.fork(collect);
+                AsonInput in = input(data, offs[from], offs[to]);
+                try {
+                    for(int i=from;i<to;++i) vals[i] = ps.parseValue(in);
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                parser.merge(ps);
             } else {
-                dis.readFully(tmp, 0, 2);
-                tas-=2;
-                id = Utils.Bytes2Int16(tmp, 0);
+                int mid = (from+to)>>>1;
+                ForkJoinTask.invokeAll(new RangeTask(parser, data, offs, vals, from, mid, collect), new RangeTask(parser, data, offs, vals, mid, to, collect));
             }
-            int len = dis.read();
-            byte d[] = new byte[len];
-            dis.readFully(d);
-            tas-=1+len;
-            dictMap.put(new String(d,"UTF-8"), id);
+            return null;
         }
+    }
 
-        this.rootNode = Ason.CreateRootObject(this.dictMap);
-        return parseValue(dis,new Param());
+    /**
+     * skip the value at the input, struct mode containers by their length.
+     */
+    private void skipValue(AsonInput in) throws IOException {
+        byte type = in.readByte();
+        switch(type) {
+            case AsonValue.TYPE_NULL:
+            case AsonValue.TYPE_TRUE:
+            case AsonValue.TYPE_FALSE: return;
+            case AsonValue.TYPE_INT8: in.skip(1); return;
+            case AsonValue.TYPE_INT16: in.skip(2); return;
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_FLOAT: in.skip(4); return;
+            case AsonValue.TYPE_INT64:
+            case AsonValue.TYPE_DOUBLE: in.skip(8); return;
+            case AsonValue.TYPE_STRING: in.skipCString(); return;
+            case AsonValue.TYPE_BYTES: in.skipChunkedBytes(); return;
+            case AsonValue.TYPE_ARRAY:
+                while(in.peek()!=0) skipValue(in);
+                in.readByte();
+                return;
+            case AsonValue.TYPE_OBJECT:
+                while(parseId(in)!=0) skipValue(in);
+                return;
+        }
+        int sl = type&0x0F;
+        if(sl!=1 && sl!=2 && sl!=4) throw new IOException("invalid ason type: 0x"+Integer.toHexString(type&0xFF));
+        switch(type&0xF0) {
+            case 0xA0:
+            case 0xD0:
+                in.skip(readLen(in, sl));
+                return;
+            case 0xB0: {
+                byte et = in.readByte();
+                int n = readLen(in, sl);
+                int w = packedWidth(et);
+                if(w==0 || n<0) throw new IOException("invalid packed array");
+                in.skip((long)n*w);
+                return;
+            }
+            case 0xC0: {
+                int rows = readLen(in, sl);
+                int nk = readLen(in, sl);
+                if(rows<0 || nk<0) throw new IOException("invalid table size");
+                for(int k=0;k<nk;++k) parseId(in);
+                for(int k=0;k<nk;++k) {
+                    int flags = in.readUint8();
+                    if((flags&TABLE_ABSENT)!=0) in.skip((rows+7)>>3);
+                    if((flags&TABLE_NULL)!=0) in.skip((rows+7)>>3);
+                    skipValue(in);
+                }
+                return;
+            }
+            case 0xE0:
+            case 0xF0:
+                in.skip(readLen(in, sl));
+                return;
+        }
+        throw new IOException("invalid ason type: 0x"+Integer.toHexString(type&0xFF));
     }
 
-    private AsonValue parseValue(DataInputStream dis, Param p) throws IOException {
-        byte type = dis.readByte();
-        if(p!=null) p.i = 1;
+    /**
+     * skip the index table after the root value of a FLAG_INDEX document.
+     * @param in input positioned after the root value
+     * @throws IOException if the table is invalid.
+     */
+    public static void skipIndex(AsonInput in) throws IOException {
+        long size = in.readInt32()&0xFFFFFFFFL;
+        if(size<12) throw new IOException("invalid index table.");
+        in.skip(size-4);
+        if(in.readInt32()!=INDEX_MAGIC) throw new IOException("invalid index table.");
+    }
+
+    /**
+     * find the registered dictionary of a FLAG_SHAREDDICT header.
+     * @param header message header
+     * @return dictionary
+     * @throws IOException if the dictionary is not registered.
+     */
+    public static SharedDictionary sharedDictionary(int header) throws IOException {
+        if((header&FLAG_SCHEMA)!=0) throw new IOException("schema message, it can only be read by AsonParser.");
+        SharedDictionary ret = SharedDictionary.lookup(header);
+        if(ret==null) throw new IOException("unknown shared dictionary: 0x"+Integer.toHexString(header&SharedDictionary.HASHID_MASK));
+        return ret;
+    }
+
+    /**
+     * read value of schema field f. see AsonSchema
+     */
+    private AsonValue parseSchemaValue(AsonInput in, AsonSchema.Field f) throws IOException {
+        byte ft = f.getType();
+        if(ft==AsonSchema.TYPE_ANY) {
+            AsonValue v = parseValue(in);
+            if(v==null) throw new IOException("invalid schema field value");
+            return v;
+        }
+        if(f.isNullable() && in.readByte()==0) return new AsonValue(rootNode, null);
+        switch(ft) {
+            case AsonValue.TYPE_TRUE:
+                return new AsonValue(rootNode, in.readByte()!=0);
+            case AsonValue.TYPE_INT8:
+                return new AsonValue(rootNode, (long)in.readByte());
+            case AsonValue.TYPE_INT16:
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_INT64:
+                return new AsonValue(rootNode, readZigzag(in));
+            case AsonValue.TYPE_FLOAT:
+                return new AsonValue(rootNode, in.readFloat());
+            case AsonValue.TYPE_DOUBLE:
+                return new AsonValue(rootNode, in.readDouble(), false);
+            case AsonValue.TYPE_STRING:
+                return new AsonValue(rootNode, in.readString(schemaLength(in)));
+            case AsonValue.TYPE_BYTES:
+                return new AsonValue(rootNode, in.readBytes(schemaLength(in)));
+            case AsonValue.TYPE_ARRAY: {
+                int n = schemaLength(in);
+                AsonSchema.Field e = f.getElement();
+                byte et = e.getType();
+                if(!e.isNullable() && et>=AsonValue.TYPE_INT8 && et<=AsonValue.TYPE_INT64) {
+                    if(et==AsonValue.TYPE_INT64) {
+                        long a[] = new long[n];
+                        for(int i=0;i<n;++i) a[i] = readZigzag(in);
+                        return new AsonValue(rootNode, a);
+                    }
+                    int a[] = new int[n];
+                    for(int i=0;i<n;++i) a[i] = et==AsonValue.TYPE_INT8?in.readByte():(int)readZigzag(in);
+                    return new AsonValue(rootNode, a);
+                } else if(!e.isNullable() && et==AsonValue.TYPE_DOUBLE) {
+                    double a[] = new double[n];
+                    for(int i=0;i<n;++i) a[i] = in.readDouble();
+                    return new AsonValue(rootNode, a);
+                } else if(!e.isNullable() && et==AsonValue.TYPE_FLOAT) {
+                    float a[] = new float[n];
+                    for(int i=0;i<n;++i) a[i] = in.readFloat();
+                    return new AsonValue(rootNode, a);
+                }
+                AsonValue.AsonArray l = new AsonValue.AsonArray(Math.min(n, 1024));
+                for(int i=0;i<n;++i) l.add(parseSchemaValue(in, e));
+                return new AsonValue(rootNode, l);
+            }
+            case AsonValue.TYPE_OBJECT: {
+                AsonSchema.Field fs[] = f.getFields();
+                AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered(fs.length);
+                for(AsonSchema.Field c : fs) m.put(c.getId(), parseSchemaValue(in, c));
+                return new AsonValue(rootNode, m);
+            }
+        }
+        throw new IOException("invalid schema field type: 0x"+Integer.toHexString(ft&0xFF));
+    }
+
+    private static long readZigzag(AsonInput in) throws IOException {
+        long l = in.readVarint64();
+        return (l>>>1)^-(l&1);
+    }
+
+    private static int schemaLength(AsonInput in) throws IOException {
+        int n = in.readVarint();
+        if(n<0) throw new IOException("invalid length: "+(n&0xFFFFFFFFL));
+        return n;
+    }
+
+    private AsonValue parseValue(AsonInput in) throws IOException {
+        byte type = in.readByte();
         if(type==AsonValue.TYPE_NULL) {
             return new AsonValue(rootNode,null);
         } else if(type==AsonValue.TYPE_TRUE) {
@@ -103,159 +556,216 @@ public class AsonParser {
         } else if(type==AsonValue.TYPE_FALSE) {
             return new AsonValue(rootNode, false);
         } else if(type==AsonValue.TYPE_INT8) {
-            if(p!=null) p.i += 1;
-            return new AsonValue(rootNode, dis.readByte());
+            return new AsonValue(rootNode, in.readByte());
         } else if(type==AsonValue.TYPE_INT16) {
-            byte tmp[] = new byte[2];
-            dis.readFully(tmp,0,2);
-            if(p!=null) p.i += 2;
-            return new AsonValue(rootNode, Utils.Bytes2Int16(tmp, 0));
+            return new AsonValue(rootNode, in.readInt16());
         } else if(type==AsonValue.TYPE_INT32) {
-            byte tmp[] = new byte[4];
-            dis.readFully(tmp,0,4);
-            if(p!=null) p.i += 4;
-            return new AsonValue(rootNode, Utils.Bytes2Int32(tmp, 0));
+            return new AsonValue(rootNode, in.readInt32());
         } else if(type==AsonValue.TYPE_INT64) {
-            byte tmp[] = new byte[8];
-            dis.readFully(tmp,0,8);
-            if(p!=null) p.i += 8;
-            return new AsonValue(rootNode, Utils.Bytes2Int64(tmp, 0));
+            return new AsonValue(rootNode, in.readInt64());
         } else if(type==AsonValue.TYPE_FLOAT) {
-            byte tmp[] = new byte[4];
-            dis.readFully(tmp, 0, 4);
-            if(p!=null) p.i += 4;
-            return new AsonValue(rootNode, Float.intBitsToFloat(Utils.Bytes2Int32(tmp, 0)));
+            return new AsonValue(rootNode, in.readFloat());
         } else if(type==AsonValue.TYPE_DOUBLE) {
-            byte tmp[] = new byte[8];
-            dis.readFully(tmp, 0, 8);
-            if(p!=null) p.i += 8;
-            return new AsonValue(rootNode, Double.longBitsToDouble(Utils.Bytes2Int64(tmp, 0)));
+            return new AsonValue(rootNode, in.readDouble());
         } else if(type==AsonValue.TYPE_BYTES) {
-            byte tmp[] = new byte[255];
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int n;
-            do {
-                n = dis.read();
-                if(p!=null) p.i += 1;
-                if(n>0) {
-                    dis.readFully(tmp, 0, n);
-                    baos.write(tmp, 0, n);
-                    if(p!=null) p.i += n;
-                }
-            } while(n!=0);
-            return new AsonValue(rootNode, baos.toByteArray());
+            return new AsonValue(rootNode, in.readChunkedBytes());
         } else if(type==TYPE_BYTES1 || type==TYPE_BYTES2 || type==TYPE_BYTES4) {
-            int len = readLen(dis, type-AsonValue.TYPE_BYTES);
-            if(p!=null) p.i += type-AsonValue.TYPE_BYTES + len;
-            byte tmp[] = new byte[len];
-            dis.readFully(tmp);
-            return new AsonValue(rootNode, tmp);
+            int len = readLen(in, type-AsonValue.TYPE_BYTES);
+            return new AsonValue(rootNode, in.readBytes(len));
         } else if(type==AsonValue.TYPE_STRING) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int v;
-            do {
-                v = dis.read();
-                if(p!=null) ++p.i;
-                if(v!=0) baos.write(v);
-            } while(v!=0);
-            return new AsonValue(rootNode, new String(baos.toByteArray(),"UTF-8"));
+            return new AsonValue(rootNode, in.readCString());
         } else if(type==TYPE_STRING1 || type==TYPE_STRING2 || type==TYPE_STRING4) {
-            int len = readLen(dis, type-AsonValue.TYPE_STRING);
-            if(p!=null) p.i += type-AsonValue.TYPE_STRING + len;
-            byte tmp[] = new byte[len];
-            dis.readFully(tmp);
-            return new AsonValue(rootNode,new String(tmp,"UTF-8"));
+            int len = readLen(in, type-AsonValue.TYPE_STRING);
+            return new AsonValue(rootNode, in.readString(len));
         } else if(type==AsonValue.TYPE_ARRAY) {
             AsonValue.AsonArray l = new AsonValue.AsonArray();
             AsonValue v;
-            Param lp = new Param();
-            do {
-                v = parseValue(dis,lp);
-                if(p!=null) p.i += lp.i;
-                if(v!=null) l.add(v);
-            } while(v!=null);
+            while((v = parseValue(in))!=null) {
+                l.add(v);
+            }
             return new AsonValue(rootNode, l);
         } else if(type==TYPE_ARRAY1 || type==TYPE_ARRAY2 || type==TYPE_ARRAY4) {
-            int len = readLen(dis, type-AsonValue.TYPE_ARRAY);
-            if(p!=null) p.i += type-AsonValue.TYPE_ARRAY + len;
+            int len = readLen(in, type-AsonValue.TYPE_ARRAY);
+            long end = in.position()+len;
             AsonValue.AsonArray l = new AsonValue.AsonArray();
-            Param lp = new Param();
-            while(len>0) {
-                l.add(parseValue(dis,lp));
-                len -= lp.i;
+            while(in.position()<end) {
+                l.add(parseValue(in));
             }
             return new AsonValue(rootNode, l);
+        } else if(type==TYPE_PACKED1 || type==TYPE_PACKED2 || type==TYPE_PACKED4) {
+            byte et = in.readByte();
+            int n = readLen(in, type-(TYPE_PACKED1-1));
+            return new AsonValue(rootNode, readPacked(in, et, n));
+        } else if(type==TYPE_TABLE1 || type==TYPE_TABLE2 || type==TYPE_TABLE4) {
+            return readTable(in, type);
         } else if(type==AsonValue.TYPE_OBJECT) {
             AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered();
-            Param lp = new Param();
             int id;
-            do {
-                id = parseId(dis , lp);
-                if(p!=null) p.i += lp.i;
-                if(id!=0) {
-                    m.put(id, parseValue(dis,lp));
-                    if(p!=null) p.i += lp.i;
-                }
-            } while(id!=0);
+            while((id = parseId(in))!=0) {
+                m.put(id, parseValue(in));
+            }
             return new AsonValue(rootNode, m);
         } else if(type==TYPE_OBJECT1 || type==TYPE_OBJECT2 || type==TYPE_OBJECT4) {
-            int len = readLen(dis, type-AsonValue.TYPE_OBJECT);
-            if(p!=null) p.i += type-AsonValue.TYPE_OBJECT + len;
+            int len = readLen(in, type-AsonValue.TYPE_OBJECT);
+            long end = in.position()+len;
             AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered();
-            Param lp = new Param();
-            while(len>0) {
-                int id = parseId(dis, lp);
-                len -= lp.i;
-                AsonValue v = parseValue(dis, lp);
-                len -= lp.i;
-                m.put(id, v);
+            while(in.position()<end) {
+                int id = parseId(in);
+                m.put(id, parseValue(in));
             }
             return new AsonValue(rootNode, m);
         }
         return null;
     }
     
-    protected int parseId(DataInputStream dis, Param p) throws IOException {
-        int ret;
-        if(flagBigId) {
-            byte tmp[] = new byte[4];
-            dis.readFully(tmp);
-            ret = Utils.Bytes2Int32(tmp, 0);
-            if(p!=null) p.i = 4;
-        } else {
-            byte tmp[] = new byte[2];
-            dis.readFully(tmp);
-            ret = Utils.Bytes2Int16(tmp, 0);
-            if(p!=null) p.i = 2;
+    /**
+     * read a columnar table back into an array of objects.
+     */
+    private AsonValue readTable(AsonInput in,byte type) throws IOException {
+        int sl = type-(TYPE_TABLE1-1);
+        int rows = readLen(in, sl);
+        int nk = readLen(in, sl);
+        if(rows<0 || nk<0) throw new IOException("invalid table size");
+        int keys[] = new int[nk];
+        for(int k=0;k<nk;++k) keys[k] = parseId(in);
+        AsonValue.AsonObjectOrdered objs[] = new AsonValue.AsonObjectOrdered[rows];
+        for(int i=0;i<rows;++i) objs[i] = new AsonValue.AsonObjectOrdered(nk);
+        byte absentBuf[] = null;
+        byte nullBuf[] = null;
+        for(int k=0;k<nk;++k) {
+            int flags = in.readUint8();
+            byte absent[] = null;
+            byte nulls[] = null;
+            if((flags&TABLE_ABSENT)!=0) absent = absentBuf = readBitmap(in, rows, absentBuf);
+            if((flags&TABLE_NULL)!=0) nulls = nullBuf = readBitmap(in, rows, nullBuf);
+            fillColumn(objs, keys[k], absent, nulls, parseValue(in), rootNode);
         }
+        return tableRows(objs, rootNode);
+    }
+
+    /**
+     * put the values of one table column into the rows.
+     * @param vals array of the column values, without absent and null ones.
+     */
+    static void fillColumn(AsonValue.AsonObjectOrdered objs[],int key,byte absent[],byte nulls[],AsonValue vals,AsonValue rootNode) throws IOException {
+        if(vals==null || !vals.isArray()) throw new IOException("invalid table column");
+        int j = 0;
+        for(int i=0;i<objs.length;++i) {
+            if(absent!=null && (absent[i>>3]&(1<<(i&7)))!=0) continue;
+            AsonValue v;
+            if(nulls!=null && (nulls[i>>3]&(1<<(i&7)))!=0) {
+                v = new AsonValue(rootNode, null);
+            } else {
+                if(j>=vals.size()) throw new IOException("invalid table column");
+                v = vals.get(j++);
+            }
+            objs[i].put(key, v);
+        }
+    }
+
+    static AsonValue tableRows(AsonValue.AsonObjectOrdered objs[],AsonValue rootNode) {
+        AsonValue.AsonArray l = new AsonValue.AsonArray(objs.length);
+        for(AsonValue.AsonObjectOrdered m : objs) l.add(new AsonValue(rootNode, m));
+        return new AsonValue(rootNode, l);
+    }
+
+    private static byte[] readBitmap(AsonInput in,int rows,byte reuse[]) throws IOException {
+        int n = (rows+7)>>3;
+        byte b[] = reuse!=null?reuse:new byte[n];
+        in.readFully(b, 0, n);
+        return b;
+    }
+    
+    protected int parseId(AsonInput in) throws IOException {
+        if(flagVarint) {
+            int v = in.readVarint();
+            if((v&1)!=0) {
+                int len = in.readUint8();
+                if(dictComplete) in.skip(len); else dictMap.put(in.readString(len),v>>>1);
+            }
+            return v>>>1;
+        }
+        int ret = flagBigId?in.readInt32():in.readInt16();
         if((ret&(flagBigId?0x80000000:0x8000))!=0) {
             ret &= flagBigId?0x7FFFFFFF:0x7FFF;
-            int len = dis.read();
-            byte nb[] = new byte[len];
-            dis.readFully(nb);
-            dictMap.put(new String(nb,"UTF-8"),ret);
-            if(p!=null) p.i = 1+len;
+            int len = in.readUint8();
+            if(dictComplete) in.skip(len); else dictMap.put(in.readString(len),ret);
         }
         return ret;
     }
     
-    protected int readLen(DataInputStream dis,int sl) throws IOException {
-        if(sl==1) {
-            return dis.read();
-        } else if(sl==2) {
-            byte b[] = new byte[2];
-            dis.readFully(b);
-            return Utils.Bytes2Int16(b, 0);
-        } else if(sl==4) {
-            byte b[] = new byte[4];
-            dis.readFully(b);
-            return Utils.Bytes2Int32(b, 0);
+    /**
+     * read the values of a packed array.
+     * @param in input after the count
+     * @param et element type
+     * @param n element count
+     * @return int[] for int8/16/32 elements, long[], float[] or double[]
+     * @throws IOException 
+     */
+    public static Object readPacked(AsonInput in,byte et,int n) throws IOException {
+        if(n<0) throw new IOException("invalid packed array count: "+(n&0xFFFFFFFFL));
+        switch(et) {
+            case AsonValue.TYPE_INT8: {
+                int a[] = new int[n];
+                for(int i=0;i<n;++i) a[i] = in.readByte();
+                return a;
+            }
+            case AsonValue.TYPE_INT16: {
+                int a[] = new int[n];
+                for(int i=0;i<n;++i) a[i] = in.readInt16();
+                return a;
+            }
+            case AsonValue.TYPE_INT32: {
+                int a[] = new int[n];
+                for(int i=0;i<n;++i) a[i] = in.readInt32();
+                return a;
+            }
+            case AsonValue.TYPE_INT64: {
+                long a[] = new long[n];
+                for(int i=0;i<n;++i) a[i] = in.readInt64();
+                return a;
+            }
+            case AsonValue.TYPE_FLOAT: {
+                float a[] = new float[n];
+                for(int i=0;i<n;++i) a[i] = in.readFloat();
+                return a;
+            }
+            case AsonValue.TYPE_DOUBLE: {
+                double a[] = new double[n];
+                for(int i=0;i<n;++i) a[i] = in.readDouble();
+                return a;
+            }
+        }
+        throw new IOException("invalid packed element type: 0x"+Integer.toHexString(et&0xFF));
+    }
+
+    /**
+     * size in bytes of one element of a packed array.
+     * @param elementType element type
+     * @return 1, 2, 4 or 8. 0 if elementType can not be packed.
+     */
+    public static int packedWidth(byte elementType) {
+        switch(elementType) {
+            case AsonValue.TYPE_INT8: return 1;
+            case AsonValue.TYPE_INT16: return 2;
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_FLOAT: return 4;
+            case AsonValue.TYPE_INT64:
+            case AsonValue.TYPE_DOUBLE: return 8;
         }
         return 0;
     }
     
-    protected class Param {
-        int i;
-        Param() { i = 0; }
+    protected int readLen(AsonInput in,int sl) throws IOException {
+        if(flagVarint) {
+            return in.readVarint();
+        } else if(sl==1) {
+            return in.readUint8();
+        } else if(sl==2) {
+            return in.readUint16();
+        } else if(sl==4) {
+            return in.readInt32();
+        }
+        return 0;
     }
 }
@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.parser;
+
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.KeyDictionary;
+import com.dizsoft.ason.io.ByteArrayInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Non-blocking ason parser, fed by chunks of bytes as they arrive.
+ * Parsing state is kept in an explicit stack so a document may be split at any byte,
+ * including inside an inline dictionary entry. Consecutive documents in the same byte
+ * stream are parsed one after another, each with its own dictionary.
+ * <pre>
+ * AsonPushParser pp = new AsonPushParser();
+ * // on every read from a channel:
+ * for(AsonValue v : pp.feed(buffer)) handle(v);
+ * </pre>
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonPushParser {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int S_HEADER    = 0;
+    private static final int S_DICT_ID   = 1;
+    private static final int S_DICT_LEN  = 2;
+    private static final int S_DICT_NAME = 3;
+    private static final int S_TYPE      = 4;
+    private static final int S_FIXED     = 5;
+    private static final int S_LEN       = 6;
+    private static final int S_BODY      = 7;
+    private static final int S_CSTRING   = 8;
+    private static final int S_CHUNK_LEN = 9;
+    private static final int S_CHUNK     = 10;
+    private static final int S_KEY_ID    = 11;
+    private static final int S_KEY_LEN   = 12;
+    private static final int S_KEY_NAME  = 13;
+    private static final int S_PACKED_HEAD = 14;
+    private static final int S_PACKED    = 15;
+    private static final int S_TABLE_HEAD = 16;
+    private static final int S_TABLE_KEY = 17;
+    private static final int S_TABLE_KEY_LEN = 18;
+    private static final int S_TABLE_KEY_NAME = 19;
+    private static final int S_TABLE_FLAGS = 20;
+    private static final int S_TABLE_BITMAPS = 21;
+    private static final int S_PACKED_TYPE = 22;
+    private static final int S_TABLE_ROWS = 23;
+    private static final int S_VARINT    = 24;
+    private static final int S_INDEX_SIZE = 25;
+    private static final int S_INDEX     = 26;
+    private static final int S_INDEX_MAGIC = 27;
+
+    private int state = S_HEADER;
+    private int need = 4;
+    private byte acc[] = new byte[64];
+    private int accLen;
+    private long consumed;
+
+    private AbstractKeyDictionary dictMap;
+    private AsonValue rootNode;
+    private boolean flagBigId;
+    private boolean flagVarint;
+    private boolean indexed;
+    private long indexLeft; // bytes of the index table still to be skipped
+    private long dictLeft;
+    private int pendingId;
+    private byte type;
+    private byte packedType;
+    private long count; // rows of the table head being read
+    private long varint;
+    private int varintBytes;
+    private int varintNext; // state taking the varint
+    private byte chunks[];
+    private int chunksLen;
+
+    private int depth;
+    private Object containers[] = new Object[16];
+    private long ends[] = new long[16];
+    private int keys[] = new int[16];
+
+    /**
+     * consume all remaining bytes of chunk.
+     * @param chunk bytes received
+     * @return documents completed by this chunk, may be empty.
+     * @throws IOException on invalid data, the parser can not be used after that.
+     */
+    public List<AsonValue> feed(ByteBuffer chunk) throws IOException {
+        List<AsonValue> out = new ArrayList<>(1);
+        feed(chunk, out);
+        return out;
+    }
+
+    /**
+     * consume all remaining bytes of chunk.
+     * @param chunk bytes received
+     * @param out completed documents are added to it.
+     * @return count of documents completed by this chunk.
+     * @throws IOException on invalid data, the parser can not be used after that.
+     */
+    public int feed(ByteBuffer chunk, List<AsonValue> out) throws IOException {
+        int n = out.size();
+        while(chunk.hasRemaining()) {
+            if(state==S_CSTRING) {
+                scanCString(chunk, out);
+                continue;
+            }
+            if(state==S_INDEX) {
+                skipIndex(chunk);
+                continue;
+            }
+            int c = Math.min(need-accLen, chunk.remaining());
+            if(accLen+c>acc.length) acc = Arrays.copyOf(acc, Math.max(need, acc.length*2));
+            chunk.get(acc, accLen, c);
+            accLen += c;
+            consumed += c;
+            if(accLen<need) break;
+            accLen = 0;
+            step(out);
+        }
+        return out.size()-n;
+    }
+
+    /**
+     * check if no partial document is pending.
+     * @return
+     */
+    public boolean isIdle() {
+        return state==S_HEADER && accLen==0;
+    }
+
+    private void step(List<AsonValue> out) throws IOException {
+        switch(state) {
+            case S_HEADER: {
+                long tas = int32(0)&0xFFFFFFFFL;
+                if((tas&AsonParser.FLAG_ASON)==0) throw new IOException("not ason data.");
+                flagBigId = (tas&AsonParser.FLAG_BIGID)!=0;
+                flagVarint = (tas&AsonParser.FLAG_VARINT)!=0;
+                indexed = (tas&AsonParser.FLAG_INDEX)!=0;
+                if((tas&AsonParser.FLAG_SHAREDDICT)!=0) {
+                    dictLeft = 0;
+                    dictMap = AsonParser.sharedDictionary((int)tas);
+                } else {
+                    dictLeft = tas&AsonParser.DICT_SIZE_MASK;
+                    dictMap = new KeyDictionary();
+                }
+                rootNode = Ason.CreateRootObject(dictMap);
+                expectDict();
+                break;
+            }
+            case S_INDEX_SIZE: {
+                long size = int32(0)&0xFFFFFFFFL;
+                if(size<12) throw new IOException("invalid index table.");
+                indexLeft = size-4;
+                expect(S_INDEX, 0);
+                break;
+            }
+            case S_INDEX_MAGIC:
+                if(int32(0)!=AsonParser.INDEX_MAGIC) throw new IOException("invalid index table.");
+                expect(S_HEADER, 4);
+                break;
+            case S_VARINT: {
+                int b = acc[0];
+                varint |= (long)(b&0x7F)<<(7*varintBytes++);
+                if(b<0) {
+                    if(varintBytes==5) throw new IOException("invalid varint");
+                    break;
+                }
+                state = varintNext;
+                step(out);
+                break;
+            }
+            case S_DICT_ID:
+                pendingId = flagVarint?(int)varint:(flagBigId?int32(0):(short)int16(0));
+                dictLeft -= flagVarint?varintBytes:idSize();
+                expect(S_DICT_LEN, 1);
+                break;
+            case S_DICT_LEN:
+                --dictLeft;
+                if(acc[0]==0) {
+                    dictMap.put("", pendingId);
+                    expectDict();
+                } else {
+                    expect(S_DICT_NAME, acc[0]&0xFF);
+                }
+                break;
+            case S_DICT_NAME:
+                dictLeft -= need;
+                dictMap.put(new String(acc, 0, need, UTF8), pendingId);
+                expectDict();
+                break;
+            case S_TYPE:
+                onType(acc[0], out);
+                break;
+            case S_FIXED:
+                complete(fixedValue(), out);
+                break;
+            case S_LEN: {
+                int len = (int)length();
+                int h = type&0xF0;
+                if(h==0xE0 || h==0xF0) {
+                    push(h==0xF0?new AsonValue.AsonObjectOrdered():new AsonValue.AsonArray(), consumed+len, out);
+                } else if(len==0) {
+                    complete(new AsonValue(rootNode, h==0xA0?(Object)"":new byte[0]), out);
+                } else {
+                    expect(S_BODY, len);
+                }
+                break;
+            }
+            case S_BODY:
+                if((type&0xF0)==0xA0) {
+                    complete(new AsonValue(rootNode, new String(acc, 0, need, UTF8)), out);
+                } else {
+                    complete(new AsonValue(rootNode, Arrays.copyOf(acc, need)), out);
+                }
+                break;
+            case S_CHUNK_LEN:
+                if(acc[0]==0) {
+                    byte b[] = chunks==null?new byte[0]:Arrays.copyOf(chunks, chunksLen);
+                    chunks = null;
+                    complete(new AsonValue(rootNode, b), out);
+                } else {
+                    expect(S_CHUNK, acc[0]&0xFF);
+                }
+                break;
+            case S_CHUNK:
+                if(chunks==null) chunks = new byte[256];
+                if(chunksLen+need>chunks.length) chunks = Arrays.copyOf(chunks, Math.max(chunksLen+need, chunks.length*2));
+                System.arraycopy(acc, 0, chunks, chunksLen, need);
+                chunksLen += need;
+                expect(S_CHUNK_LEN, 1);
+                break;
+            case S_KEY_ID: {
+                boolean inline = keyId();
+                if(pendingId==0 && !inline && ends[depth-1]<0) {
+                    pop(out);
+                } else {
+                    keys[depth-1] = pendingId;
+                    expect(inline?S_KEY_LEN:S_TYPE, 1);
+                }
+                break;
+            }
+            case S_KEY_LEN:
+                if(acc[0]==0) {
+                    dictMap.put("", keys[depth-1]);
+                    expect(S_TYPE, 1);
+                } else {
+                    expect(S_KEY_NAME, acc[0]&0xFF);
+                }
+                break;
+            case S_KEY_NAME:
+                dictMap.put(new String(acc, 0, need, UTF8), keys[depth-1]);
+                expect(S_TYPE, 1);
+                break;
+            case S_PACKED_TYPE:
+                packedType = acc[0];
+                if(AsonParser.packedWidth(packedType)==0) throw new IOException("invalid packed element type: 0x"+Integer.toHexString(packedType&0xFF));
+                expectLength(S_PACKED_HEAD, type&0x0F);
+                break;
+            case S_PACKED_HEAD: {
+                int w = AsonParser.packedWidth(packedType);
+                long n = length();
+                if(n*w>Integer.MAX_VALUE) throw new IOException("packed array too large: "+n);
+                if(n==0) {
+                    complete(new AsonValue(rootNode, AsonParser.readPacked(new ByteArrayInput(acc, 0, 0), packedType, 0)), out);
+                    break;
+                }
+                expect(S_PACKED, (int)(n*w));
+                break;
+            }
+            case S_PACKED:
+                complete(new AsonValue(rootNode, AsonParser.readPacked(new ByteArrayInput(acc, 0, need), packedType, need/AsonParser.packedWidth(packedType))), out);
+                break;
+            case S_TABLE_ROWS:
+                count = length();
+                expectLength(S_TABLE_HEAD, type&0x0F);
+                break;
+            case S_TABLE_HEAD: {
+                long nk = length();
+                if(count>Integer.MAX_VALUE || nk>Integer.MAX_VALUE) throw new IOException("invalid table size");
+                if(nk==0) {
+                    complete(AsonParser.tableRows(new AsonValue.AsonObjectOrdered[0], rootNode), out);
+                    break;
+                }
+                push(new Table((int)count, (int)nk), -1, out);
+                break;
+            }
+            case S_TABLE_KEY: {
+                boolean inline = keyId();
+                Table t = (Table)containers[depth-1];
+                if(inline) {
+                    t.keys[t.keyCount] = pendingId;
+                    expect(S_TABLE_KEY_LEN, 1);
+                } else {
+                    t.keys[t.keyCount++] = pendingId;
+                    expectNext();
+                }
+                break;
+            }
+            case S_TABLE_KEY_LEN:
+                if(acc[0]==0) {
+                    Table t = (Table)containers[depth-1];
+                    dictMap.put("", t.keys[t.keyCount++]);
+                    expectNext();
+                } else {
+                    expect(S_TABLE_KEY_NAME, acc[0]&0xFF);
+                }
+                break;
+            case S_TABLE_KEY_NAME: {
+                Table t = (Table)containers[depth-1];
+                dictMap.put(new String(acc, 0, need, UTF8), t.keys[t.keyCount++]);
+                expectNext();
+                break;
+            }
+            case S_TABLE_FLAGS: {
+                Table t = (Table)containers[depth-1];
+                t.flags = acc[0];
+                t.absent = null;
+                t.nulls = null;
+                int n = (t.flags&AsonParser.TABLE_ABSENT)!=0?t.bitmapSize():0;
+                if((t.flags&AsonParser.TABLE_NULL)!=0) n += t.bitmapSize();
+                expect(n>0?S_TABLE_BITMAPS:S_TYPE, n>0?n:1);
+                break;
+            }
+            case S_TABLE_BITMAPS: {
+                Table t = (Table)containers[depth-1];
+                int p = 0;
+                if((t.flags&AsonParser.TABLE_ABSENT)!=0) {
+                    t.absent = Arrays.copyOfRange(acc, p, p+t.bitmapSize());
+                    p += t.bitmapSize();
+                }
+                if((t.flags&AsonParser.TABLE_NULL)!=0) t.nulls = Arrays.copyOfRange(acc, p, p+t.bitmapSize());
+                expect(S_TYPE, 1);
+                break;
+            }
+        }
+    }
+
+    private void onType(byte t, List<AsonValue> out) throws IOException {
+        type = t;
+        switch(t) {
+            case 0:
+                if(depth>0 && ends[depth-1]<0 && containers[depth-1] instanceof AsonValue.AsonArray) {
+                    pop(out);
+                    return;
+                }
+                break;
+            case AsonValue.TYPE_NULL: complete(new AsonValue(rootNode, null), out); return;
+            case AsonValue.TYPE_TRUE: complete(new AsonValue(rootNode, true), out); return;
+            case AsonValue.TYPE_FALSE: complete(new AsonValue(rootNode, false), out); return;
+            case AsonValue.TYPE_INT8: expect(S_FIXED, 1); return;
+            case AsonValue.TYPE_INT16: expect(S_FIXED, 2); return;
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_FLOAT: expect(S_FIXED, 4); return;
+            case AsonValue.TYPE_INT64:
+            case AsonValue.TYPE_DOUBLE: expect(S_FIXED, 8); return;
+            case AsonValue.TYPE_STRING: expect(S_CSTRING, 1); return;
+            case AsonValue.TYPE_BYTES: chunksLen = 0; expect(S_CHUNK_LEN, 1); return;
+            case AsonValue.TYPE_ARRAY: push(new AsonValue.AsonArray(), -1, out); return;
+            case AsonValue.TYPE_OBJECT: push(new AsonValue.AsonObjectOrdered(), -1, out); return;
+        }
+        int h = t&0xF0;
+        int sl = t&0x0F;
+        if((h==0xA0 || h==0xD0 || h==0xE0 || h==0xF0) && (sl==1 || sl==2 || sl==4)) {
+            expectLength(S_LEN, sl);
+            return;
+        }
+        if(h==0xB0 && (sl==1 || sl==2 || sl==4)) {
+            expect(S_PACKED_TYPE, 1);
+            return;
+        }
+        if(h==0xC0 && (sl==1 || sl==2 || sl==4)) {
+            expectLength(S_TABLE_ROWS, sl);
+            return;
+        }
+        throw new IOException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+    }
+
+    private AsonValue fixedValue() {
+        switch(type) {
+            case AsonValue.TYPE_INT8: return new AsonValue(rootNode, acc[0]);
+            case AsonValue.TYPE_INT16: return new AsonValue(rootNode, (short)int16(0));
+            case AsonValue.TYPE_INT32: return new AsonValue(rootNode, int32(0));
+            case AsonValue.TYPE_FLOAT: return new AsonValue(rootNode, Float.intBitsToFloat(int32(0)));
+            case AsonValue.TYPE_INT64: return new AsonValue(rootNode, int64(0));
+            default: return new AsonValue(rootNode, Double.longBitsToDouble(int64(0)));
+        }
+    }
+
+    private void scanCString(ByteBuffer chunk, List<AsonValue> out) throws IOException {
+        int s = chunk.position();
+        int e = s;
+        int l = chunk.limit();
+        while(e<l && chunk.get(e)!=0) ++e;
+        int c = e-s;
+        if(accLen+c>acc.length) acc = Arrays.copyOf(acc, Math.max(accLen+c, acc.length*2));
+        chunk.get(acc, accLen, c);
+        accLen += c;
+        consumed += c;
+        if(e<l) {
+            chunk.get();
+            ++consumed;
+            String str = new String(acc, 0, accLen, UTF8);
+            accLen = 0;
+            complete(new AsonValue(rootNode, str), out);
+        }
+    }
+
+    private void push(Object container, long end, List<AsonValue> out) throws IOException {
+        if(depth==containers.length) {
+            containers = Arrays.copyOf(containers, depth*2);
+            ends = Arrays.copyOf(ends, depth*2);
+            keys = Arrays.copyOf(keys, depth*2);
+        }
+        containers[depth] = container;
+        ends[depth] = end;
+        ++depth;
+        if(end>=0 && consumed>=end) {
+            pop(out);
+        } else {
+            expectNext();
+        }
+    }
+
+    private void pop(List<AsonValue> out) throws IOException {
+        --depth;
+        Object c = containers[depth];
+        containers[depth] = null;
+        complete(new AsonValue(rootNode, c), out);
+    }
+
+    private void complete(AsonValue v, List<AsonValue> out) throws IOException {
+        while(depth>0) {
+            Object c = containers[depth-1];
+            if(c instanceof Table) {
+                Table t = (Table)c;
+                AsonParser.fillColumn(t.rows, t.keys[t.column++], t.absent, t.nulls, v, rootNode);
+                if(t.column<t.keys.length) {
+                    expectNext();
+                    return;
+                }
+                --depth;
+                containers[depth] = null;
+                v = AsonParser.tableRows(t.rows, rootNode);
+                continue;
+            }
+            if(c instanceof AsonValue.AsonArray) {
+                ((AsonValue.AsonArray)c).add(v);
+            } else {
+                ((AsonValue.AsonObjectOrdered)c).put(keys[depth-1], v);
+            }
+            if(ends[depth-1]<0 || consumed<ends[depth-1]) {
+                expectNext();
+                return;
+            }
+            --depth;
+            containers[depth] = null;
+            v = new AsonValue(rootNode, c);
+        }
+        rootNode.setValue(v); // the document is the root node, holding the dictionary
+        out.add(rootNode);
+        dictMap = null;
+        rootNode = null;
+        if(indexed) {
+            expect(S_INDEX_SIZE, 4); // the index table is of no use to a tree, see AsonParser.INDEX_MAGIC
+        } else {
+            expect(S_HEADER, 4);
+        }
+    }
+
+    /**
+     * skip the bytes of the index table in chunk.
+     */
+    private void skipIndex(ByteBuffer chunk) {
+        int c = (int)Math.min(indexLeft, chunk.remaining());
+        chunk.position(chunk.position()+c);
+        consumed += c;
+        indexLeft -= c;
+        if(indexLeft==0) expect(S_INDEX_MAGIC, 4);
+    }
+
+    private void expectNext() {
+        Object c = containers[depth-1];
+        if(c instanceof AsonValue.AsonObjectOrdered) {
+            expectId(S_KEY_ID);
+        } else if(c instanceof Table) {
+            Table t = (Table)c;
+            if(t.keyCount<t.keys.length) {
+                expectId(S_TABLE_KEY);
+            } else {
+                expect(S_TABLE_FLAGS, 1);
+            }
+        } else {
+            expect(S_TYPE, 1);
+        }
+    }
+
+    /**
+     * columnar table being read, its columns are completed into rows one by one.
+     */
+    private static final class Table {
+        final AsonValue.AsonObjectOrdered rows[];
+        final int keys[];
+        int keyCount;
+        int column;
+        int flags;
+        byte absent[];
+        byte nulls[];
+
+        Table(int rows, int nk) {
+            this.rows = new AsonValue.AsonObjectOrdered[rows];
+            for(int i=0;i<rows;++i) this.rows[i] = new AsonValue.AsonObjectOrdered(nk);
+            this.keys = new int[nk];
+        }
+
+        int bitmapSize() {
+            return (rows.length+7)>>3;
+        }
+    }
+
+    private void expect(int s, int n) {
+        state = s;
+        need = n;
+    }
+
+    private void expectDict() {
+        if(dictLeft>0) {
+            expectId(S_DICT_ID);
+        } else {
+            expect(S_TYPE, 1);
+        }
+    }
+
+    private void expectId(int s) {
+        if(flagVarint) {
+            expectVarint(s);
+        } else {
+            expect(s, flagBigId?4:2);
+        }
+    }
+
+    /**
+     * @param sl size of a fixed length field, varints are read byte by byte.
+     */
+    private void expectLength(int s, int sl) {
+        if(flagVarint) {
+            expectVarint(s);
+        } else {
+            expect(s, sl);
+        }
+    }
+
+    private void expectVarint(int s) {
+        state = S_VARINT;
+        need = 1;
+        varint = 0;
+        varintBytes = 0;
+        varintNext = s;
+    }
+
+    /**
+     * value of the length field just read.
+     */
+    private long length() {
+        if(flagVarint) return varint;
+        return need==1?acc[0]&0xFF:need==2?int16(0):int32(0)&0xFFFFFFFFL;
+    }
+
+    /**
+     * decode the key id field just read into pendingId.
+     * @return true if its name follows inline.
+     */
+    private boolean keyId() {
+        if(flagVarint) {
+            pendingId = (int)(varint>>>1);
+            return (varint&1)!=0;
+        }
+        int id = flagBigId?int32(0):int16(0);
+        pendingId = id&(flagBigId?0x7FFFFFFF:0x7FFF);
+        return (id&(flagBigId?0x80000000:0x8000))!=0;
+    }
+
+    private int idSize() {
+        return flagBigId?4:2;
+    }
+
+    private int int16(int p) {
+        return ((acc[p]&0xFF)<<8) | (acc[p+1]&0xFF);
+    }
+
+    private int int32(int p) {
+        return (acc[p]<<24) | ((acc[p+1]&0xFF)<<16) | ((acc[p+2]&0xFF)<<8) | (acc[p+3]&0xFF);
+    }
+
+    private long int64(int p) {
+        return ((long)int32(p)<<32) | (int32(p+4)&0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,769 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.parser;
+
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.KeyDictionary;
+import com.dizsoft.ason.serializer.AsonWriter;
+import com.dizsoft.ason.io.AsonInput;
+import com.dizsoft.ason.io.ByteArrayInput;
+import com.dizsoft.ason.io.ByteBufferInput;
+import com.dizsoft.ason.io.CopyingInput;
+import com.dizsoft.ason.io.StreamInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pull reader for ason data, reads token by token without building AsonValue tree.
+ * Works for both stream mode and struct mode data, inline dictionary entries are resolved as they are read.
+ * Columnar tables are read as arrays of objects, row by row, with one input per column. inputs holding
+ * their data in memory are read in place, others keep a copy of the encoded table while it is read.
+ * <pre>
+ * int ev;
+ * while((ev = reader.next())!=AsonReader.END_DOCUMENT) {
+ *     if(ev==AsonReader.KEY) name = reader.getKeyName();
+ *     else if(ev==AsonReader.VALUE &amp;&amp; reader.peekType()==AsonValue.TYPE_STRING) str = reader.readString();
+ * }
+ * </pre>
+ * or reading a known structure:
+ * <pre>
+ * reader.beginObject();
+ * int id;
+ * while((id = reader.readKeyId())!=0) {
+ *     if(id==nameId) name = reader.readString(); else reader.skipValue();
+ * }
+ * </pre>
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonReader {
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT   = 2;
+    public static final int BEGIN_ARRAY  = 3;
+    public static final int END_ARRAY    = 4;
+    public static final int KEY          = 5;
+    public static final int VALUE        = 6;
+    public static final int END_DOCUMENT = 7;
+
+    private static final byte TYPE_ROW = (byte)0xF8; // pending row of a table, not an ason type
+
+    protected AsonInput in;
+    protected KeyDictionary dictMap = new KeyDictionary();
+    protected boolean flagBigId;
+    protected boolean flagVarint;
+    protected boolean headDict;
+
+    private boolean started;
+    private boolean finished;
+    private boolean indexed; // index table after the root value is not read yet
+    private int depth;
+    private boolean objects[] = new boolean[16];
+    private long ends[] = new long[16];
+    private byte packed[] = new byte[16]; // element type of packed arrays, 0 for other containers
+    private Table tables[] = new Table[16]; // table of rows arrays and row objects, null for other containers
+    private boolean keyRead;
+    private int keyId;
+    private byte pendingType;
+    private boolean reported;
+    private Table rowTable; // table of a pending TYPE_ROW
+
+    public AsonReader(AsonInput in) {
+        this.in = in;
+    }
+
+    public AsonReader(InputStream is) {
+        this(new StreamInput(is));
+    }
+
+    public AsonReader(byte data[]) {
+        this(new ByteArrayInput(data));
+    }
+
+    public AsonReader(ByteBuffer buffer) {
+        this(new ByteBufferInput(buffer));
+    }
+
+    /**
+     * get the dictionary map, contains the keys read so far.
+     * @return Dictionary map.
+     */
+    public AbstractKeyDictionary getDictMap() {
+        return dictMap;
+    }
+
+    /**
+     * move to the next token.
+     * a VALUE not read by readXXX methods is skipped.
+     * @return one of BEGIN_OBJECT,END_OBJECT,BEGIN_ARRAY,END_ARRAY,KEY,VALUE,END_DOCUMENT
+     * @throws IOException
+     */
+    public int next() throws IOException {
+        if(pendingType!=0 && reported) skipValue();
+        if(pendingType==0) {
+            if(finished) return END_DOCUMENT;
+            if(depth>0 && objects[depth-1] && !keyRead) {
+                if(readKeyId()==0) return END_OBJECT;
+                return KEY;
+            }
+            if(depth>0 && !objects[depth-1] && atEnd()) {
+                pop();
+                return END_ARRAY;
+            }
+            prepareValue();
+        }
+        byte t = pendingType;
+        if((t&0xF0)==0xF0) {
+            beginObject();
+            return BEGIN_OBJECT;
+        } else if((t&0xF0)==0xE0 || (t&0xF0)==0xB0 || (t&0xF0)==0xC0) {
+            beginArray();
+            return BEGIN_ARRAY;
+        }
+        reported = true;
+        return VALUE;
+    }
+
+    /**
+     * get the type of next value without consuming it.
+     * @return type. see AsonValue.TYPE_XXX
+     * @throws IOException
+     */
+    public byte peekType() throws IOException {
+        if(pendingType==0) prepareValue();
+        byte t = pendingType;
+        int h = t&0xF0;
+        if(h==0xB0 || h==0xC0) return AsonValue.TYPE_ARRAY;
+        return (h==0xA0 || h==0xD0 || h==0xE0 || h==0xF0)?(byte)h:t;
+    }
+
+    /**
+     * get current depth of containers.
+     * @return
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * get the key id read by the last KEY token or readKeyId().
+     * @return
+     */
+    public int getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * get the key name read by the last KEY token or readKeyId().
+     * @return key name, or null if not in dictionary.
+     */
+    public String getKeyName() {
+        return dictMap.getName(keyId);
+    }
+
+    /**
+     * read next key of current object, the object must be entered by next() or beginObject().
+     * @return key id, or 0 when the end of current object is reached. (the object is closed then)
+     * @throws IOException
+     */
+    public int readKeyId() throws IOException {
+        if(depth==0 || !objects[depth-1]) throw new IllegalStateException("not in object.");
+        if(keyRead) return keyId;
+        Table tb = tables[depth-1];
+        if(tb!=null) {
+            while(tb.col<tb.cols.length && tb.cols[tb.col].rowAbsent) ++tb.col;
+            if(tb.col==tb.cols.length) {
+                pop();
+                return 0;
+            }
+            tb.cur = tb.col++;
+            keyId = tb.keys[tb.cur];
+            keyRead = true;
+            return keyId;
+        }
+        if(atEnd()) {
+            pop();
+            return 0;
+        }
+        keyId = parseId();
+        if(keyId==0 && ends[depth-1]<0) {
+            pop();
+            return 0;
+        }
+        keyRead = true;
+        return keyId;
+    }
+
+    /**
+     * enter the next value, which must be an object.
+     * @throws IOException
+     */
+    public void beginObject() throws IOException {
+        if(pendingType==0) prepareValue();
+        if((pendingType&0xF0)!=0xF0) throw new IllegalStateException("expected object but was 0x"+Integer.toHexString(pendingType&0xFF));
+        push(true);
+    }
+
+    /**
+     * enter the next value, which must be an array.
+     * @throws IOException
+     */
+    public void beginArray() throws IOException {
+        if(pendingType==0) prepareValue();
+        int h = pendingType&0xF0;
+        if(h!=0xE0 && h!=0xB0 && h!=0xC0) throw new IllegalStateException("expected array but was 0x"+Integer.toHexString(pendingType&0xFF));
+        push(false);
+    }
+
+    /**
+     * check if current container has more values.
+     * @return
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        if(depth==0) return !finished;
+        if(pendingType!=0 || keyRead) return true;
+        if(objects[depth-1]) return readKeyId()!=0;
+        if(tables[depth-1]!=null) return !atEnd();
+        if(ends[depth-1]>=0) return in.position()<ends[depth-1];
+        return in.peek()!=0;
+    }
+
+    /**
+     * skip the rest of current container and leave it.
+     * @throws IOException
+     */
+    public void endContainer() throws IOException {
+        int d = depth;
+        if(d==0) throw new IllegalStateException("not in container.");
+        if(pendingType!=0) skipValue();
+        if(ends[d-1]>=0) {
+            in.skip(ends[d-1]-in.position());
+            keyRead = false;
+            pop();
+            return;
+        }
+        if(tables[d-1]!=null && !objects[d-1]) {
+            keyRead = false;
+            pop(); // the other rows are dropped with the column inputs
+            return;
+        }
+        while(depth>=d) next();
+    }
+
+    public boolean readBoolean() throws IOException {
+        byte t = take();
+        if(t!=AsonValue.TYPE_TRUE && t!=AsonValue.TYPE_FALSE) throw mismatch("boolean", t);
+        endValue();
+        return t==AsonValue.TYPE_TRUE;
+    }
+
+    public void readNull() throws IOException {
+        byte t = take();
+        if(t!=AsonValue.TYPE_NULL) throw mismatch("null", t);
+        endValue();
+    }
+
+    public long readLong() throws IOException {
+        byte t = take();
+        long ret;
+        switch(t) {
+            case AsonValue.TYPE_INT8: ret = in.readByte(); break;
+            case AsonValue.TYPE_INT16: ret = in.readInt16(); break;
+            case AsonValue.TYPE_INT32: ret = in.readInt32(); break;
+            case AsonValue.TYPE_INT64: ret = in.readInt64(); break;
+            default: throw mismatch("integer", t);
+        }
+        endValue();
+        return ret;
+    }
+
+    public int readInt() throws IOException {
+        long l = readLong();
+        if(l!=(int)l) throw new ArithmeticException("integer overflow: "+l);
+        return (int)l;
+    }
+
+    public double readDouble() throws IOException {
+        byte t = take();
+        double ret;
+        switch(t) {
+            case AsonValue.TYPE_FLOAT: ret = in.readFloat(); break;
+            case AsonValue.TYPE_DOUBLE: ret = in.readDouble(); break;
+            case AsonValue.TYPE_INT8: ret = in.readByte(); break;
+            case AsonValue.TYPE_INT16: ret = in.readInt16(); break;
+            case AsonValue.TYPE_INT32: ret = in.readInt32(); break;
+            case AsonValue.TYPE_INT64: ret = in.readInt64(); break;
+            default: throw mismatch("number", t);
+        }
+        endValue();
+        return ret;
+    }
+
+    public String readString() throws IOException {
+        byte t = take();
+        String ret;
+        if(t==AsonValue.TYPE_STRING) {
+            ret = in.readCString();
+        } else if(t==AsonParser.TYPE_STRING1 || t==AsonParser.TYPE_STRING2 || t==AsonParser.TYPE_STRING4) {
+            ret = in.readString(readLen(t-AsonValue.TYPE_STRING));
+        } else {
+            throw mismatch("string", t);
+        }
+        endValue();
+        return ret;
+    }
+
+    public byte[] readBytes() throws IOException {
+        byte t = take();
+        byte ret[];
+        if(t==AsonValue.TYPE_BYTES) {
+            ret = in.readChunkedBytes();
+        } else if(t==AsonParser.TYPE_BYTES1 || t==AsonParser.TYPE_BYTES2 || t==AsonParser.TYPE_BYTES4) {
+            ret = in.readBytes(readLen(t-AsonValue.TYPE_BYTES));
+        } else {
+            throw mismatch("bytes", t);
+        }
+        endValue();
+        return ret;
+    }
+
+    /**
+     * write the next value to writer, containers are copied token by token.
+     * keys without name in dictionary are written as their id.
+     * @param w writer
+     * @throws IOException
+     */
+    public void copyValue(AsonWriter w) throws IOException {
+        int d = depth;
+        do {
+            switch(next()) {
+                case BEGIN_OBJECT: w.beginObject(); break;
+                case BEGIN_ARRAY: w.beginArray(); break;
+                case END_OBJECT:
+                case END_ARRAY: w.end(); break;
+                case KEY: {
+                    String name = getKeyName();
+                    w.name(name!=null?name:Integer.toString(keyId));
+                    break;
+                }
+                case VALUE: copyScalar(w); break;
+                case END_DOCUMENT: return;
+            }
+        } while(depth>d);
+    }
+
+    private void copyScalar(AsonWriter w) throws IOException {
+        byte t = peekType();
+        switch(t) {
+            case AsonValue.TYPE_NULL: readNull(); w.nullValue(); return;
+            case AsonValue.TYPE_TRUE:
+            case AsonValue.TYPE_FALSE: w.value(readBoolean()); return;
+            case AsonValue.TYPE_INT8:
+            case AsonValue.TYPE_INT16:
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_INT64: w.value(readLong()); return;
+            case AsonValue.TYPE_FLOAT: w.value((float)readDouble()); return;
+            case AsonValue.TYPE_DOUBLE: w.value(readDouble()); return;
+            case AsonValue.TYPE_STRING: w.value(readString()); return;
+            case AsonValue.TYPE_BYTES: w.value(readBytes()); return;
+        }
+        throw new IOException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+    }
+
+    /**
+     * skip the next value, containers are skipped as a whole.
+     * struct mode containers are skipped by length when the data has a head dictionary,
+     * otherwise they are walked to collect inline dictionary entries.
+     * @throws IOException
+     */
+    public void skipValue() throws IOException {
+        byte t = take();
+        skipBody(t);
+        endValue();
+    }
+
+    protected void skipBody(byte t) throws IOException {
+        if(t==TYPE_ROW) {
+            skipRow(rowTable);
+            return;
+        }
+        switch(t) {
+            case AsonValue.TYPE_NULL:
+            case AsonValue.TYPE_TRUE:
+            case AsonValue.TYPE_FALSE: return;
+            case AsonValue.TYPE_INT8: in.skip(1); return;
+            case AsonValue.TYPE_INT16: in.skip(2); return;
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_FLOAT: in.skip(4); return;
+            case AsonValue.TYPE_INT64:
+            case AsonValue.TYPE_DOUBLE: in.skip(8); return;
+            case AsonValue.TYPE_STRING: in.skipCString(); return;
+            case AsonValue.TYPE_BYTES: in.skipChunkedBytes(); return;
+            case AsonValue.TYPE_ARRAY: {
+                byte ct;
+                while((ct = in.readByte())!=0) skipBody(ct);
+                return;
+            }
+            case AsonValue.TYPE_OBJECT:
+                while(parseId()!=0) skipBody(in.readByte());
+                return;
+        }
+        int h = t&0xF0;
+        int sl = t&0x0F;
+        if(h==0xB0) {
+            in.skip(packedLength(t, in.readByte()));
+            return;
+        }
+        if(h==0xC0 && (sl==1 || sl==2 || sl==4)) {
+            int rows = readLen(sl);
+            int nk = readLen(sl);
+            for(int k=0;k<nk;++k) parseId();
+            for(int k=0;k<nk;++k) {
+                int flags = in.readUint8();
+                if((flags&AsonParser.TABLE_ABSENT)!=0) in.skip((rows+7)>>3);
+                if((flags&AsonParser.TABLE_NULL)!=0) in.skip((rows+7)>>3);
+                skipBody(in.readByte());
+            }
+            return;
+        }
+        if((h!=0xA0 && h!=0xD0 && h!=0xE0 && h!=0xF0) || (sl!=1 && sl!=2 && sl!=4)) {
+            throw new IOException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+        }
+        int len = readLen(sl);
+        if(headDict || h==0xA0 || h==0xD0) {
+            in.skip(len);
+        } else {
+            long end = in.position()+len;
+            while(in.position()<end) {
+                if(h==0xF0) parseId();
+                skipBody(in.readByte());
+            }
+        }
+    }
+
+    /**
+     * read the count of a packed array.
+     * @param t packed array type
+     * @param et element type
+     * @return bytes of the elements
+     * @throws IOException 
+     */
+    private long packedLength(byte t,byte et) throws IOException {
+        int sl = t&0x0F;
+        if(sl!=1 && sl!=2 && sl!=4) throw new IOException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+        int w = AsonParser.packedWidth(et);
+        if(w==0) throw new IOException("invalid packed element type: 0x"+Integer.toHexString(et&0xFF));
+        return (readLen(sl)&0xFFFFFFFFL)*w;
+    }
+
+    protected int parseId() throws IOException {
+        if(flagVarint) {
+            int v = in.readVarint();
+            if((v&1)!=0) dictMap.put(in.readString(in.readUint8()), v>>>1);
+            return v>>>1;
+        }
+        int ret = flagBigId?in.readInt32():in.readInt16();
+        if((ret&(flagBigId?0x80000000:0x8000))!=0) {
+            ret &= flagBigId?0x7FFFFFFF:0x7FFF;
+            String name = in.readString(in.readUint8());
+            dictMap.put(name, ret);
+        }
+        return ret;
+    }
+
+    protected int readLen(int sl) throws IOException {
+        if(flagVarint) return in.readVarint();
+        if(sl==1) return in.readUint8();
+        if(sl==2) return in.readUint16();
+        if(sl==4) return in.readInt32();
+        return 0;
+    }
+
+    private void readHeader() throws IOException {
+        long tas = in.readInt32()&0xFFFFFFFFL;
+        if((tas&AsonParser.FLAG_ASON)==0) throw new IOException("not ason data.");
+        flagBigId = (tas&AsonParser.FLAG_BIGID)!=0;
+        flagVarint = (tas&AsonParser.FLAG_VARINT)!=0;
+        indexed = (tas&AsonParser.FLAG_INDEX)!=0;
+        if((tas&AsonParser.FLAG_SHAREDDICT)!=0) {
+            dictMap = AsonParser.sharedDictionary((int)tas);
+            headDict = true;
+            tas = 0;
+        } else {
+            tas &= AsonParser.DICT_SIZE_MASK;
+            headDict = tas>0;
+        }
+        long end = in.position()+tas;
+        while(in.position()<end) {
+            int id = flagVarint?in.readVarint():(flagBigId?in.readInt32():in.readInt16());
+            int len = in.readUint8();
+            String name = in.readString(len);
+            dictMap.put(name, id);
+        }
+        started = true;
+    }
+
+    /**
+     * read the type byte of next value into pendingType.
+     */
+    private void prepareValue() throws IOException {
+        if(!started) readHeader();
+        if(finished) throw new IllegalStateException("end of document.");
+        if(depth>0) {
+            Table tb = tables[depth-1];
+            if(objects[depth-1]) {
+                if(!keyRead && readKeyId()==0) throw new IllegalStateException("end of object.");
+                if(tb!=null) {
+                    pendingType = columnValue(tb.cols[tb.cur]);
+                    reported = false;
+                    return;
+                }
+            } else if(atEnd()) {
+                throw new IllegalStateException("end of array.");
+            } else if(tb!=null) {
+                rowTable = tb;
+                pendingType = TYPE_ROW;
+                reported = false;
+                return;
+            } else if(packed[depth-1]!=0) {
+                pendingType = packed[depth-1];
+                reported = false;
+                return;
+            }
+        }
+        pendingType = in.readByte();
+        reported = false;
+    }
+
+    /**
+     * read the head of the columnar table of type t and find its columns. the document input is left after the table,
+     * the columns are read through views of it, or of a copy of the table if it has no views.
+     */
+    private Table openTable(byte t) throws IOException {
+        int sl = t&0x0F;
+        if(sl!=1 && sl!=2 && sl!=4) throw new IOException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+        Table tb = new Table();
+        tb.outer = in;
+        tb.rows = readLen(sl);
+        int nk = readLen(sl);
+        if(tb.rows<0 || nk<0) throw new IOException("invalid table size");
+        tb.keys = new int[nk];
+        for(int k=0;k<nk;++k) tb.keys[k] = parseId();
+        tb.cols = new Column[nk];
+        AsonInput scan = in.view(in.position(), in.position())!=null?in:new CopyingInput(in);
+        long marks[] = new long[nk*3]; // positions of absent bitmap, null bitmap and values of each column
+        int bytes = (tb.rows+7)>>3;
+        in = scan;
+        try {
+            for(int k=0;k<nk;++k) {
+                int flags = in.readUint8();
+                marks[k*3] = (flags&AsonParser.TABLE_ABSENT)!=0?in.position():-1;
+                if((flags&AsonParser.TABLE_ABSENT)!=0) in.skip(bytes);
+                marks[k*3+1] = (flags&AsonParser.TABLE_NULL)!=0?in.position():-1;
+                if((flags&AsonParser.TABLE_NULL)!=0) in.skip(bytes);
+                marks[k*3+2] = in.position();
+                skipBody(in.readByte()); // inline keys of the columns are collected here
+            }
+            long end = in.position();
+            for(int k=0;k<nk;++k) {
+                Column c = new Column();
+                if(marks[k*3]>=0) c.absent = scan.view(marks[k*3], marks[k*3]+bytes);
+                if(marks[k*3+1]>=0) c.nulls = scan.view(marks[k*3+1], marks[k*3+1]+bytes);
+                in = scan.view(marks[k*3+2], end);
+                byte vt = in.readByte();
+                int h = vt&0xF0;
+                if(h==0xC0) {
+                    c.table = openTable(vt);
+                } else if(vt==AsonValue.TYPE_ARRAY || ((h==0xE0 || h==0xB0) && ((vt&0x0F)==1 || (vt&0x0F)==2 || (vt&0x0F)==4))) {
+                    if(h==0xB0) c.packed = in.readByte();
+                    if(vt!=AsonValue.TYPE_ARRAY) readLen(vt&0x0F);
+                    c.values = in;
+                } else {
+                    throw new IOException("invalid table column");
+                }
+                tb.cols[k] = c;
+            }
+        } finally {
+            in = tb.outer;
+        }
+        return tb;
+    }
+
+    /**
+     * start the next row of tb, the absent and null bits of each column are read.
+     */
+    private void beginRow(Table tb) throws IOException {
+        if(tb.row>=tb.rows) throw new IOException("invalid table column");
+        int r = tb.row++;
+        int bit = 1<<(r&7);
+        for(Column c : tb.cols) {
+            if((r&7)==0) {
+                if(c.absent!=null) c.absentBits = c.absent.readUint8();
+                if(c.nulls!=null) c.nullBits = c.nulls.readUint8();
+            }
+            c.rowAbsent = c.absent!=null && (c.absentBits&bit)!=0;
+            c.rowNull = !c.rowAbsent && c.nulls!=null && (c.nullBits&bit)!=0;
+        }
+        tb.col = 0;
+    }
+
+    /**
+     * move to the value of column c in current row.
+     * @return type of the value, its body is read from in.
+     */
+    private byte columnValue(Column c) throws IOException {
+        if(c.rowNull) return AsonValue.TYPE_NULL;
+        if(c.table!=null) {
+            rowTable = c.table;
+            return TYPE_ROW;
+        }
+        in = c.values;
+        return c.packed!=0?c.packed:in.readByte();
+    }
+
+    private void skipRow(Table tb) throws IOException {
+        AsonInput saved = in;
+        beginRow(tb);
+        for(Column c : tb.cols) {
+            if(!c.rowAbsent) skipBody(columnValue(c));
+        }
+        in = saved;
+    }
+
+    /**
+     * take the pending value type, its body is to be read by caller.
+     */
+    private byte take() throws IOException {
+        if(pendingType==0) prepareValue();
+        byte t = pendingType;
+        pendingType = 0;
+        reported = false;
+        keyRead = false;
+        if(depth==0) finished = true;
+        return t;
+    }
+
+    private boolean atEnd() throws IOException {
+        Table tb = tables[depth-1];
+        if(tb!=null) return !objects[depth-1] && tb.row>=tb.rows;
+        long end = ends[depth-1];
+        if(end>=0) return in.position()>=end;
+        if(objects[depth-1]) return false;
+        if(in.peek()==0) {
+            in.readByte();
+            return true;
+        }
+        return false;
+    }
+
+    private void push(boolean object) throws IOException {
+        byte t = take();
+        long end = -1;
+        byte et = 0;
+        Table tb = null;
+        if(t==TYPE_ROW) {
+            tb = rowTable;
+            beginRow(tb);
+        } else if((t&0xF0)==0xC0) {
+            tb = openTable(t);
+        } else if((t&0xF0)==0xB0) {
+            et = in.readByte();
+            long len = packedLength(t, et);
+            end = in.position()+len;
+        } else if(t!=AsonValue.TYPE_ARRAY && t!=AsonValue.TYPE_OBJECT) {
+            int len = readLen(t&0x0F);
+            end = in.position()+len;
+        }
+        if(depth==0) finished = false;
+        if(depth==objects.length) {
+            objects = Arrays.copyOf(objects, depth*2);
+            ends = Arrays.copyOf(ends, depth*2);
+            packed = Arrays.copyOf(packed, depth*2);
+            tables = Arrays.copyOf(tables, depth*2);
+        }
+        objects[depth] = object;
+        ends[depth] = end;
+        packed[depth] = et;
+        tables[depth] = tb;
+        ++depth;
+    }
+
+    private void pop() throws IOException {
+        --depth;
+        keyRead = false;
+        Table tb = tables[depth];
+        if(tb!=null) {
+            if(!objects[depth]) in = tb.outer;
+            tables[depth] = null;
+        }
+        if(depth==0) finished = true;
+        endValue();
+    }
+
+    /**
+     * called after the body of a value is read, the index table of a FLAG_INDEX document is skipped after the root value,
+     * so the input is at the next document.
+     */
+    private void endValue() throws IOException {
+        if(depth>0 || !indexed) return;
+        indexed = false;
+        AsonParser.skipIndex(in);
+    }
+
+    private IllegalStateException mismatch(String expected, byte t) {
+        return new IllegalStateException("expected "+expected+" but was 0x"+Integer.toHexString(t&0xFF));
+    }
+
+    /**
+     * columnar table read as an array of objects.
+     */
+    private static final class Table {
+        AsonInput outer; // input to go on with after the table
+        int rows;
+        int row; // rows started
+        int keys[];
+        Column cols[];
+        int col; // next column of current row
+        int cur; // column of the key read last
+    }
+
+    /**
+     * one column of a table, its inputs are at the current row.
+     */
+    private static final class Column {
+        AsonInput absent; // bitmap of rows without the key, null if there is none
+        AsonInput nulls; // bitmap of rows with null value, null if there is none
+        int absentBits; // bitmap byte of current row
+        int nullBits;
+        boolean rowAbsent;
+        boolean rowNull;
+        AsonInput values; // the other values, after the array head
+        byte packed; // element type if the values are packed
+        Table table; // rows if the values are a table
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.parser;
+
+import com.dizsoft.ason.AsonLazyValue;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.SharedDictionary;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Reader of ason record files written by AsonRecordWriter. The file is memory mapped,
+ * record N is located through the footer index without reading the records before it.
+ * <pre>
+ * file:   [header][record or sync]...[record or sync][footer]
+ * header: [magic "ASRF" (4byte)][sync marker (16byte)][dict size (4byte)][[id (4byte)][length of name (1byte)][name string]...]
+ * record: [length (4byte)][ason document of length bytes]
+ * sync:   [-1 (4byte)][sync marker (16byte)]
+ * footer: [record offset (8byte)]...[sync offset (8byte)]...[record count (4byte)][sync count (4byte)][magic "ASRF" (4byte)]
+ * </pre>
+ * The dictionary block is registered as SharedDictionary, records of it are written with its hash id only.
+ * A file without valid footer, e.g. of a writer that did not close, is recovered by reading the records
+ * in order; a damaged record is skipped up to the next sync marker.
+ * Records may be read by many threads at once, each call works on its own view of the mapping.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public final class AsonRecordReader implements Closeable, Iterable<AsonValue> {
+    public static final int MAGIC = 0x41535246;
+    public static final int SYNC_SIZE = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final byte sync[] = new byte[SYNC_SIZE];
+    private SharedDictionary dict;
+    private long dataStart;
+    private long dataEnd;
+    private long records[];
+    private int count;
+    private long syncs[];
+    private int syncCount;
+    private boolean recovered;
+    private volatile ByteBuffer map; // whole file, null until the first record is read or if larger than 2G
+
+    public AsonRecordReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            channel = this.file.getChannel();
+            fileSize = channel.size();
+            readHeader();
+            if(!readFooter()) recover();
+        } catch(IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of records.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return dictionary of the file, null if it has none.
+     */
+    public SharedDictionary getDictionary() {
+        return dict;
+    }
+
+    /**
+     * @return true if the footer was missing or invalid and the records were found by reading the file.
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    /**
+     * @param n record index
+     * @return file offset of the length field of record n.
+     */
+    public long getOffset(int n) {
+        if(n<0 || n>=count) throw new IndexOutOfBoundsException("record "+n+" of "+count);
+        return records[n];
+    }
+
+    /**
+     * @return file offsets of the sync markers.
+     */
+    public long[] getSyncOffsets() {
+        return Arrays.copyOf(syncs, syncCount);
+    }
+
+    /**
+     * @return the sync marker of this file.
+     */
+    public byte[] getSyncMarker() {
+        return sync.clone();
+    }
+
+    /**
+     * @return file offset after the last valid record or sync marker, where the footer starts.
+     */
+    public long getEnd() {
+        return dataEnd;
+    }
+
+    /**
+     * Get the data of a record.
+     * @param n record index
+     * @return read only buffer of the ason document of record n.
+     * @throws IOException
+     */
+    public ByteBuffer getBuffer(int n) throws IOException {
+        long p = getOffset(n);
+        ByteBuffer m = map();
+        if(m!=null) {
+            int len = m.getInt((int)p);
+            ByteBuffer b = m.duplicate();
+            b.position((int)p+4).limit((int)p+4+len);
+            return b.slice();
+        }
+        ByteBuffer len = read(p, 4);
+        return channel.map(FileChannel.MapMode.READ_ONLY, p+4, len.getInt(0));
+    }
+
+    /**
+     * @param n record index
+     * @return record n parsed.
+     * @throws IOException
+     */
+    public AsonValue get(int n) throws IOException {
+        return new AsonParser().parse(getBuffer(n));
+    }
+
+    /**
+     * @param n record index
+     * @return lazy view of record n.
+     * @throws IOException
+     */
+    public AsonLazyValue getLazy(int n) throws IOException {
+        return AsonLazyValue.wrap(getBuffer(n));
+    }
+
+    /**
+     * Records of a byte range of the file, for splitting one file among workers by size.
+     * a record belongs to the range holding the last sync marker (or the header) before it,
+     * so the ranges [0,a) [a,b) ... [z,file size) give every record exactly once.
+     * @param start first byte of the range
+     * @param end byte after the range
+     * @return {first record, record after the last}
+     */
+    public int[] split(long start, long end) {
+        return new int[]{firstAfterSync(start), firstAfterSync(end)};
+    }
+
+    /**
+     * Iterate records in order, IOException is thrown as IllegalStateException.
+     * @return
+     */
+    @Override
+    public Iterator<AsonValue> iterator() {
+        return new Iterator<AsonValue>() {
+            int i = 0;
+            @Override
+            public boolean hasNext() { return i<count; }
+            @Override
+            public AsonValue next() {
+                if(i>=count) throw new NoSuchElementException();
+                return parse(i++);
+            }
+            @Override
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    /**
+     * @param parallel parse records in parallel
+     * @return stream of the records in order, IOException is thrown as IllegalStateException.
+     */
+    public Stream<AsonValue> stream(boolean parallel) {
+        IntStream s = IntStream.range(0, count);
+        return (parallel?s.parallel():s).mapToObj(this::parse);
+    }
+
+    @Override
+    public void close() throws IOException {
+        map = null;
+        file.close();
+    }
+
+    private AsonValue parse(int n) {
+        try {
+            return get(n);
+        } catch(IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private ByteBuffer map() throws IOException {
+        ByteBuffer m = map;
+        if(m==null && fileSize<=Integer.MAX_VALUE) {
+            m = map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        }
+        return m;
+    }
+
+    private ByteBuffer read(long p, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while(b.hasRemaining()) {
+            if(channel.read(b, p+b.position())<0) throw new IOException("unexpected end of record file");
+        }
+        b.flip();
+        return b;
+    }
+
+    private void readHeader() throws IOException {
+        if(fileSize<8+SYNC_SIZE) throw new IOException("not an ason record file");
+        ByteBuffer h = read(0, 8+SYNC_SIZE);
+        if(h.getInt()!=MAGIC) throw new IOException("not an ason record file");
+        h.get(sync);
+        int size = h.getInt();
+        if(size<0 || 8+SYNC_SIZE+(long)size>fileSize) throw new IOException("invalid dictionary block");
+        dataStart = 8+SYNC_SIZE+size;
+        if(size==0) return;
+        ByteBuffer d = read(8+SYNC_SIZE, size);
+        Map<String,Integer> names = new HashMap<>();
+        while(d.hasRemaining()) {
+            int id = d.getInt();
+            byte name[] = new byte[d.get()&0xFF];
+            d.get(name);
+            names.put(new String(name, StandardCharsets.UTF_8), id);
+        }
+        dict = SharedDictionary.register(new SharedDictionary(names));
+    }
+
+    private boolean readFooter() throws IOException {
+        if(fileSize-dataStart<12) return false;
+        ByteBuffer t = read(fileSize-12, 12);
+        int rc = t.getInt();
+        int sc = t.getInt();
+        if(t.getInt()!=MAGIC || rc<0 || sc<0) return false;
+        long start = fileSize-12-8L*rc-8L*sc;
+        if(start<dataStart || fileSize-12-start>Integer.MAX_VALUE) return false;
+        ByteBuffer f = read(start, (int)(fileSize-12-start));
+        long rs[] = new long[rc];
+        long ss[] = new long[sc];
+        for(int i=0;i<rc;++i) rs[i] = f.getLong();
+        for(int i=0;i<sc;++i) ss[i] = f.getLong();
+        long last = dataStart;
+        for(long p : rs) {
+            if(p<last || p+4>start) return false;
+            last = p+4;
+        }
+        records = rs;
+        count = rc;
+        syncs = ss;
+        syncCount = sc;
+        dataEnd = start;
+        return true;
+    }
+
+    /**
+     * find the records by reading the file from the header.
+     */
+    private void recover() throws IOException {
+        recovered = true;
+        records = new long[64];
+        syncs = new long[16];
+        long p = dataStart;
+        long end = dataStart;
+        while(p+4<=fileSize) {
+            int len = read(p, 4).getInt();
+            if(len==-1 && p+4+SYNC_SIZE<=fileSize && isSync(p+4)) {
+                if(syncCount==syncs.length) syncs = Arrays.copyOf(syncs, syncCount*2);
+                syncs[syncCount++] = p;
+                p = end = p+4+SYNC_SIZE;
+            } else if(len>=4 && p+4+len<=fileSize && (read(p+4, 4).getInt()&AsonParser.FLAG_ASON)!=0) {
+                if(count==records.length) records = Arrays.copyOf(records, count*2);
+                records[count++] = p;
+                p = end = p+4+len;
+            } else {
+                p = findSync(p+1);
+                if(p<0) break;
+            }
+        }
+        dataEnd = end;
+    }
+
+    private boolean isSync(long p) throws IOException {
+        return Arrays.equals(read(p, SYNC_SIZE).array(), sync);
+    }
+
+    /**
+     * @return offset of the first sync at or after p, -1 if none.
+     */
+    private long findSync(long p) throws IOException {
+        byte pattern[] = new byte[4+SYNC_SIZE];
+        Arrays.fill(pattern, 0, 4, (byte)-1);
+        System.arraycopy(sync, 0, pattern, 4, SYNC_SIZE);
+        while(p+pattern.length<=fileSize) {
+            int n = (int)Math.min(64<<10, fileSize-p);
+            byte b[] = read(p, n).array();
+            for(int i=0;i+pattern.length<=n;++i) {
+                int k = 0;
+                while(k<pattern.length && b[i+k]==pattern[k]) ++k;
+                if(k==pattern.length) return p+i;
+            }
+            p += n-pattern.length+1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the first record after the first sync point at or after p.
+     */
+    private int firstAfterSync(long p) {
+        long s;
+        if(p<=dataStart) {
+            s = dataStart;
+        } else {
+            int i = Arrays.binarySearch(syncs, 0, syncCount, p);
+            if(i<0) i = -i-1;
+            if(i==syncCount) return count;
+            s = syncs[i];
+        }
+        int i = Arrays.binarySearch(records, 0, count, s);
+        return i<0?-i-1:i;
+    }
+}
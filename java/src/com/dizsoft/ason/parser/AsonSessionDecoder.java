@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.parser;
+
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.ConcurrentKeyDictionary;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder of framed ason messages written by AsonSessionEncoder over one connection.
+ * The dictionary is kept across messages, so key names sent once by the encoder stay known.
+ * Blocking channels and streams are read by read(), chunks from non-blocking or asynchronous
+ * channels are passed to feed():
+ * <pre>
+ * AsonSessionDecoder dec = new AsonSessionDecoder();
+ * // in the CompletionHandler of AsynchronousSocketChannel.read:
+ * buffer.flip();
+ * for(AsonValue v : dec.feed(buffer)) handle(v);
+ * buffer.clear();
+ * </pre>
+ * All decoded values share the session dictionary, it is safe to use them in other threads.
+ * Not thread safe, use one decoder per connection.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonSessionDecoder {
+    public static final int DEFAULT_MAX_FRAME = 64<<20;
+
+    private final ConcurrentKeyDictionary dictMap = new ConcurrentKeyDictionary();
+    private final AsonParser parser = new AsonParser(dictMap);
+    private final int maxFrame;
+    private final ByteBuffer head = ByteBuffer.allocate(4);
+    private ByteBuffer body; // pending message, null while reading the length
+
+    public AsonSessionDecoder() {
+        this(DEFAULT_MAX_FRAME);
+    }
+
+    /**
+     * @param maxFrame largest message accepted, in bytes.
+     */
+    public AsonSessionDecoder(int maxFrame) {
+        this.maxFrame = maxFrame;
+    }
+
+    /**
+     * get the session dictionary, contains the keys received so far.
+     * @return session dictionary.
+     */
+    public AbstractKeyDictionary getDictMap() {
+        return dictMap;
+    }
+
+    /**
+     * decode one message without its length.
+     * @param message ason data between position and limit
+     * @return decoded value
+     * @throws IOException 
+     */
+    public AsonValue decode(ByteBuffer message) throws IOException {
+        AsonValue ret = parser.parse(message);
+        if(ret==null) throw new IOException("not ason data.");
+        return ret;
+    }
+
+    /**
+     * consume all remaining bytes of chunk.
+     * @param chunk bytes received
+     * @return messages completed by this chunk, may be empty.
+     * @throws IOException on invalid data, the decoder can not be used after that.
+     */
+    public List<AsonValue> feed(ByteBuffer chunk) throws IOException {
+        List<AsonValue> out = new ArrayList<>(1);
+        feed(chunk, out);
+        return out;
+    }
+
+    /**
+     * consume all remaining bytes of chunk.
+     * @param chunk bytes received
+     * @param out completed messages are added to it.
+     * @return count of messages completed by this chunk.
+     * @throws IOException on invalid data, the decoder can not be used after that.
+     */
+    public int feed(ByteBuffer chunk, List<AsonValue> out) throws IOException {
+        int n = out.size();
+        while(chunk.hasRemaining()) {
+            if(body==null) {
+                if(head.position()==0 && chunk.remaining()>=4) {
+                    int len = frameLength(int32(chunk, chunk.position()));
+                    if(chunk.remaining()-4>=len) { // whole message in chunk, parse in place
+                        ByteBuffer m = chunk.duplicate();
+                        m.position(chunk.position()+4).limit(chunk.position()+4+len);
+                        chunk.position(chunk.position()+4+len);
+                        out.add(decode(m));
+                        continue;
+                    }
+                }
+                transfer(chunk, head);
+                if(head.hasRemaining()) break;
+                int len = frameLength(head.getInt(0));
+                head.clear();
+                body = ByteBuffer.allocate(len);
+            }
+            transfer(chunk, body);
+            if(body.hasRemaining()) break;
+            body.flip();
+            ByteBuffer m = body;
+            body = null;
+            out.add(decode(m));
+        }
+        return out.size()-n;
+    }
+
+    /**
+     * check if no partial message is pending.
+     * @return
+     */
+    public boolean isIdle() {
+        return body==null && head.position()==0;
+    }
+
+    /**
+     * read one message from channel.
+     * @param channel channel to be read from, must be in blocking mode.
+     * @return decoded value, null if channel is at end of stream.
+     * @throws IOException 
+     */
+    public AsonValue read(ReadableByteChannel channel) throws IOException {
+        if(!isIdle()) throw new IllegalStateException("partial message pending.");
+        if(!readFully(channel, head, true)) return null;
+        int len = frameLength(head.getInt(0));
+        head.clear();
+        ByteBuffer m = ByteBuffer.allocate(len);
+        readFully(channel, m, false);
+        m.flip();
+        return decode(m);
+    }
+
+    /**
+     * read one message from inputstream.
+     * @param is inputstream to be read from
+     * @return decoded value, null if inputstream is at end of stream.
+     * @throws IOException 
+     */
+    public AsonValue read(InputStream is) throws IOException {
+        if(!isIdle()) throw new IllegalStateException("partial message pending.");
+        byte h[] = new byte[4];
+        if(!readFully(is, h, true)) return null;
+        int len = frameLength(((h[0]&0xFF)<<24)|((h[1]&0xFF)<<16)|((h[2]&0xFF)<<8)|(h[3]&0xFF));
+        byte m[] = new byte[len];
+        readFully(is, m, false);
+        return decode(ByteBuffer.wrap(m));
+    }
+
+    private int frameLength(int len) throws IOException {
+        if(len<=0 || len>maxFrame) throw new IOException("invalid message length: "+len);
+        return len;
+    }
+
+    private static int int32(ByteBuffer b, int p) {
+        return ((b.get(p)&0xFF)<<24)|((b.get(p+1)&0xFF)<<16)|((b.get(p+2)&0xFF)<<8)|(b.get(p+3)&0xFF);
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int c = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer s = src.duplicate();
+        s.limit(s.position()+c);
+        dst.put(s);
+        src.position(src.position()+c);
+    }
+
+    /**
+     * @return false if end of stream is reached before any byte and eofOk is set.
+     */
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer dst, boolean eofOk) throws IOException {
+        while(dst.hasRemaining()) {
+            if(channel.read(dst)<0) {
+                if(eofOk && dst.position()==0) return false;
+                throw new EOFException();
+            }
+        }
+        return true;
+    }
+
+    private static boolean readFully(InputStream is, byte dst[], boolean eofOk) throws IOException {
+        int off = 0;
+        while(off<dst.length) {
+            int n = is.read(dst, off, dst.length-off);
+            if(n<0) {
+                if(eofOk && off==0) return false;
+                throw new EOFException();
+            }
+            off += n;
+        }
+        return true;
+    }
+}
@@ -25,57 +25,538 @@
  */
 package com.dizsoft.ason.parser;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONArray;
-import com.alibaba.fastjson.JSONObject;
+import com.dizsoft.ason.AbstractKeyDictionary;
 import com.dizsoft.ason.Ason;
 import com.dizsoft.ason.AsonValue;
-import java.io.ByteArrayOutputStream;
+import com.dizsoft.ason.serializer.AsonWriter;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
- *
+ * JSON parser building AsonValue tree directly from UTF-8 bytes.
+ * Streams are read through a fixed size buffer, the input is never held in memory as a whole.
+ * Numbers are stored in the smallest type holding them: integers as int8 to int64,
+ * decimals as float if the float prints the same, else double.
+ * Objects keep the key order of the input.
  * @author DizSoft Inc. jwang@dizsoft.com
  */
 public class JsonParser {
+    private static final int BUF_SIZE = 64*1024;
+    private static final double POW10[] = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int KEY_CACHE_SIZE = 256; // power of 2
+
     protected AsonValue rootNode;
-    
+
+    private InputStream is;
+    private byte buf[];
+    private int pos;
+    private int limit;
+    private long offset; // input position of buf[0]
+    private char chars[] = new char[64];
+    private byte num[] = new byte[32]; // text of current number
+    private int numLen;
+    private byte numType; // type of current number: TYPE_INT64, TYPE_FLOAT or TYPE_DOUBLE
+    private long numLong;
+    private double numDouble;
+    private final String keyCache[] = new String[KEY_CACHE_SIZE];
+    private final byte keyCacheBytes[][] = new byte[KEY_CACHE_SIZE][];
+
     public AsonValue parse(InputStream jsonInputStream) throws java.io.IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte data[] = new byte[1024];
-        int readed;
-        do {
-            readed = jsonInputStream.read(data);
-            if(readed>0) baos.write(data, 0, readed);
-        } while(readed>=0);
-        return parse(new String(baos.toByteArray(),"UTF-8"));
+        is = jsonInputStream;
+        buf = new byte[BUF_SIZE];
+        pos = limit = 0;
+        offset = 0;
+        try {
+            return parseDocument();
+        } finally {
+            is = null;
+            buf = null;
+        }
     }
+
+    public AsonValue parse(byte data[]) throws java.io.IOException {
+        return parse(data, 0, data.length);
+    }
+
+    public AsonValue parse(byte data[], int off, int len) throws java.io.IOException {
+        buf = data;
+        pos = off;
+        limit = off+len;
+        offset = -off;
+        try {
+            return parseDocument();
+        } finally {
+            buf = null;
+        }
+    }
+
+    /**
+     * parse json string.
+     * @param jsonStr json string
+     * @return parsed value
+     * @throws IllegalArgumentException if jsonStr is not valid json.
+     */
     public AsonValue parse(String jsonStr) {
+        try {
+            return parse(jsonStr.getBytes(StandardCharsets.UTF_8));
+        } catch(IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * parse json from stream into writer token by token, without building AsonValue tree.
+     * every root value of the input is written as one document, e.g. one json document per line.
+     * @param jsonInputStream json input
+     * @param writer output
+     * @return count of root values
+     * @throws java.io.IOException 
+     */
+    public long parse(InputStream jsonInputStream, AsonWriter writer) throws java.io.IOException {
+        is = jsonInputStream;
+        buf = new byte[BUF_SIZE];
+        pos = limit = 0;
+        offset = 0;
+        try {
+            long n = 0;
+            int c;
+            while((c = skipWhitespace())>=0) {
+                writeValue(c, writer);
+                ++n;
+            }
+            return n;
+        } finally {
+            is = null;
+            buf = null;
+        }
+    }
+
+    protected AsonValue parseDocument() throws IOException {
         rootNode = Ason.CreateRootArray(null);
-        return parse(JSON.parse(jsonStr));
-    }
-    
-    protected AsonValue parse(Object json) {
-        if(json instanceof JSONObject) {
-            AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered();
-            AsonValue ret = new AsonValue(rootNode, m);
-            Iterator<String> it = ((JSONObject)json).keySet().iterator();
-            while(it.hasNext()) {
-                String k = it.next();
-                Object v = ((JSONObject)json).get(k);
-                ret.add(k, parse(v));
+        int c = skipWhitespace();
+        if(c<0) throw new EOFException("empty json.");
+        AsonValue ret = parseValue(c);
+        if(skipWhitespace()>=0) throw error("unexpected data after json value");
+        rootNode.setValue(ret);
+        return rootNode;
+    }
+
+    protected AsonValue parseValue(int c) throws IOException {
+        switch(c) {
+            case '{': return parseObject();
+            case '[': return parseArray();
+            case '"': return new AsonValue(rootNode, parseString());
+            case 't': expect("rue"); return new AsonValue(rootNode, true);
+            case 'f': expect("alse"); return new AsonValue(rootNode, false);
+            case 'n': expect("ull"); return new AsonValue(rootNode, (Object)null);
+        }
+        if(c=='-' || (c>='0' && c<='9')) return parseNumber(c);
+        if(c<0) throw new EOFException("unexpected end of json.");
+        throw error("unexpected character '"+(char)c+"'");
+    }
+
+    protected void writeValue(int c, AsonWriter w) throws IOException {
+        switch(c) {
+            case '{':
+                w.beginObject();
+                c = skipWhitespace();
+                if(c!='}') {
+                    while(true) {
+                        if(c!='"') throw error("key expected");
+                        w.name(parseKey());
+                        if(skipWhitespace()!=':') throw error("':' expected");
+                        writeValue(skipWhitespace(), w);
+                        c = skipWhitespace();
+                        if(c=='}') break;
+                        if(c!=',') throw error("',' or '}' expected");
+                        c = skipWhitespace();
+                    }
+                }
+                w.end();
+                return;
+            case '[':
+                w.beginArray();
+                c = skipWhitespace();
+                if(c!=']') {
+                    while(true) {
+                        writeValue(c, w);
+                        c = skipWhitespace();
+                        if(c==']') break;
+                        if(c!=',') throw error("',' or ']' expected");
+                        c = skipWhitespace();
+                    }
+                }
+                w.end();
+                return;
+            case '"': w.value(parseString()); return;
+            case 't': expect("rue"); w.value(true); return;
+            case 'f': expect("alse"); w.value(false); return;
+            case 'n': expect("ull"); w.nullValue(); return;
+        }
+        if(c=='-' || (c>='0' && c<='9')) {
+            lexNumber(c);
+            if(numType==AsonValue.TYPE_INT64) {
+                w.value(numLong);
+            } else if(numType==AsonValue.TYPE_FLOAT) {
+                w.value((float)numDouble);
+            } else {
+                w.value(numDouble);
+            }
+            return;
+        }
+        if(c<0) throw new EOFException("unexpected end of json.");
+        throw error("unexpected character '"+(char)c+"'");
+    }
+
+    private AsonValue parseObject() throws IOException {
+        AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered();
+        AbstractKeyDictionary dict = rootNode.getDictMap();
+        int c = skipWhitespace();
+        if(c!='}') {
+            while(true) {
+                if(c!='"') throw error("key expected");
+                int id = dict.add(parseKey());
+                if(skipWhitespace()!=':') throw error("':' expected");
+                m.put(id, parseValue(skipWhitespace()));
+                c = skipWhitespace();
+                if(c=='}') break;
+                if(c!=',') throw error("',' or '}' expected");
+                c = skipWhitespace();
+            }
+        }
+        return new AsonValue(rootNode, m);
+    }
+
+    private AsonValue parseArray() throws IOException {
+        AsonValue.AsonArray l = new AsonValue.AsonArray();
+        int c = skipWhitespace();
+        if(c!=']') {
+            while(true) {
+                l.add(parseValue(c));
+                c = skipWhitespace();
+                if(c==']') break;
+                if(c!=',') throw error("',' or ']' expected");
+                c = skipWhitespace();
+            }
+        }
+        return new AsonValue(rootNode, l);
+    }
+
+    /**
+     * key names repeat a lot, an unescaped key found in the buffer is looked up in a small cache first.
+     */
+    private String parseKey() throws IOException {
+        int start = pos;
+        int h = 0;
+        int p = start;
+        while(p<limit) {
+            byte b = buf[p];
+            if(b=='"') break;
+            if(b=='\\') return parseString();
+            h = h*31+b;
+            ++p;
+        }
+        if(p>=limit) return parseString();
+        int len = p-start;
+        int slot = (h^(h>>>8))&(KEY_CACHE_SIZE-1);
+        byte cached[] = keyCacheBytes[slot];
+        pos = p+1;
+        if(cached!=null && cached.length==len && rangeEquals(cached, buf, start)) return keyCache[slot];
+        String ret = new String(buf, start, len, StandardCharsets.UTF_8);
+        keyCacheBytes[slot] = Arrays.copyOfRange(buf, start, p);
+        keyCache[slot] = ret;
+        return ret;
+    }
+
+    private static boolean rangeEquals(byte a[], byte b[], int off) {
+        for(int i=0;i<a.length;++i) {
+            if(a[i]!=b[off+i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * parse string after the opening quote.
+     */
+    private String parseString() throws IOException {
+        // fast path, no escape and the whole string in buffer
+        boolean ascii = true;
+        for(int p=pos;p<limit;++p) {
+            byte b = buf[p];
+            if(b=='"') {
+                String ret = new String(buf, pos, p-pos, ascii?StandardCharsets.ISO_8859_1:StandardCharsets.UTF_8);
+                pos = p+1;
+                return ret;
+            }
+            if(b=='\\' || (b>=0 && b<0x20)) break;
+            if(b<0) ascii = false;
+        }
+        int n = 0;
+        while(true) {
+            int c = read();
+            if(c=='"') break;
+            if(n+2>chars.length) chars = Arrays.copyOf(chars, chars.length*2);
+            if(c=='\\') {
+                chars[n++] = parseEscape();
+            } else if(c<0) {
+                throw new EOFException("unterminated string.");
+            } else if(c<0x20) {
+                throw error("control character in string");
+            } else if(c<0x80) {
+                chars[n++] = (char)c;
+            } else {
+                int cp = readUtf8(c);
+                if(cp>=0x10000) {
+                    chars[n++] = Character.highSurrogate(cp);
+                    chars[n++] = Character.lowSurrogate(cp);
+                } else {
+                    chars[n++] = (char)cp;
+                }
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    private char parseEscape() throws IOException {
+        int c = read();
+        switch(c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '/': return '/';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u': {
+                int v = 0;
+                for(int i=0;i<4;++i) {
+                    int d = Character.digit(read(), 16);
+                    if(d<0) throw error("invalid \\u escape");
+                    v = (v<<4)|d;
+                }
+                return (char)v;
+            }
+        }
+        throw error("invalid escape");
+    }
+
+    /**
+     * decode the rest of a multi byte UTF-8 sequence, malformed sequences give U+FFFD.
+     */
+    private int readUtf8(int lead) throws IOException {
+        int n;
+        int cp;
+        if((lead&0xE0)==0xC0) {
+            n = 1;
+            cp = lead&0x1F;
+        } else if((lead&0xF0)==0xE0) {
+            n = 2;
+            cp = lead&0x0F;
+        } else if((lead&0xF8)==0xF0) {
+            n = 3;
+            cp = lead&0x07;
+        } else {
+            return 0xFFFD;
+        }
+        for(int i=0;i<n;++i) {
+            int c = peek();
+            if((c&0xC0)!=0x80) return 0xFFFD;
+            ++pos;
+            cp = (cp<<6)|(c&0x3F);
+        }
+        return cp>0x10FFFF?0xFFFD:cp;
+    }
+
+    private AsonValue parseNumber(int c) throws IOException {
+        lexNumber(c);
+        if(numType==AsonValue.TYPE_INT64) return new AsonValue(rootNode, numLong);
+        if(numType==AsonValue.TYPE_FLOAT) return new AsonValue(rootNode, (float)numDouble);
+        return new AsonValue(rootNode, numDouble, false);
+    }
+
+    /**
+     * read number into numType and numLong/numDouble.
+     */
+    private void lexNumber(int c) throws IOException {
+        numLen = 0;
+        boolean neg = c=='-';
+        long m = 0;
+        int digits = 0; // significant digits in m
+        int exp = 0;
+        boolean exact = true; // m holds all significant digits
+        boolean integer = true;
+        numAppend(c);
+        if(neg) {
+            c = peek();
+            if(c<'0' || c>'9') throw error("digit expected");
+            ++pos;
+            numAppend(c);
+        }
+        if(c=='0') {
+            int n = peek();
+            if(n>='0' && n<='9') throw error("leading zero");
+        }
+        // integer part
+        while(true) {
+            if(digits<18) {
+                m = m*10+(c-'0');
+                if(m!=0) ++digits;
+            } else {
+                exact = false;
+                ++exp;
+            }
+            c = peek();
+            if(c<'0' || c>'9') break;
+            ++pos;
+            numAppend(c);
+        }
+        if(c=='.') {
+            integer = false;
+            ++pos;
+            numAppend('.');
+            c = peek();
+            if(c<'0' || c>'9') throw error("digit expected");
+            while(c>='0' && c<='9') {
+                ++pos;
+                numAppend(c);
+                if(digits<18) {
+                    m = m*10+(c-'0');
+                    if(m!=0) ++digits;
+                    --exp;
+                } else {
+                    exact = false;
+                }
+                c = peek();
+            }
+        }
+        if(c=='e' || c=='E') {
+            integer = false;
+            ++pos;
+            numAppend('e');
+            c = peek();
+            boolean eneg = c=='-';
+            if(c=='-' || c=='+') {
+                ++pos;
+                numAppend(c);
+                c = peek();
             }
-            return ret;
-        } else if(json instanceof JSONArray) {
-            AsonValue.AsonArray l = new AsonValue.AsonArray();
-            AsonValue ret = new AsonValue(rootNode, l);
-            for (Object v : (JSONArray)json) {
-                ret.add(parse(v));
+            if(c<'0' || c>'9') throw error("digit expected");
+            int e = 0;
+            while(c>='0' && c<='9') {
+                ++pos;
+                numAppend(c);
+                if(e<100000) e = e*10+(c-'0');
+                c = peek();
+            }
+            exp += eneg?-e:e;
+        }
+        if(!exact) {
+            String s = new String(num, 0, numLen, StandardCharsets.ISO_8859_1);
+            if(integer) {
+                try {
+                    setNumber(Long.parseLong(s));
+                    return;
+                } catch(NumberFormatException ignore) {
+                }
+            }
+            double d = Double.parseDouble(s);
+            if(Double.isInfinite(d)) throw error("number out of range");
+            setNumber(AsonValue.TYPE_DOUBLE, d);
+            return;
+        }
+        if(m==0) {
+            setNumber(0);
+            return;
+        }
+        while(m%10==0) {
+            m /= 10;
+            ++exp;
+            --digits;
+        }
+        if(exp>=0 && exp<=18) {
+            long f = (long)POW10[exp];
+            if(m<=Long.MAX_VALUE/f) {
+                setNumber(neg?-m*f:m*f);
+                return;
             }
-            return ret;
+        }
+        double d;
+        if(m<(1L<<53) && exp>=-22 && exp<=22) {
+            d = exp<0?m/POW10[-exp]:m*POW10[exp]; // exact operands, correctly rounded
+            if(neg) d = -d;
+        } else {
+            d = Double.parseDouble(new String(num, 0, numLen, StandardCharsets.ISO_8859_1));
+            if(Double.isInfinite(d)) throw error("number out of range");
+        }
+        double a = Math.abs(d);
+        boolean narrow;
+        if(digits<=6) {
+            narrow = a>=Float.MIN_NORMAL && a<=Float.MAX_VALUE;
         } else {
-            return new AsonValue(rootNode, json);
+            narrow = digits<=9 && Double.toString(d).equals(Float.toString((float)d)); // same rule as AsonValue
+        }
+        setNumber(narrow?AsonValue.TYPE_FLOAT:AsonValue.TYPE_DOUBLE, d);
+    }
+
+    private void setNumber(long l) {
+        numType = AsonValue.TYPE_INT64;
+        numLong = l;
+    }
+
+    private void setNumber(byte type, double d) {
+        numType = type;
+        numDouble = d;
+    }
+
+    private void numAppend(int c) {
+        if(numLen==num.length) num = Arrays.copyOf(num, numLen*2);
+        num[numLen++] = (byte)c;
+    }
+
+    private void expect(String rest) throws IOException {
+        for(int i=0;i<rest.length();++i) {
+            if(read()!=rest.charAt(i)) throw error("invalid literal");
         }
     }
+
+    private int skipWhitespace() throws IOException {
+        while(true) {
+            int c = pos<limit?buf[pos++]&0xFF:read();
+            if(c!=' ' && c!='\n' && c!='\r' && c!='\t') return c;
+        }
+    }
+
+    private int read() throws IOException {
+        if(pos<limit || fill()) return buf[pos++]&0xFF;
+        return -1;
+    }
+
+    private int peek() throws IOException {
+        if(pos<limit || fill()) return buf[pos]&0xFF;
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        if(is==null) return false;
+        offset += limit;
+        pos = limit = 0;
+        int n;
+        do {
+            n = is.read(buf, 0, buf.length);
+        } while(n==0);
+        if(n<0) return false;
+        limit = n;
+        return true;
+    }
+
+    private IOException error(String msg) {
+        return new IOException("invalid json at "+(offset+pos)+": "+msg);
+    }
 }
@@ -25,10 +25,448 @@
  */
 package com.dizsoft.ason.parser;
 
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.ObjectBinding;
+import com.dizsoft.ason.io.AsonInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- *
+ * Binds ason data to java objects straight from the input, without AsonValue tree.
+ * <pre>
+ * Catalog c = new ObjectParser().parse(data, Catalog.class);
+ * </pre>
+ * Targets are classes with a no-arg constructor or records (properties see ObjectBinding), String, numbers, Boolean, Character,
+ * byte[], enums by name, arrays, collections, maps with String, number or enum keys, and Object, which gets
+ * LinkedHashMap, ArrayList, Integer, Long, Float, Double, String, Boolean or byte[] values.
+ * Each target type gets its reading code once, shared by all parsers, properties are set by ObjectBinding
+ * method handles. Key ids of a document are mapped to properties once, the mapping is kept while documents
+ * share a dictionary.
+ * Keys without property are skipped, null leaves primitive properties unchanged.
+ * A parser is not thread safe.
  * @author DizSoft Inc. jwang@dizsoft.com
  */
 public class ObjectParser {
-    
+    private static final int MAX_RESOLVED_ID = 0xFFFF; // larger ids are looked up by name each time
+
+    private AbstractKeyDictionary dict; // dictionary the resolved ids belong to
+    private int resolved[][] = new int[16][]; // by binding index, key id to property index+1, -1 if none
+
+    public <T> T parse(byte data[], Class<T> type) throws IOException {
+        return read(new AsonReader(data), type);
+    }
+
+    public <T> T parse(InputStream is, Class<T> type) throws IOException {
+        return read(new AsonReader(is), type);
+    }
+
+    public <T> T parse(ByteBuffer buffer, Class<T> type) throws IOException {
+        return read(new AsonReader(buffer), type);
+    }
+
+    public <T> T parse(AsonInput in, Class<T> type) throws IOException {
+        return read(new AsonReader(in), type);
+    }
+
+    /**
+     * read the next value of r.
+     * @param r reader
+     * @param type target class
+     * @return value, null for ason null.
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T read(AsonReader r, Class<T> type) throws IOException {
+        return (T)read(r, (Type)type);
+    }
+
+    /**
+     * read the next value of r.
+     * @param r reader
+     * @param type target type, a ParameterizedType gives the element types of collections and maps.
+     * @return value, null for ason null.
+     * @throws IOException
+     */
+    public Object read(AsonReader r, Type type) throws IOException {
+        r.peekType(); // the header is read
+        AbstractKeyDictionary d = r.getDictMap();
+        if(d!=dict) {
+            dict = d;
+            Arrays.fill(resolved, null);
+        }
+        return readValue(r, codec(type));
+    }
+
+    /**
+     * reads a non-null value of one target type, created once per type and shared by all parsers.
+     */
+    private interface Codec {
+        Object read(ObjectParser p, AsonReader r) throws IOException;
+    }
+
+    private static final ConcurrentHashMap<Type,Codec> codecs = new ConcurrentHashMap<>();
+
+    private static final Codec STRING = (p, r) -> r.readString();
+    private static final Codec ANY = (p, r) -> p.readAny(r);
+    private static final Codec INT = (p, r) -> (int)integral(r, ObjectBinding.KIND_INT);
+    private static final Codec LONG = (p, r) -> r.readLong();
+    private static final Codec DOUBLE = (p, r) -> r.readDouble();
+    private static final Codec FLOAT = (p, r) -> (float)r.readDouble();
+    private static final Codec BOOLEAN = (p, r) -> r.readBoolean();
+    private static final Codec SHORT = (p, r) -> (short)integral(r, ObjectBinding.KIND_SHORT);
+    private static final Codec BYTE = (p, r) -> (byte)integral(r, ObjectBinding.KIND_BYTE);
+    private static final ArrayCodec BYTE_ARRAY = new ArrayCodec(byte.class, BYTE);
+    private static final Codec BYTES = (p, r) -> r.peekType()==AsonValue.TYPE_BYTES?r.readBytes():p.readArray(r, BYTE_ARRAY);
+    private static final Codec CHAR = (p, r) -> {
+        if(r.peekType()!=AsonValue.TYPE_STRING) return (char)integral(r, ObjectBinding.KIND_CHAR);
+        String s = r.readString();
+        if(s.length()!=1) throw new IllegalStateException("expected one char but was \""+s+"\"");
+        return s.charAt(0);
+    };
+
+    private static Codec codec(Type type) {
+        Codec c = codecs.get(type);
+        if(c==null) {
+            c = createCodec(type);
+            Codec o = codecs.putIfAbsent(type, c);
+            if(o!=null) c = o;
+        }
+        return c;
+    }
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private static Codec createCodec(Type type) {
+        Class<?> c = rawClass(type);
+        if(c==String.class) return STRING;
+        if(c==Object.class || c==Number.class) return ANY;
+        if(c==Integer.class || c==int.class) return INT;
+        if(c==Long.class || c==long.class) return LONG;
+        if(c==Double.class || c==double.class) return DOUBLE;
+        if(c==Float.class || c==float.class) return FLOAT;
+        if(c==Boolean.class || c==boolean.class) return BOOLEAN;
+        if(c==Short.class || c==short.class) return SHORT;
+        if(c==Byte.class || c==byte.class) return BYTE;
+        if(c==Character.class || c==char.class) return CHAR;
+        if(c==byte[].class) return BYTES;
+        if(c.isEnum()) return (p, r) -> Enum.valueOf((Class<Enum>)c, r.readString());
+        if(c.isArray()) {
+            Type ct = type instanceof GenericArrayType?((GenericArrayType)type).getGenericComponentType():c.getComponentType();
+            return new ArrayCodec(rawClass(ct), codec(ct));
+        }
+        if(Collection.class.isAssignableFrom(c)) {
+            Codec ec = codec(typeArgument(type, 0));
+            return (p, r) -> p.readCollection(r, newCollection(c), ec);
+        }
+        if(Map.class.isAssignableFrom(c)) {
+            Class<?> kc = rawClass(typeArgument(type, 0));
+            if(kc!=String.class && kc!=Object.class && kc!=Integer.class && kc!=Long.class && !kc.isEnum()) {
+                throw new IllegalArgumentException("Unsupported map key type "+kc.getName());
+            }
+            Codec vc = codec(typeArgument(type, 1));
+            return (p, r) -> p.readMap(r, newMap(c), kc, vc);
+        }
+        return new BeanCodec(ObjectBinding.of(c));
+    }
+
+    private static final class ArrayCodec implements Codec {
+        final Class<?> componentType;
+        final Codec component;
+
+        ArrayCodec(Class<?> componentType, Codec component) {
+            this.componentType = componentType;
+            this.component = component;
+        }
+
+        @Override
+        public Object read(ObjectParser p, AsonReader r) throws IOException {
+            return p.readArray(r, this);
+        }
+    }
+
+    private static final class BeanCodec implements Codec {
+        final ObjectBinding binding;
+        final ObjectBinding.Property properties[];
+        final Codec codecs[]; // resolved on first use, so recursive types work
+
+        BeanCodec(ObjectBinding binding) {
+            this.binding = binding;
+            this.properties = binding.getProperties();
+            this.codecs = new Codec[properties.length];
+        }
+
+        Codec codec(int i) {
+            Codec c = codecs[i];
+            if(c==null) c = codecs[i] = ObjectParser.codec(properties[i].getGenericType());
+            return c;
+        }
+
+        @Override
+        public Object read(ObjectParser p, AsonReader r) throws IOException {
+            return p.readObject(r, this);
+        }
+    }
+
+    private Object readValue(AsonReader r, Codec c) throws IOException {
+        if(r.peekType()==AsonValue.TYPE_NULL) {
+            r.readNull();
+            return null;
+        }
+        return c.read(this, r);
+    }
+
+    private Object readObject(AsonReader r, BeanCodec bc) throws IOException {
+        if(bc.binding.isRecord()) return readRecord(r, bc);
+        Object bean = bc.binding.newInstance();
+        r.beginObject();
+        int id;
+        while((id = r.readKeyId())!=0) {
+            int pi = property(bc.binding, id);
+            ObjectBinding.Property p = pi<0?null:bc.properties[pi];
+            if(p==null || !p.isWritable()) {
+                r.skipValue();
+                continue;
+            }
+            int k = p.getKind();
+            if(k==ObjectBinding.KIND_OBJECT) {
+                p.set(bean, readValue(r, bc.codec(pi)));
+            } else if(r.peekType()==AsonValue.TYPE_NULL) {
+                r.readNull();
+            } else if(k==ObjectBinding.KIND_BOOLEAN) {
+                p.setBoolean(bean, r.readBoolean());
+            } else if(k>=ObjectBinding.KIND_FLOAT) {
+                p.setDouble(bean, r.readDouble());
+            } else if(k==ObjectBinding.KIND_CHAR) {
+                p.setLong(bean, (Character)CHAR.read(this, r));
+            } else {
+                p.setLong(bean, integral(r, k));
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * read the components of a record into constructor arguments, components without key keep their default.
+     */
+    private Object readRecord(AsonReader r, BeanCodec bc) throws IOException {
+        Object args[] = bc.binding.recordArguments();
+        r.beginObject();
+        int id;
+        while((id = r.readKeyId())!=0) {
+            int pi = property(bc.binding, id);
+            if(pi<0) {
+                r.skipValue();
+                continue;
+            }
+            Object v = readValue(r, bc.codec(pi));
+            if(v!=null || bc.properties[pi].getKind()==ObjectBinding.KIND_OBJECT) args[pi] = v;
+        }
+        return bc.binding.newRecord(args);
+    }
+
+    /**
+     * find the property index of a key id of current document, -1 if none.
+     */
+    private int property(ObjectBinding b, int id) {
+        if(id>MAX_RESOLVED_ID) {
+            String name = dict.getName(id);
+            ObjectBinding.Property p = name==null?null:b.getProperty(name);
+            return p==null?-1:p.getIndex();
+        }
+        int bi = b.getIndex();
+        if(bi>=resolved.length) resolved = Arrays.copyOf(resolved, Math.max(bi+1, resolved.length*2));
+        int ps[] = resolved[bi];
+        if(ps==null || id>=ps.length) {
+            ps = resolved[bi] = ps==null?new int[Math.max(id+1, 32)]:Arrays.copyOf(ps, Math.max(id+1, ps.length*2));
+        }
+        int pi = ps[id];
+        if(pi==0) {
+            String name = dict.getName(id);
+            ObjectBinding.Property p = name==null?null:b.getProperty(name);
+            pi = ps[id] = p==null?-1:p.getIndex()+1;
+        }
+        return pi-1;
+    }
+
+    /**
+     * read an integer and check that it fits the integral kind.
+     */
+    private static long integral(AsonReader r, int kind) throws IOException {
+        long v = r.readLong();
+        boolean fits;
+        switch(kind) {
+            case ObjectBinding.KIND_BYTE: fits = v==(byte)v; break;
+            case ObjectBinding.KIND_SHORT: fits = v==(short)v; break;
+            case ObjectBinding.KIND_CHAR: fits = v==(char)v; break;
+            case ObjectBinding.KIND_INT: fits = v==(int)v; break;
+            default: fits = true;
+        }
+        if(!fits) throw new ArithmeticException("integer overflow: "+v);
+        return v;
+    }
+
+    private Object readArray(AsonReader r, ArrayCodec ac) throws IOException {
+        Class<?> ct = ac.componentType;
+        r.beginArray();
+        Object ret;
+        if(ct==int.class) {
+            int a[] = new int[16];
+            int n = 0;
+            while(r.hasNext()) {
+                if(n==a.length) a = Arrays.copyOf(a, n*2);
+                a[n++] = (int)integral(r, ObjectBinding.KIND_INT);
+            }
+            ret = Arrays.copyOf(a, n);
+        } else if(ct==long.class) {
+            long a[] = new long[16];
+            int n = 0;
+            while(r.hasNext()) {
+                if(n==a.length) a = Arrays.copyOf(a, n*2);
+                a[n++] = r.readLong();
+            }
+            ret = Arrays.copyOf(a, n);
+        } else if(ct==double.class) {
+            double a[] = new double[16];
+            int n = 0;
+            while(r.hasNext()) {
+                if(n==a.length) a = Arrays.copyOf(a, n*2);
+                a[n++] = r.readDouble();
+            }
+            ret = Arrays.copyOf(a, n);
+        } else {
+            List<Object> l = new ArrayList<>();
+            while(r.hasNext()) l.add(readValue(r, ac.component));
+            ret = Array.newInstance(ct, l.size());
+            if(ct.isPrimitive()) {
+                for(int i=0;i<l.size();++i) {
+                    Object v = l.get(i);
+                    if(v==null) throw new IllegalStateException("null in "+ct.getName()+" array");
+                    Array.set(ret, i, v);
+                }
+            } else {
+                l.toArray((Object[])ret);
+            }
+        }
+        r.endContainer();
+        return ret;
+    }
+
+    private Collection<Object> readCollection(AsonReader r, Collection<Object> l, Codec element) throws IOException {
+        r.beginArray();
+        while(r.hasNext()) l.add(readValue(r, element));
+        r.endContainer();
+        return l;
+    }
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private Map<Object,Object> readMap(AsonReader r, Map<Object,Object> m, Class<?> kc, Codec value) throws IOException {
+        r.beginObject();
+        while(r.readKeyId()!=0) {
+            String name = r.getKeyName();
+            if(name==null) name = Integer.toString(r.getKeyId());
+            Object key;
+            if(kc==String.class || kc==Object.class) {
+                key = name;
+            } else if(kc==Integer.class) {
+                key = Integer.valueOf(name);
+            } else if(kc==Long.class) {
+                key = Long.valueOf(name);
+            } else {
+                key = Enum.valueOf((Class<Enum>)kc, name);
+            }
+            m.put(key, readValue(r, value));
+        }
+        return m;
+    }
+
+    /**
+     * read the next value as plain java objects.
+     */
+    private Object readAny(AsonReader r) throws IOException {
+        byte t = r.peekType();
+        switch(t) {
+            case AsonValue.TYPE_NULL: r.readNull(); return null;
+            case AsonValue.TYPE_TRUE:
+            case AsonValue.TYPE_FALSE: return r.readBoolean();
+            case AsonValue.TYPE_INT8:
+            case AsonValue.TYPE_INT16:
+            case AsonValue.TYPE_INT32: return (int)r.readLong();
+            case AsonValue.TYPE_INT64: return r.readLong();
+            case AsonValue.TYPE_FLOAT: return (float)r.readDouble();
+            case AsonValue.TYPE_DOUBLE: return r.readDouble();
+            case AsonValue.TYPE_STRING: return r.readString();
+            case AsonValue.TYPE_BYTES: return r.readBytes();
+            case AsonValue.TYPE_ARRAY: return readCollection(r, new ArrayList<>(), ANY);
+            case AsonValue.TYPE_OBJECT: return readMap(r, new LinkedHashMap<>(), String.class, ANY);
+        }
+        throw new IOException("invalid ason type: 0x"+Integer.toHexString(t&0xFF));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> newCollection(Class<?> c) {
+        if(c.isInterface() || Modifier.isAbstract(c.getModifiers())) {
+            if(SortedSet.class.isAssignableFrom(c)) return new TreeSet<>();
+            if(Set.class.isAssignableFrom(c)) return new LinkedHashSet<>();
+            if(Queue.class.isAssignableFrom(c)) return new ArrayDeque<>();
+            return new ArrayList<>();
+        }
+        return (Collection<Object>)newInstance(c);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object,Object> newMap(Class<?> c) {
+        if(c.isInterface() || Modifier.isAbstract(c.getModifiers())) {
+            if(SortedMap.class.isAssignableFrom(c)) return new TreeMap<>();
+            return new LinkedHashMap<>();
+        }
+        return (Map<Object,Object>)newInstance(c);
+    }
+
+    private static Object newInstance(Class<?> c) {
+        try {
+            return c.getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Can not create "+c.getName(), e);
+        }
+    }
+
+    private static Type typeArgument(Type type, int i) {
+        if(type instanceof ParameterizedType) {
+            Type args[] = ((ParameterizedType)type).getActualTypeArguments();
+            if(i<args.length) return args[i];
+        }
+        return Object.class;
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if(type instanceof Class) return (Class<?>)type;
+        if(type instanceof ParameterizedType) return rawClass(((ParameterizedType)type).getRawType());
+        if(type instanceof GenericArrayType) return Array.newInstance(rawClass(((GenericArrayType)type).getGenericComponentType()), 0).getClass();
+        if(type instanceof WildcardType) return rawClass(((WildcardType)type).getUpperBounds()[0]);
+        if(type instanceof TypeVariable) return rawClass(((TypeVariable<?>)type).getBounds()[0]);
+        return Object.class;
+    }
 }
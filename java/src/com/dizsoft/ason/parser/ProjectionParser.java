@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.parser;
+
+import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.io.AsonInput;
+import com.dizsoft.ason.io.ByteArrayInput;
+import com.dizsoft.ason.io.ByteBufferInput;
+import com.dizsoft.ason.io.StreamInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ason parser which only decodes the given key paths, everything else is skipped without creating nodes.
+ * Paths are dot separated key names, "*" matches any key or array element, a number matches an array index.
+ * e.g. "events.*.name", "venueNames", "performances.0.id".
+ * The result contains the containers along the paths and the whole subtree at the end of each path.
+ * A key matching a named segment does not also follow the "*" paths of the same level.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class ProjectionParser {
+    protected final PathNode paths = new PathNode();
+    protected AsonValue rootNode;
+
+    public ProjectionParser(String... paths) {
+        this(Arrays.asList(paths));
+    }
+
+    public ProjectionParser(Collection<String> paths) {
+        for(String path : paths) {
+            PathNode n = this.paths;
+            for(String seg : path.split("\\.")) {
+                if(n.terminal) break;
+                n = n.child(seg, true);
+            }
+            n.terminal = true;
+            n.children = null;
+            n.any = null;
+        }
+    }
+
+    public AsonValue parse(InputStream asonInputStream) throws java.io.IOException {
+        return parse(new StreamInput(asonInputStream));
+    }
+
+    public AsonValue parse(byte data[]) throws java.io.IOException {
+        return parse(new ByteArrayInput(data));
+    }
+
+    public AsonValue parse(ByteBuffer buffer) throws java.io.IOException {
+        return parse(new ByteBufferInput(buffer));
+    }
+
+    public AsonValue parse(AsonInput in) throws java.io.IOException {
+        AsonReader r = new AsonReader(in);
+        r.peekType();
+        rootNode = Ason.CreateRootObject(r.getDictMap());
+        AsonValue ret = parseValue(r, paths);
+        rootNode.setValue(ret);
+        return rootNode;
+    }
+
+    /**
+     * @return projected value, or null if nothing matched under node.
+     */
+    protected AsonValue parseValue(AsonReader r, PathNode node) throws IOException {
+        if(node.terminal) return readValue(r);
+        byte type = r.peekType();
+        if(type==AsonValue.TYPE_OBJECT) {
+            AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered();
+            r.beginObject();
+            int id;
+            while((id = r.readKeyId())!=0) {
+                String name = r.getKeyName();
+                PathNode c = name==null?node.any:node.child(name, false);
+                AsonValue v = c==null?null:parseValue(r, c);
+                if(v==null) {
+                    if(c==null) r.skipValue();
+                } else {
+                    m.put(id, v);
+                }
+            }
+            return m.isEmpty()?null:new AsonValue(rootNode, m);
+        } else if(type==AsonValue.TYPE_ARRAY) {
+            AsonValue.AsonArray l = new AsonValue.AsonArray();
+            r.beginArray();
+            int i = 0;
+            while(r.hasNext()) {
+                PathNode c = node.child(Integer.toString(i++), false);
+                AsonValue v = c==null?null:parseValue(r, c);
+                if(v==null) {
+                    if(c==null) r.skipValue();
+                } else {
+                    l.add(v);
+                }
+            }
+            r.next();
+            return l.isEmpty()?null:new AsonValue(rootNode, l);
+        }
+        r.skipValue();
+        return null;
+    }
+
+    protected AsonValue readValue(AsonReader r) throws IOException {
+        switch(r.peekType()) {
+            case AsonValue.TYPE_NULL: r.readNull(); return new AsonValue(rootNode, null);
+            case AsonValue.TYPE_TRUE:
+            case AsonValue.TYPE_FALSE: return new AsonValue(rootNode, r.readBoolean());
+            case AsonValue.TYPE_INT8:
+            case AsonValue.TYPE_INT16:
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_INT64: return new AsonValue(rootNode, r.readLong());
+            case AsonValue.TYPE_FLOAT: return new AsonValue(rootNode, (float)r.readDouble());
+            case AsonValue.TYPE_DOUBLE: return new AsonValue(rootNode, r.readDouble());
+            case AsonValue.TYPE_STRING: return new AsonValue(rootNode, r.readString());
+            case AsonValue.TYPE_BYTES: return new AsonValue(rootNode, r.readBytes());
+            case AsonValue.TYPE_ARRAY: {
+                AsonValue.AsonArray l = new AsonValue.AsonArray();
+                r.beginArray();
+                while(r.hasNext()) l.add(readValue(r));
+                r.next();
+                return new AsonValue(rootNode, l);
+            }
+            case AsonValue.TYPE_OBJECT: {
+                AsonValue.AsonObjectOrdered m = new AsonValue.AsonObjectOrdered();
+                r.beginObject();
+                int id;
+                while((id = r.readKeyId())!=0) m.put(id, readValue(r));
+                return new AsonValue(rootNode, m);
+            }
+        }
+        r.skipValue();
+        return null;
+    }
+
+    protected static class PathNode {
+        Map<String,PathNode> children;
+        PathNode any;
+        boolean terminal;
+
+        PathNode child(String seg, boolean create) {
+            if(create) {
+                if("*".equals(seg)) {
+                    if(any==null) any = new PathNode();
+                    return any;
+                }
+                if(children==null) children = new HashMap<>();
+                PathNode n = children.get(seg);
+                if(n==null) {
+                    n = new PathNode();
+                    children.put(seg, n);
+                }
+                return n;
+            }
+            PathNode n = children==null?null:children.get(seg);
+            return n!=null?n:any;
+        }
+    }
+}
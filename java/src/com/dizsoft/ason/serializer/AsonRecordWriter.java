@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.serializer;
+
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.SharedDictionary;
+import com.dizsoft.ason.parser.AsonRecordReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Appends ason documents to a record file, see AsonRecordReader for the layout.
+ * Records are collected in a buffer and written when it is full, flush() writes them at once and
+ * commit() also forces them to the disk. Threads calling commit() at the same time share one force
+ * (group commit). The footer index is written by close(), a file opened in append mode drops its
+ * footer and gets a new one when closed again.
+ * <pre>
+ * try (AsonRecordWriter w = new AsonRecordWriter(file, Ason.FLAG_MODESTRUCT, dict, false)) {
+ *     for(AsonValue v : events) w.append(v);
+ * }
+ * </pre>
+ * Thread safe.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonRecordWriter implements Closeable {
+    public static final int DEFAULT_SYNC_INTERVAL = 1<<20;
+    public static final int DEFAULT_BUFFER_SIZE = 64<<10;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final AsonSerializer serializer;
+    private final AsonSerializer dictSerializer; // documents of the file dictionary, written with its hash id
+    private final SharedDictionary dict;
+    private final byte sync[];
+    private final ByteBuffer buf;
+    private long flushed; // file offset of the buffer start
+    private long records[] = new long[1024];
+    private int count;
+    private long syncs[] = new long[16];
+    private int syncCount;
+    private long lastSync; // offset after the last sync marker or the header
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+    private boolean closed;
+
+    private final Object forceLock = new Object();
+    private long forced; // file offset up to which data is on the disk
+
+    public AsonRecordWriter(File file, int flag) throws IOException {
+        this(file, flag, null, false);
+    }
+
+    /**
+     * @param file record file
+     * @param flag serializer flag, see Ason.FLAG_XXX. json output is not allowed.
+     * @param dict dictionary block of a new file, documents created on it are written without dictionary table.
+     *             when appending, it must be the dictionary of the file or null.
+     * @param append keep the records of an existing file
+     * @throws IOException
+     */
+    public AsonRecordWriter(File file, int flag, SharedDictionary dict, boolean append) throws IOException {
+        if((flag&Ason.FLAG_OUTPUTJSON)!=0) throw new IllegalArgumentException("record files hold ason documents only.");
+        flag &= ~(Ason.FLAG_DICTNONE|Ason.FLAG_DICTHEAD);
+        serializer = new AsonSerializer(flag);
+        dictSerializer = new AsonSerializer(flag|Ason.FLAG_DICTNONE);
+        buf = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        if(append && file.length()>0) {
+            try (AsonRecordReader r = new AsonRecordReader(file)) {
+                if(dict!=null && (r.getDictionary()==null || r.getDictionary().getHashId()!=dict.getHashId())) {
+                    throw new IllegalArgumentException("dictionary differs from the dictionary of the file.");
+                }
+                this.dict = r.getDictionary();
+                sync = r.getSyncMarker();
+                count = r.size();
+                records = Arrays.copyOf(records, Math.max(records.length, count*2));
+                for(int i=0;i<count;++i) records[i] = r.getOffset(i);
+                long ss[] = r.getSyncOffsets();
+                syncCount = ss.length;
+                syncs = Arrays.copyOf(ss, Math.max(16, syncCount*2));
+                flushed = r.getEnd();
+                lastSync = syncCount>0?syncs[syncCount-1]+4+AsonRecordReader.SYNC_SIZE:0;
+            }
+            this.file = new RandomAccessFile(file, "rw");
+            channel = this.file.getChannel();
+            channel.truncate(flushed);
+            channel.position(flushed);
+        } else {
+            this.dict = dict==null?null:SharedDictionary.register(dict);
+            UUID id = UUID.randomUUID();
+            sync = ByteBuffer.allocate(AsonRecordReader.SYNC_SIZE).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+            this.file = new RandomAccessFile(file, "rw");
+            channel = this.file.getChannel();
+            channel.truncate(0);
+            writeHeader();
+        }
+        forced = flushed;
+        if(lastSync==0) lastSync = flushed+buf.position();
+    }
+
+    /**
+     * @param bytes a sync marker is written before a record when this many bytes were written since the last one.
+     */
+    public synchronized void setSyncInterval(int bytes) {
+        syncInterval = bytes;
+    }
+
+    /**
+     * @return dictionary of the file, null if it has none.
+     */
+    public SharedDictionary getDictionary() {
+        return dict;
+    }
+
+    /**
+     * @return number of records.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Append v as a record.
+     * @param v document
+     * @return index of the record
+     * @throws IOException
+     */
+    public int append(AsonValue v) throws IOException {
+        AbstractKeyDictionary d = v.getDictMap();
+        boolean shared = dict!=null && d instanceof SharedDictionary && ((SharedDictionary)d).getHashId()==dict.getHashId();
+        byte data[];
+        synchronized(this) {
+            data = (shared?dictSerializer:serializer).serialize(v);
+        }
+        return append(data, 0, data.length);
+    }
+
+    /**
+     * Append a serialized ason document as a record.
+     * @param data ason document
+     * @param off offset of the document
+     * @param len length of the document
+     * @return index of the record
+     * @throws IOException
+     */
+    public synchronized int append(byte data[], int off, int len) throws IOException {
+        checkOpen();
+        if(len<4 || (data[off]&0x80)==0) throw new IllegalArgumentException("not ason data.");
+        long pos = flushed+buf.position();
+        if(pos-lastSync>=syncInterval) {
+            if(syncCount==syncs.length) syncs = Arrays.copyOf(syncs, syncCount*2);
+            syncs[syncCount++] = pos;
+            reserve(4+sync.length);
+            buf.putInt(-1).put(sync);
+            pos += 4+sync.length;
+            lastSync = pos;
+        }
+        if(count==records.length) records = Arrays.copyOf(records, count*2);
+        records[count] = pos;
+        reserve(4);
+        buf.putInt(len);
+        if(len>buf.remaining()) {
+            flushBuffer();
+            ByteBuffer b = ByteBuffer.wrap(data, off, len);
+            while(b.hasRemaining()) channel.write(b);
+            flushed += len;
+        } else {
+            buf.put(data, off, len);
+        }
+        return count++;
+    }
+
+    /**
+     * write the buffered records to the file.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        flushBuffer();
+    }
+
+    /**
+     * write the buffered records and force them to the disk. records appended by other threads
+     * before the force are committed with them, a thread whose records were forced meanwhile returns at once.
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        long target;
+        synchronized(this) {
+            checkOpen();
+            target = flushed+buf.position();
+        }
+        synchronized(forceLock) {
+            if(forced>=target) return;
+            long end;
+            synchronized(this) {
+                checkOpen();
+                flushBuffer();
+                end = flushed;
+            }
+            channel.force(false);
+            forced = end;
+        }
+    }
+
+    /**
+     * write the buffered records and the footer index, then close the file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(forceLock) {
+            synchronized(this) {
+                if(closed) return;
+                closed = true;
+                try {
+                    for(int i=0;i<count;++i) {
+                        reserve(8);
+                        buf.putLong(records[i]);
+                    }
+                    for(int i=0;i<syncCount;++i) {
+                        reserve(8);
+                        buf.putLong(syncs[i]);
+                    }
+                    reserve(12);
+                    buf.putInt(count).putInt(syncCount).putInt(AsonRecordReader.MAGIC);
+                    flushBuffer();
+                    channel.force(false);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        int size = 0;
+        if(dict!=null) {
+            for(Map.Entry<String,Integer> e : dict.entrySet()) size += 5+e.getKey().getBytes(StandardCharsets.UTF_8).length;
+        }
+        buf.putInt(AsonRecordReader.MAGIC).put(sync).putInt(size);
+        if(dict==null) return;
+        for(Map.Entry<String,Integer> e : dict.entrySet()) {
+            byte name[] = e.getKey().getBytes(StandardCharsets.UTF_8);
+            if(name.length>0xFF) throw new IllegalArgumentException("key name should be <= 255 bytes: "+e.getKey());
+            reserve(5+name.length);
+            buf.putInt(e.getValue()).put((byte)name.length).put(name);
+        }
+    }
+
+    private void reserve(int n) throws IOException {
+        if(buf.remaining()<n) flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        buf.flip();
+        while(buf.hasRemaining()) channel.write(buf);
+        flushed += buf.limit();
+        buf.clear();
+    }
+
+    private void checkOpen() throws IOException {
+        if(closed) throw new IOException("record file is closed.");
+    }
+}
@@ -25,204 +25,1023 @@
  */
 package com.dizsoft.ason.serializer;
 
+import com.dizsoft.ason.AbstractKeyDictionary;
 import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonMap;
+import com.dizsoft.ason.AsonSchema;
 import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.ConcurrentKeyDictionary;
+import com.dizsoft.ason.KeyDictionary;
+import com.dizsoft.ason.SharedDictionary;
+import com.dizsoft.ason.io.AsonOutput;
+import com.dizsoft.ason.io.BufferPool;
+import com.dizsoft.ason.io.ByteBufferOutput;
+import com.dizsoft.ason.io.ChannelOutput;
+import com.dizsoft.ason.io.StreamOutput;
+import com.dizsoft.ason.parser.AsonParser;
 import com.dizsoft.ason.utils.Utils;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
  * @author DizSoft Inc. jwang@dizsoft.com
  */
 public class AsonSerializer {
-    private static final byte ZERO[] = {0,0,0,0};
-    
     private boolean flagBigId = false; // true:32位ID, false:16位ID
+    private final boolean flagVarint; // ids and lengths as varints
     private final int flag;
     
-    private final Map<Integer,String> stringTableRev = new HashMap<>();
+    private AbstractKeyDictionary dict;
+    private final BitSet inlined = new BitSet(); // ids with name written inline already
+    private Set<Integer> inlinedLarge; // same for ids too large for the bit set
+    
+    private final AbstractKeyDictionary session; // ids written are ids of session, inline state is kept between messages
+    private int idMap[]; // document id to session id, 0 if not mapped yet. null if document uses session
+    private int rank[]; // document id to id written in varint mode, most frequent key first. null if ids are written as they are
+    private List<Map.Entry<String,Integer>> ranked; // dictionary of the ranked ids
+    private int marked[] = new int[16]; // ids newly inlined by current message, in session mode
+    private int markedCount;
+    
+    private AsonSchema schema; // objects are written by schema position, null for normal messages
+    private AbstractKeyDictionary schemaDocDict; // dictionary schemaIds are of
+    private int schemaDocDictSize;
+    private boolean schemaMapped; // keys of the message are ids of its own dictionary, not of the schema
+    private int schemaIds[]; // schema key id to document key id
+    
+    private final IndexBuilder index; // null unless Ason.FLAG_INDEX
+    private IndexBuilder indexing; // index of the message being written, null if none
+    private long messageStart;
+    
+    private int structSizes[] = new int[64]; // content size of struct mode containers, in pre-order
+    private int structSizeCount;
+    private int structSizeIndex;
+    private Column tableColumns[][] = new Column[16][]; // columns of the tables measured in struct mode, in pre-order
+    private int tableCount;
+    private int tableIndex;
     
     public AsonSerializer(int _flag) {
-        flag = _flag;
-        flagBigId = (flag & Ason.FLAG_FORCEBIGID)!=0;
+        this(_flag, null);
+    }
+    
+    /**
+     * Create session serializer, for many messages over one connection.
+     * key ids are mapped into session and each key name is inlined only the first time it is written,
+     * the reader must parse all messages in order with one dictionary. output is always inline dictionary mode.
+     * @param _flag output flag. see Ason.FLAG_XXX
+     * @param session session dictionary, documents created on it are written without id mapping.
+     */
+    public AsonSerializer(int _flag, AbstractKeyDictionary session) {
+        int f = session==null?_flag:_flag&~(Ason.FLAG_DICTHEAD|Ason.FLAG_DICTNONE|Ason.FLAG_INDEX);
+        if((f&Ason.FLAG_INDEX)!=0) {
+            f &= ~Ason.FLAG_COLUMNAR; // table rows have no offsets
+            if((f&Ason.FLAG_DICTNONE)==0) f |= Ason.FLAG_DICTHEAD; // names are known without scanning
+        }
+        flag = f;
+        index = (f&Ason.FLAG_INDEX)!=0?new IndexBuilder():null;
+        flagVarint = (flag & Ason.FLAG_VARINT)!=0;
+        flagBigId = !flagVarint && (flag & Ason.FLAG_FORCEBIGID)!=0;
+        this.session = session;
+    }
+    
+    /**
+     * Write messages in schema positional mode, values must have the shape of schema, which parsers
+     * must have registered. see AsonSchema. Ason.FLAG_VARINT is honored for TYPE_ANY fields, other flags are ignored.
+     * @param schema schema, null for normal messages.
+     * @throws IllegalStateException for session serializer.
+     */
+    public void setSchema(AsonSchema schema) {
+        if(session!=null && schema!=null) throw new IllegalStateException("Session serializer can not write schema messages.");
+        this.schema = schema;
+        this.schemaDocDict = null;
     }
     
     public byte[] serialize(AsonValue obj) throws java.io.IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        serialize(obj, baos);
-        return baos.toByteArray();
+        ByteBufferOutput out = new ByteBufferOutput(1024, false);
+        serialize(obj, out);
+        return out.toByteArray();
     }
 
     public void serialize(AsonValue obj,OutputStream os) throws java.io.IOException {
+        StreamOutput out = new StreamOutput(os);
+        serialize(obj, out);
+        out.flush();
+    }
+
+    /**
+     * Serialize into buffer from its position, throws BufferOverflowException if buffer is too small.
+     * @param obj AsonValue to be serialized
+     * @param buffer target buffer
+     * @throws java.io.IOException 
+     */
+    public void serialize(AsonValue obj,ByteBuffer buffer) throws java.io.IOException {
+        serialize(obj, new ByteBufferOutput(buffer));
+    }
+
+    /**
+     * Serialize to channel through a pooled direct buffer.
+     * @param obj AsonValue to be serialized
+     * @param channel target channel, must be in blocking mode.
+     * @throws java.io.IOException 
+     */
+    public void serialize(AsonValue obj,WritableByteChannel channel) throws java.io.IOException {
+        ChannelOutput out = new ChannelOutput(channel, BufferPool.getDefault());
+        try {
+            serialize(obj, out);
+            out.flush();
+        } finally {
+            out.release();
+        }
+    }
+
+    public void serialize(AsonValue obj,AsonOutput out) throws java.io.IOException {
+        if(session==null) {
+            serializeMessage(obj, out);
+            return;
+        }
+        markedCount = 0;
+        try {
+            serializeMessage(obj, out);
+        } catch(IOException|RuntimeException e) {
+            unmarkInlined(); // nothing of this message may count as sent
+            throw e;
+        }
+    }
+
+    private void serializeMessage(AsonValue obj,AsonOutput out) throws java.io.IOException {
+        if(schema!=null) {
+            out.writeInt32(0x80000000|AsonParser.FLAG_SHAREDDICT|AsonParser.FLAG_SCHEMA|(flagVarint?AsonParser.FLAG_VARINT:0)|schema.getHashId());
+            AbstractKeyDictionary d = obj.getDictMap();
+            schemaMapped = d!=null && d!=schema.getDictionary();
+            mapSchemaIds(d);
+            serializeSchemaValue(out, obj, schema.getRoot());
+            return;
+        }
         // Write string table data
         int maxId = prepareDictMap(obj);
-        if(!flagBigId && maxId>0x7FFF) {
+        if(!flagVarint && !flagBigId && maxId>0x7FFF) {
             flagBigId = true;
         }
-        int hdr = 0x80000000 | (flagBigId?0x40000000:0);
+        int hdr = 0x80000000 | (flagVarint?AsonParser.FLAG_VARINT:(flagBigId?0x40000000:0)) | (index!=null?AsonParser.FLAG_INDEX:0);
         if((flag&Ason.FLAG_DICTHEAD)!=0) {
-            byte stb[] = serializeStringTable(obj.getDictMap());
-            int len = stb.length;
-            if(len>0x0FFFFFFF) throw new RuntimeException("string table should be <= 0x0FFFFFFF bytes.(about 256M)");
-            os.write(Utils.Int322Bytes(hdr|len));
-            os.write(stb);
+            // snapshot, a shared dictionary may grow between measuring and writing
+            Collection<Map.Entry<String,Integer>> table = ranked!=null?ranked:(dict instanceof ConcurrentKeyDictionary?new ArrayList<>(dict.entrySet()):dict.entrySet());
+            int len = measureStringTable(table);
+            if(len>AsonParser.DICT_SIZE_MASK) throw new RuntimeException("string table should be <= 0x00FFFFFF bytes.(about 16M)");
+            out.writeInt32(hdr|len);
+            serializeStringTable(out, table);
+        } else if((flag&Ason.FLAG_DICTNONE)!=0 && dict instanceof SharedDictionary) {
+            out.writeInt32(hdr|AsonParser.FLAG_SHAREDDICT|((SharedDictionary)dict).getHashId());
         } else {
-            os.write(Utils.Int322Bytes(hdr));
+            out.writeInt32(hdr);
         }
 
         // write body data
-        if ((flag&Ason.FLAG_MODESTRUCT)!=0) {
-            ByteArrayOutputStream data = new ByteArrayOutputStream();
-            serializeAsonValueStructed(os, obj);
-            writeBytesWithTypeLength(os, obj.isArray()?AsonValue.TYPE_ARRAY:AsonValue.TYPE_OBJECT, data.toByteArray());
+        if(index!=null) {
+            index.reset();
+            indexing = index;
+            messageStart = out.position();
+        }
+        try {
+            if ((flag&Ason.FLAG_MODESTRUCT)!=0) {
+                // measure all containers first, then write in a single pass without buffering.
+                structSizeCount = 0;
+                tableCount = 0;
+                measureStructed(obj);
+                unmarkInlined(); // measuring marked the inline names as written
+                structSizeIndex = 0;
+                tableIndex = 0;
+                serializeAsonValueStructed(out, obj);
+            } else {
+                serializeAsonValueStreamed(out, obj);
+            }
+        } finally {
+            indexing = null;
+        }
+        if(index!=null) index.write(out);
+    }
+    
+    /**
+     * map key ids of the schema to ids of the document dictionary, kept while the dictionary is unchanged.
+     */
+    private void mapSchemaIds(AbstractKeyDictionary d) {
+        if(d==null || d==schema.getDictionary() || (d==schemaDocDict && d.size()==schemaDocDictSize)) return;
+        KeyDictionary sd = schema.getDictionary();
+        if(schemaIds==null || schemaIds.length<=sd.size()) schemaIds = new int[sd.size()+1];
+        for(Map.Entry<String,Integer> e : sd.entrySet()) {
+            schemaIds[e.getValue()] = d.getId(e.getKey());
+        }
+        schemaDocDict = d;
+        schemaDocDictSize = d.size();
+    }
+    
+    /**
+     * write value of schema field f, without type byte unless f is TYPE_ANY.
+     * @param val value, null if absent.
+     */
+    private void serializeSchemaValue(AsonOutput out,AsonValue val,AsonSchema.Field f) throws IOException {
+        byte ft = f.getType();
+        if(ft==AsonSchema.TYPE_ANY) {
+            if(val==null) {
+                out.writeByte(AsonValue.TYPE_NULL);
+            } else {
+                checkNoObject(val, f);
+                serializeAsonValueStreamed(out, val);
+            }
+            return;
+        }
+        boolean isNull = val==null || val.getType()==AsonValue.TYPE_NULL;
+        if(f.isNullable()) {
+            out.writeByte(isNull?0:1);
+            if(isNull) return;
+        } else if(isNull) {
+            throw new IllegalArgumentException("Schema field "+f.getName()+" can not be null.");
+        }
+        byte t = val.getType();
+        boolean integral = t>=AsonValue.TYPE_INT8 && t<=AsonValue.TYPE_INT64;
+        switch(ft) {
+            case AsonValue.TYPE_TRUE:
+                if(t!=AsonValue.TYPE_TRUE && t!=AsonValue.TYPE_FALSE) break;
+                out.writeByte(t==AsonValue.TYPE_TRUE?1:0);
+                return;
+            case AsonValue.TYPE_INT8:
+            case AsonValue.TYPE_INT16:
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_INT64:
+                if(!integral) break;
+                writeSchemaInt(out, val.longValue(), f);
+                return;
+            case AsonValue.TYPE_FLOAT:
+                if(!integral && t!=AsonValue.TYPE_FLOAT && t!=AsonValue.TYPE_DOUBLE) break;
+                out.writeFloat((float)val.doubleValue());
+                return;
+            case AsonValue.TYPE_DOUBLE:
+                if(!integral && t!=AsonValue.TYPE_FLOAT && t!=AsonValue.TYPE_DOUBLE) break;
+                out.writeDouble(val.doubleValue());
+                return;
+            case AsonValue.TYPE_STRING:
+                if(t!=AsonValue.TYPE_STRING) break;
+                String str = (String)val.getValue();
+                out.writeVarint(Utils.Utf8Length(str));
+                out.writeUtf8(str);
+                return;
+            case AsonValue.TYPE_BYTES:
+                if(t!=AsonValue.TYPE_BYTES) break;
+                byte b[] = (byte[])val.getValue();
+                out.writeVarint(b.length);
+                out.write(b);
+                return;
+            case AsonValue.TYPE_ARRAY:
+                if(t!=AsonValue.TYPE_ARRAY) break;
+                AsonSchema.Field e = f.getElement();
+                out.writeVarint(val.size());
+                Object packed = val.getPackedArray();
+                byte et = e.getType();
+                if(packed instanceof long[] && !e.isNullable() && et>=AsonValue.TYPE_INT8 && et<=AsonValue.TYPE_INT64) {
+                    for(long l : (long[])packed) writeSchemaInt(out, l, e);
+                } else if(packed instanceof int[] && !e.isNullable() && et>=AsonValue.TYPE_INT8 && et<=AsonValue.TYPE_INT64) {
+                    for(int l : (int[])packed) writeSchemaInt(out, l, e);
+                } else if(packed instanceof double[] && !e.isNullable() && et==AsonValue.TYPE_DOUBLE) {
+                    for(double d : (double[])packed) out.writeDouble(d);
+                } else {
+                    for(AsonValue v : val) serializeSchemaValue(out, v, e);
+                }
+                return;
+            case AsonValue.TYPE_OBJECT:
+                if(t!=AsonValue.TYPE_OBJECT) break;
+                AsonMap m = (AsonMap)val.getValue();
+                int found = 0;
+                for(AsonSchema.Field c : f.getFields()) {
+                    AsonValue v = m.get(schemaMapped?schemaIds[c.getId()]:c.getId());
+                    if(v!=null) ++found;
+                    serializeSchemaValue(out, v, c);
+                }
+                if(found!=m.size()) throw new IllegalArgumentException("Object "+(f.getName()==null?"":f.getName()+" ")+"has keys not in schema.");
+                return;
+        }
+        throw new IllegalArgumentException("Schema field "+f.getName()+" can not hold type 0x"+Integer.toHexString(t&0xFF)+".");
+    }
+    
+    private static void writeSchemaInt(AsonOutput out,long l,AsonSchema.Field f) throws IOException {
+        byte ft = f.getType();
+        boolean fits = ft==AsonValue.TYPE_INT8?l==(byte)l:(ft==AsonValue.TYPE_INT16?l==(short)l:(ft!=AsonValue.TYPE_INT32 || l==(int)l));
+        if(!fits) throw new ArithmeticException("integer overflow: "+l+" in schema field "+f.getName());
+        if(ft==AsonValue.TYPE_INT8) {
+            out.writeByte((byte)l);
         } else {
-            serializeAsonValueStreamed(os, obj);
+            out.writeVarint64((l<<1)^(l>>63)); // zigzag, small negatives stay short
         }
     }
     
-    protected void serializeAsonValueStreamed(OutputStream os,AsonValue val) throws IOException {
+    private static void checkNoObject(AsonValue val,AsonSchema.Field f) {
         if(val.getType()==AsonValue.TYPE_OBJECT) {
-            os.write(AsonValue.TYPE_OBJECT);
-            java.util.Iterator<Integer> it = val.keyIterator();
-            while(it.hasNext()) {
-                Integer id = it.next();
-                serializeId(os, id);
-                serializeAsonValueStreamed(os, val.get(id));
-            }
-            os.write(ZERO, 0, flagBigId?4:2);
-        } else if(val.getType()==AsonValue.TYPE_ARRAY) {
-            os.write(AsonValue.TYPE_ARRAY);
+            throw new IllegalArgumentException("Schema field "+f.getName()+" of TYPE_ANY can not hold objects.");
+        }
+        if(val.getType()==AsonValue.TYPE_ARRAY && val.getPackedArray()==null) {
+            for(AsonValue v : val) checkNoObject(v, f);
+        }
+    }
+    
+    protected void serializeAsonValueStreamed(AsonOutput out,AsonValue val) throws IOException {
+        byte type = val.getType();
+        if(type==AsonValue.TYPE_OBJECT) {
+            if(indexing!=null) indexing.begin(out.position()-messageStart, true);
+            out.writeByte(AsonValue.TYPE_OBJECT);
+            AsonMap m = (AsonMap)val.getValue();
+            for(int i=0;i<m.slots();++i) {
+                AsonValue v = m.valueAt(i);
+                if(v==null) continue;
+                int id = m.keyAt(i);
+                serializeId(out, id);
+                if(indexing!=null) indexing.child(sessionId(id), out.position()-messageStart);
+                serializeAsonValueStreamed(out, v);
+            }
+            if(flagVarint) {
+                out.writeByte(0);
+            } else if(flagBigId) {
+                out.writeInt32(0);
+            } else {
+                out.writeInt16(0);
+            }
+            if(indexing!=null) indexing.end();
+        } else if(type==AsonValue.TYPE_ARRAY) {
+            int keys[] = tableKeys(val);
+            if(keys!=null) {
+                serializeTable(out, val, keys, columns(val, keys), false);
+                return;
+            }
+            byte et = packedType(val);
+            if(et!=0) {
+                serializePacked(out, val, et);
+                return;
+            }
+            if(indexing!=null) indexing.begin(out.position()-messageStart, false);
+            out.writeByte(AsonValue.TYPE_ARRAY);
             java.util.Iterator<AsonValue> it = val.iterator();
-            while(it.hasNext()) {
+            for(int i=0;it.hasNext();++i) {
                 AsonValue v = it.next();
-                serializeAsonValueStreamed(os, v);
-            }
-            os.write(0);
-        } else if(val.getType()==AsonValue.TYPE_STRING) {
-            os.write(AsonValue.TYPE_STRING);
-            os.write(((String)val.getValue()).getBytes("UTF-8"));
-            os.write(0);
-        } else if(val.getType()==AsonValue.TYPE_BYTES) {
-            os.write(AsonValue.TYPE_BYTES);
+                if(indexing!=null) indexing.child(i, out.position()-messageStart);
+                serializeAsonValueStreamed(out, v);
+            }
+            out.writeByte(0);
+            if(indexing!=null) indexing.end();
+        } else if(type==AsonValue.TYPE_STRING) {
+            out.writeByte(AsonValue.TYPE_STRING);
+            out.writeUtf8((String)val.getValue());
+            out.writeByte(0);
+        } else if(type==AsonValue.TYPE_BYTES) {
+            out.writeByte(AsonValue.TYPE_BYTES);
             byte[] b = (byte[])val.getValue();
             int len = b.length;
             int tmp;
             int start = 0;
-            do {
+            while(len>0) {
                 tmp = len>255?255:len;
-                os.write(tmp);
-                os.write(b,start,tmp);
+                out.writeByte(tmp);
+                out.write(b,start,tmp);
                 start+=tmp;
                 len-=tmp;
-            } while(len>0);
-            os.write(0);
+            }
+            out.writeByte(0);
         } else {
-            os.write(val.getType());
-            if(val.getType()<0x10) return;
-            os.write(val.asBytes());
+            serializeScalar(out, val, type);
         }
     }
-    protected void serializeAsonValueStructed(OutputStream os,AsonValue val) throws IOException {
-        if(val.getType()==AsonValue.TYPE_OBJECT) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            java.util.Iterator<Integer> it = val.keyIterator();
-            while(it.hasNext()) {
-                Integer id = it.next();
-                serializeId(baos, id);
-                serializeAsonValueStructed(baos, val.get(id));
-            }
-            writeBytesWithTypeLength(os, AsonValue.TYPE_OBJECT, baos.toByteArray());
-        } else if(val.getType()==AsonValue.TYPE_ARRAY) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    protected void serializeAsonValueStructed(AsonOutput out,AsonValue val) throws IOException {
+        byte type = val.getType();
+        if(type==AsonValue.TYPE_OBJECT) {
+            if(indexing!=null) indexing.begin(out.position()-messageStart, true);
+            writeTypeLength(out, AsonValue.TYPE_OBJECT, structSizes[structSizeIndex++]);
+            AsonMap m = (AsonMap)val.getValue();
+            for(int i=0;i<m.slots();++i) {
+                AsonValue v = m.valueAt(i);
+                if(v==null) continue;
+                int id = m.keyAt(i);
+                serializeId(out, id);
+                if(indexing!=null) indexing.child(sessionId(id), out.position()-messageStart);
+                serializeAsonValueStructed(out, v);
+            }
+            if(indexing!=null) indexing.end();
+        } else if(type==AsonValue.TYPE_ARRAY) {
+            int keys[] = tableKeys(val);
+            if(keys!=null) {
+                Column cols[] = tableColumns[tableIndex];
+                tableColumns[tableIndex++] = null;
+                serializeTable(out, val, keys, cols, true);
+                return;
+            }
+            byte et = packedType(val);
+            if(et!=0) {
+                serializePacked(out, val, et);
+                return;
+            }
+            if(indexing!=null) indexing.begin(out.position()-messageStart, false);
+            writeTypeLength(out, AsonValue.TYPE_ARRAY, structSizes[structSizeIndex++]);
             java.util.Iterator<AsonValue> it = val.iterator();
-            while(it.hasNext()) {
+            for(int i=0;it.hasNext();++i) {
                 AsonValue v = it.next();
-                serializeAsonValueStructed(baos, v);
+                if(indexing!=null) indexing.child(i, out.position()-messageStart);
+                serializeAsonValueStructed(out, v);
+            }
+            if(indexing!=null) indexing.end();
+        } else if(type==AsonValue.TYPE_BYTES) {
+            byte b[] = (byte[])val.getValue();
+            writeTypeLength(out, AsonValue.TYPE_BYTES, b.length);
+            out.write(b);
+        } else if(type==AsonValue.TYPE_STRING) {
+            String s = (String)val.getValue();
+            writeTypeLength(out, AsonValue.TYPE_STRING, Utils.Utf8Length(s));
+            out.writeUtf8(s);
+        } else {
+            serializeScalar(out, val, type);
+        }
+    }
+    
+    protected void serializeScalar(AsonOutput out,AsonValue val,byte type) throws IOException {
+        out.writeByte(type);
+        switch(type) {
+            case AsonValue.TYPE_INT8: out.writeByte((int)val.longValue()); break;
+            case AsonValue.TYPE_INT16: out.writeInt16((int)val.longValue()); break;
+            case AsonValue.TYPE_INT32: out.writeInt32((int)val.longValue()); break;
+            case AsonValue.TYPE_INT64: out.writeInt64(val.longValue()); break;
+            case AsonValue.TYPE_FLOAT: out.writeFloat((float)val.doubleValue()); break;
+            case AsonValue.TYPE_DOUBLE: out.writeDouble(val.doubleValue()); break;
+        }
+    }
+    
+    /**
+     * Compute the struct mode size of val, content sizes of containers are recorded in pre-order.
+     * @param val value to be measured
+     * @return bytes of val when serialized in struct mode.
+     */
+    protected int measureStructed(AsonValue val) {
+        byte type = val.getType();
+        if(type==AsonValue.TYPE_ARRAY) {
+            int keys[] = tableKeys(val);
+            if(keys!=null) return measureTable(val, keys);
+            byte et = packedType(val);
+            if(et!=0) {
+                int n = val.size();
+                return 2+lengthBytes(n)+n*AsonParser.packedWidth(et);
+            }
+        }
+        if(type==AsonValue.TYPE_OBJECT || type==AsonValue.TYPE_ARRAY) {
+            if(structSizeCount==structSizes.length) structSizes = java.util.Arrays.copyOf(structSizes, structSizeCount*2);
+            int slot = structSizeCount++;
+            int len = 0;
+            if(type==AsonValue.TYPE_OBJECT) {
+                AsonMap m = (AsonMap)val.getValue();
+                for(int i=0;i<m.slots();++i) {
+                    AsonValue v = m.valueAt(i);
+                    if(v==null) continue;
+                    int id = m.keyAt(i);
+                    len += measureId(id);
+                    len += measureStructed(v);
+                }
+            } else {
+                for(AsonValue v : val) {
+                    len += measureStructed(v);
+                }
+            }
+            structSizes[slot] = len;
+            return 1+lengthBytes(len)+len;
+        } else if(type==AsonValue.TYPE_STRING) {
+            int len = Utils.Utf8Length((String)val.getValue());
+            return 1+lengthBytes(len)+len;
+        } else if(type==AsonValue.TYPE_BYTES) {
+            int len = ((byte[])val.getValue()).length;
+            return 1+lengthBytes(len)+len;
+        }
+        switch(type) {
+            case AsonValue.TYPE_INT8: return 2;
+            case AsonValue.TYPE_INT16: return 3;
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_FLOAT: return 5;
+            case AsonValue.TYPE_INT64:
+            case AsonValue.TYPE_DOUBLE: return 9;
+        }
+        return 1;
+    }
+    
+    /**
+     * find the keys to write array val as a columnar table with. all elements have to be objects
+     * with keys in one order, a key may be missing in some rows but at least half of the cells are set.
+     * @param val array node
+     * @return keys in column order, null if val is not written as table.
+     */
+    protected int[] tableKeys(AsonValue val) {
+        if((flag&Ason.FLAG_COLUMNAR)==0) return null;
+        List<AsonValue> l = val.asList();
+        int n = l.size();
+        if(n<2 || l instanceof AsonValue.PackedArray) return null;
+        int keys[] = new int[8];
+        int nk = 0;
+        long cells = 0;
+        for(int i=0;i<n;++i) {
+            AsonValue row = l.get(i);
+            if(row.getType()!=AsonValue.TYPE_OBJECT) return null;
+            AsonMap m = (AsonMap)row.getValue();
+            int last = -1;
+            for(int s=0;s<m.slots();++s) {
+                if(m.valueAt(s)==null) continue;
+                int id = m.keyAt(s);
+                int k = last+1;
+                while(k<nk && keys[k]!=id) ++k;
+                if(k==nk) {
+                    for(int j=0;j<=last;++j) {
+                        if(keys[j]==id) return null; // key order differs from earlier rows
+                    }
+                    if(nk==0xFFFF) return null;
+                    if(nk==keys.length) keys = java.util.Arrays.copyOf(keys, nk*2);
+                    keys[nk++] = id;
+                }
+                last = k;
+                ++cells;
+            }
+        }
+        if(nk==0 || cells*2<(long)n*nk) return null;
+        return java.util.Arrays.copyOf(keys, nk);
+    }
+    
+    /**
+     * values of one key of a table, as written after the key list.
+     */
+    protected static final class Column {
+        int flags; // TABLE_ABSENT, TABLE_NULL
+        byte absent[]; // bit of each row without the key
+        byte nulls[]; // bit of each row with null value
+        AsonValue values; // array of the other values, in row order
+    }
+    
+    /**
+     * split the rows of table val into the columns of keys.
+     */
+    protected Column[] columns(AsonValue val,int keys[]) {
+        Column ret[] = new Column[keys.length];
+        for(int i=0;i<keys.length;++i) ret[i] = column(val, keys[i]);
+        return ret;
+    }
+    
+    protected Column column(AsonValue val,int key) {
+        List<AsonValue> l = val.asList();
+        int n = l.size();
+        Column c = new Column();
+        AsonValue.AsonArray vs = new AsonValue.AsonArray(n);
+        for(int i=0;i<n;++i) {
+            AsonValue v = ((AsonMap)l.get(i).getValue()).get(key);
+            if(v==null) {
+                if(c.absent==null) c.absent = new byte[(n+7)>>3];
+                c.absent[i>>3] |= 1<<(i&7);
+            } else if(v.isNull()) {
+                if(c.nulls==null) c.nulls = new byte[(n+7)>>3];
+                c.nulls[i>>3] |= 1<<(i&7);
+            } else {
+                vs.add(v);
+            }
+        }
+        c.flags = (c.absent!=null?AsonParser.TABLE_ABSENT:0)|(c.nulls!=null?AsonParser.TABLE_NULL:0);
+        c.values = new AsonValue(val, vs);
+        return c;
+    }
+    
+    protected int measureTable(AsonValue val,int keys[]) {
+        int n = val.size();
+        int len = flagVarint?1+Utils.VarintSize(n)+Utils.VarintSize(keys.length):1+lengthSize(Math.max(n, keys.length))*2;
+        for(int key : keys) len += measureId(key);
+        Column cols[] = columns(val, keys);
+        if(tableCount==tableColumns.length) tableColumns = java.util.Arrays.copyOf(tableColumns, tableCount*2);
+        tableColumns[tableCount++] = cols; // taken by serializeAsonValueStructed
+        for(Column c : cols) {
+            len += 1+(c.absent!=null?c.absent.length:0)+(c.nulls!=null?c.nulls.length:0);
+            len += measureStructed(c.values);
+        }
+        return len;
+    }
+    
+    protected void serializeTable(AsonOutput out,AsonValue val,int keys[],Column cols[],boolean structed) throws IOException {
+        int n = val.size();
+        int sl = flagVarint?1:lengthSize(Math.max(n, keys.length));
+        out.writeByte(AsonParser.TYPE_TABLE1-1+sl);
+        writeLength(out, sl, n);
+        writeLength(out, sl, keys.length);
+        for(int key : keys) serializeId(out, key);
+        for(Column c : cols) {
+            out.writeByte(c.flags);
+            if(c.absent!=null) out.write(c.absent);
+            if(c.nulls!=null) out.write(c.nulls);
+            if(structed) {
+                serializeAsonValueStructed(out, c.values);
+            } else {
+                serializeAsonValueStreamed(out, c.values);
+            }
+        }
+    }
+    
+    /**
+     * choose the element type to write array val packed with. elements have to be all integers,
+     * written with the largest size, or all float/double, written as double if any is double.
+     * the array is packed only when that is not longer than writing the elements one by one.
+     * @param val array node
+     * @return element type, 0 if val is written element by element.
+     */
+    protected byte packedType(AsonValue val) {
+        if((flag&Ason.FLAG_NOPACKEDARRAY)!=0) return 0;
+        List<AsonValue> l = val.asList();
+        if(l instanceof AsonValue.PackedArray) return ((AsonValue.PackedArray)l).getElementType();
+        int n = l.size();
+        if(n<2) return 0;
+        byte ret = 0;
+        long plain = 0; // bytes of the elements with their type bytes
+        for(int i=0;i<n;++i) {
+            byte t = l.get(i).getType();
+            int w = AsonParser.packedWidth(t);
+            if(w==0) return 0;
+            if(ret!=0 && (t>=AsonValue.TYPE_FLOAT)!=(ret>=AsonValue.TYPE_FLOAT)) return 0;
+            if(t>ret) ret = t;
+            plain += 1+w;
+        }
+        return (long)n*AsonParser.packedWidth(ret)+lengthBytes(n)<=plain?ret:0;
+    }
+    
+    protected void serializePacked(AsonOutput out,AsonValue val,byte et) throws IOException {
+        List<AsonValue> l = val.asList();
+        int n = l.size();
+        int sl = flagVarint?1:lengthSize(n);
+        out.writeByte(AsonParser.TYPE_PACKED1-1+sl);
+        out.writeByte(et);
+        writeLength(out, sl, n);
+        if(l instanceof AsonValue.PackedArray) {
+            serializePackedArray(out, ((AsonValue.PackedArray)l).array(), et);
+            return;
+        }
+        for(int i=0;i<n;++i) {
+            AsonValue v = l.get(i);
+            switch(et) {
+                case AsonValue.TYPE_INT8: out.writeByte((int)v.longValue()); break;
+                case AsonValue.TYPE_INT16: out.writeInt16((int)v.longValue()); break;
+                case AsonValue.TYPE_INT32: out.writeInt32((int)v.longValue()); break;
+                case AsonValue.TYPE_INT64: out.writeInt64(v.longValue()); break;
+                case AsonValue.TYPE_FLOAT: out.writeFloat((float)v.doubleValue()); break;
+                case AsonValue.TYPE_DOUBLE:
+                    // widen floats by their decimal, so they still print the same
+                    out.writeDouble(v.getType()==AsonValue.TYPE_FLOAT?Double.parseDouble(Float.toString((float)v.doubleValue())):v.doubleValue());
+                    break;
             }
-            writeBytesWithTypeLength(os, AsonValue.TYPE_ARRAY, baos.toByteArray());
-        } else if(val.getType()==AsonValue.TYPE_BYTES) {
-            writeBytesWithTypeLength(os, AsonValue.TYPE_BYTES, (byte[])val.getValue());
-        } else if(val.getType()==AsonValue.TYPE_STRING) {
-            writeBytesWithTypeLength(os, AsonValue.TYPE_STRING, ((String)val.getValue()).getBytes("UTF-8"));
+        }
+    }
+    
+    protected void serializePackedArray(AsonOutput out,Object array,byte et) throws IOException {
+        if(array instanceof int[]) {
+            int a[] = (int[])array;
+            for(int i=0;i<a.length;++i) {
+                if(et==AsonValue.TYPE_INT8) {
+                    out.writeByte(a[i]);
+                } else if(et==AsonValue.TYPE_INT16) {
+                    out.writeInt16(a[i]);
+                } else {
+                    out.writeInt32(a[i]);
+                }
+            }
+        } else if(array instanceof long[]) {
+            for(long v : (long[])array) out.writeInt64(v);
+        } else if(array instanceof float[]) {
+            for(float v : (float[])array) out.writeFloat(v);
         } else {
-            os.write(val.getType());
-            if(val.getType()<0x10) return;
-            os.write(val.asBytes());
+            for(double v : (double[])array) out.writeDouble(v);
         }
     }
     
-    protected int serializeId(OutputStream os, int id) throws IOException {
+    protected int measureId(int id) {
+        int sid = sessionId(id);
+        int ret = flagVarint?Utils.VarintSize(sid<<1):(flagBigId?4:2);
+        if ((flag&0x0C)==0 && markInlined(sid)) {
+            String name = dict.getName(id);
+            if(name!=null) ret += 1+Utils.Utf8Length(name);
+        }
+        return ret;
+    }
+    
+    protected int serializeId(AsonOutput out, int id) throws IOException {
         int ret = 0;
         String name = null;
-        if ((flag&0x0C)==0 && !stringTableRev.isEmpty()) {
-            name = stringTableRev.get(id);
+        int sid = sessionId(id);
+        if ((flag&0x0C)==0 && markInlined(sid)) {
+            name = dict.getName(id);
         }
-        if(flagBigId) {
-            os.write(Utils.Int322Bytes(id|(name!=null?0x80000000:0)));
+        if(flagVarint) {
+            int v = (sid<<1)|(name!=null?1:0);
+            out.writeVarint(v);
+            ret += Utils.VarintSize(v);
+        } else if(flagBigId) {
+            out.writeInt32(sid|(name!=null?0x80000000:0));
             ret += 4;
         } else {
-            os.write(Utils.Int162Bytes(id|(name!=null?0x8000:0)));
+            out.writeInt16(sid|(name!=null?0x8000:0));
             ret += 2;
         }
         if(name!=null) {
-            byte d[] = name.getBytes("UTF-8");
-            os.write(d.length);
-            os.write(d);
-            ret += 1+d.length;
-            stringTableRev.remove(id);
+            int len = Utils.Utf8Length(name);
+            if(len>255) throw new RuntimeException("Key string length must be <= 255 bytes.");
+            out.writeByte(len);
+            out.writeUtf8(name);
+            ret += 1+len;
         }
         return ret;
     }
     
-    protected byte[] serializeStringTable(java.util.Map<String,Integer> nameDic) throws java.io.IOException {
-        ByteArrayOutputStream data = new ByteArrayOutputStream();
-        java.util.Iterator<String> ndk = nameDic.keySet().iterator();
-        while(ndk.hasNext()) {
-            String  k = ndk.next();
-            if(AsonValue.KEY_NEXT_IDVAL.equals(k)) continue;
-            Integer v = nameDic.get(k);
-            if(flagBigId) {
-                data.write(Utils.Int322Bytes(v));
+    protected int measureStringTable(Collection<Map.Entry<String,Integer>> table) {
+        int len = 0;
+        for(Map.Entry<String,Integer> e : table) {
+            len += (flagVarint?Utils.VarintSize(e.getValue()):(flagBigId?4:2))+1+Utils.Utf8Length(e.getKey());
+        }
+        return len;
+    }
+    
+    protected void serializeStringTable(AsonOutput out,Collection<Map.Entry<String,Integer>> table) throws java.io.IOException {
+        for(Map.Entry<String,Integer> e : table) {
+            if(flagVarint) {
+                out.writeVarint(e.getValue());
+            } else if(flagBigId) {
+                out.writeInt32(e.getValue());
             } else {
-                data.write(Utils.Int162Bytes(v));
+                out.writeInt16(e.getValue());
             }
-            byte b[] = k.getBytes("UTF-8");
-            if(b.length>255) throw new RuntimeException("Key string length must be <= 255 bytes.");
-            data.write(b.length);
-            data.write(b);
+            int len = Utils.Utf8Length(e.getKey());
+            if(len>255) throw new RuntimeException("Key string length must be <= 255 bytes.");
+            out.writeByte(len);
+            out.writeUtf8(e.getKey());
         }
-        return data.toByteArray();
     }
 
-    protected void writeBytesWithTypeLength(OutputStream os,byte type,byte data[]) throws java.io.IOException {
-        if(data.length>0xFFFF) { // 4 bytes
-            os.write(type+4);
-            os.write(Utils.Int322Bytes(data.length));
-        } else if(data.length>0xFF) { // 2 bytes
-            os.write(type+2);
-            os.write(Utils.Int162Bytes(data.length));
+    protected void writeTypeLength(AsonOutput out,byte type,int len) throws java.io.IOException {
+        if(flagVarint) {
+            out.writeByte(type+1);
+            out.writeVarint(len);
+        } else if(len>0xFFFF) { // 4 bytes
+            out.writeByte(type+4);
+            out.writeInt32(len);
+        } else if(len>0xFF) { // 2 bytes
+            out.writeByte(type+2);
+            out.writeInt16(len);
         } else { // 1 byte
-            os.write(type+1);
-            os.write(data.length);
+            out.writeByte(type+1);
+            out.writeByte(len);
         }
-        if(data.length>0) os.write(data);
     }
     
+    protected void writeLength(AsonOutput out,int sl,int len) throws IOException {
+        if(flagVarint) {
+            out.writeVarint(len);
+        } else if(sl==1) {
+            out.writeByte(len);
+        } else if(sl==2) {
+            out.writeInt16(len);
+        } else {
+            out.writeInt32(len);
+        }
+    }
+    
+    protected static int lengthSize(int len) {
+        return len>0xFFFF?4:(len>0xFF?2:1);
+    }
+    
+    /**
+     * bytes of a length or count field.
+     * @param len length
+     * @return varint size in varint mode, else lengthSize(len).
+     */
+    protected int lengthBytes(int len) {
+        return flagVarint?Utils.VarintSize(len):lengthSize(len);
+    }
+    
+    /**
+     * take the dictionary of v and reset the inline state, the inline state is kept in session mode.
+     * @param v value to be serialized
+     * @return largest key id, an upper bound in session mode.
+     */
     protected int prepareDictMap(AsonValue v) {
-        int max = 0;
-        Iterator<String> it = v.getDictMap().keySet().iterator();
-        while(it.hasNext()) {
-            String k = it.next();
-            if(AsonValue.KEY_NEXT_IDVAL.equals(k)) continue;
-            Integer id = v.getDictMap().get(k);
-            if(id>max) max=id;
-            stringTableRev.put(id, k);
-        }
-        return max;
+        dict = v.getDictMap();
+        if(dict==null) dict = new KeyDictionary();
+        if(session==null) {
+            inlined.clear();
+            inlinedLarge = null;
+            rankKeys(v);
+            return dict.getMaxId();
+        }
+        if(dict==session) {
+            idMap = null;
+            return session.getMaxId();
+        }
+        int n = Math.min(dict.getMaxId(), 0xFFFF)+1; // larger ids are mapped by name each time
+        if(idMap==null || idMap.length<n) {
+            idMap = new int[n];
+        } else {
+            java.util.Arrays.fill(idMap, 0, n, 0);
+        }
+        return session.getMaxId()+dict.size(); // new keys get ids above the current ones
+    }
+    
+    /**
+     * in varint mode, number the keys of v by frequency so the most frequent keys get the shortest ids.
+     * ids are written as they are when they have to match the reader's dictionary.
+     * @param v value to be serialized
+     */
+    private void rankKeys(AsonValue v) {
+        rank = null;
+        ranked = null;
+        int maxId = dict.getMaxId();
+        if(!flagVarint || (flag&Ason.FLAG_DICTNONE)!=0 || maxId>0xFFFFF) return;
+        int counts[] = new int[maxId+1];
+        countKeys(v, counts);
+        int n = 0;
+        for(int c : counts) if(c>0) ++n;
+        long order[] = new long[n]; // count descending, then id
+        n = 0;
+        for(int id=0;id<counts.length;++id) {
+            if(counts[id]>0) order[n++] = ((long)(Integer.MAX_VALUE-counts[id])<<32)|id;
+        }
+        java.util.Arrays.sort(order);
+        rank = new int[counts.length];
+        ranked = new ArrayList<>(n);
+        for(int i=0;i<n;++i) {
+            int id = (int)order[i];
+            String name = dict.getName(id);
+            if(name==null) throw new IllegalStateException("Key id "+id+" is not in dictionary.");
+            rank[id] = i+1;
+            ranked.add(new AbstractMap.SimpleImmutableEntry<>(name, i+1));
+        }
+    }
+    
+    private static void countKeys(AsonValue v,int counts[]) {
+        byte type = v.getType();
+        if(type==AsonValue.TYPE_OBJECT) {
+            AsonMap m = (AsonMap)v.getValue();
+            for(int i=0;i<m.slots();++i) {
+                AsonValue c = m.valueAt(i);
+                if(c==null) continue;
+                int id = m.keyAt(i);
+                if(id<=0 || id>=counts.length) throw new IllegalStateException("Key id "+id+" is not in dictionary.");
+                ++counts[id];
+                countKeys(c, counts);
+            }
+        } else if(type==AsonValue.TYPE_ARRAY && !(v.getValue() instanceof AsonValue.PackedArray)) {
+            for(AsonValue c : v) countKeys(c, counts);
+        }
+    }
+    
+    /**
+     * forget the names marked as written by current message, all of them outside session mode.
+     */
+    private void unmarkInlined() {
+        if(session==null) {
+            inlined.clear();
+            inlinedLarge = null;
+            return;
+        }
+        for(int i=0;i<markedCount;++i) {
+            int id = marked[i];
+            if(id<0x10000) {
+                inlined.clear(id);
+            } else {
+                inlinedLarge.remove(id);
+            }
+        }
+        markedCount = 0;
+    }
+    
+    /**
+     * map document key id to the id written.
+     * @param id document key id
+     * @return session id in session mode, frequency rank of ranked varint output, else id.
+     */
+    private int sessionId(int id) {
+        if(rank!=null) return rank[id];
+        if(session==null || idMap==null) return id;
+        if(id<idMap.length && idMap[id]!=0) return idMap[id];
+        String name = dict.getName(id);
+        if(name==null) throw new IllegalStateException("Key id "+id+" is not in dictionary.");
+        int sid = session.add(name);
+        if(id<idMap.length) idMap[id] = sid;
+        return sid;
+    }
+    
+    /**
+     * mark the name of id as written inline.
+     * @param id key id
+     * @return true if it was not written before
+     */
+    private boolean markInlined(int id) {
+        boolean ret;
+        if(id<0x10000) {
+            ret = !inlined.get(id);
+            if(ret) inlined.set(id);
+        } else {
+            if(inlinedLarge==null) inlinedLarge = new HashSet<>();
+            ret = inlinedLarge.add(id);
+        }
+        if(ret && session!=null) {
+            if(markedCount==marked.length) marked = java.util.Arrays.copyOf(marked, markedCount*2);
+            marked[markedCount++] = id;
+        }
+        return ret;
+    }
+
+    /**
+     * collects the index table of a message, see AsonParser.INDEX_MAGIC.
+     * entries of a container are kept apart until it ends, so the entries of each container are contiguous.
+     */
+    private static final class IndexBuilder {
+        private int entries[] = new int[3*256]; // key, offset in parent, directory
+        private int entryCount;
+        private int dirs[] = new int[2*64]; // first entry, entry count
+        private int dirCount;
+        private long starts[] = new long[16]; // offset of the open containers
+        private int open[] = new int[16]; // directory of the open containers
+        private boolean objects[] = new boolean[16];
+        private int pending[][] = new int[16][]; // entries of the open containers
+        private int pendingCount[] = new int[16];
+        private int depth;
+
+        void reset() {
+            entryCount = 0;
+            dirCount = 0;
+            depth = 0;
+        }
+
+        void begin(long offset, boolean object) {
+            if(2*dirCount==dirs.length) dirs = java.util.Arrays.copyOf(dirs, dirs.length*2);
+            int d = dirCount++;
+            if(depth>0) pending[depth-1][pendingCount[depth-1]*3-1] = d;
+            if(depth==open.length) {
+                int n = depth*2;
+                starts = java.util.Arrays.copyOf(starts, n);
+                open = java.util.Arrays.copyOf(open, n);
+                objects = java.util.Arrays.copyOf(objects, n);
+                pending = java.util.Arrays.copyOf(pending, n);
+                pendingCount = java.util.Arrays.copyOf(pendingCount, n);
+            }
+            starts[depth] = offset;
+            open[depth] = d;
+            objects[depth] = object;
+            pendingCount[depth] = 0;
+            if(pending[depth]==null) pending[depth] = new int[3*16];
+            ++depth;
+        }
+
+        void child(int key, long offset) {
+            int lv = depth-1;
+            long off = offset-starts[lv];
+            if(off>Integer.MAX_VALUE) throw new IllegalStateException("index offsets must be < 2G.");
+            int n = pendingCount[lv]++;
+            int p[] = pending[lv];
+            if(3*n==p.length) p = pending[lv] = java.util.Arrays.copyOf(p, p.length*2);
+            p[3*n] = key;
+            p[3*n+1] = (int)off;
+            p[3*n+2] = -1;
+        }
+
+        void end() {
+            int lv = --depth;
+            int n = pendingCount[lv];
+            int p[] = pending[lv];
+            if(objects[lv]) sortByKey(p, n);
+            int d = open[lv];
+            dirs[2*d] = entryCount;
+            dirs[2*d+1] = n;
+            if(3*(entryCount+n)>entries.length) entries = java.util.Arrays.copyOf(entries, Math.max(entries.length*2, 3*(entryCount+n)));
+            System.arraycopy(p, 0, entries, 3*entryCount, 3*n);
+            entryCount += n;
+        }
+
+        private static void sortByKey(int p[], int n) {
+            for(int i=1;i<n;++i) {
+                if(p[3*i]>=p[3*i-3]) continue;
+                long ks[] = new long[n]; // key and position, keys are not negative
+                for(int j=0;j<n;++j) ks[j] = ((long)p[3*j]<<32)|j;
+                java.util.Arrays.sort(ks);
+                int q[] = java.util.Arrays.copyOf(p, 3*n);
+                for(int j=0;j<n;++j) System.arraycopy(q, 3*(int)ks[j], p, 3*j, 3);
+                return;
+            }
+        }
+
+        void write(AsonOutput out) throws IOException {
+            out.writeInt32(12*entryCount+8*dirCount+12);
+            for(int i=0;i<3*entryCount;++i) out.writeInt32(entries[i]);
+            for(int i=0;i<2*dirCount;++i) out.writeInt32(dirs[i]);
+            out.writeInt32(entryCount);
+            out.writeInt32(dirCount);
+            out.writeInt32(AsonParser.INDEX_MAGIC);
+        }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.serializer;
+
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.ConcurrentKeyDictionary;
+import com.dizsoft.ason.io.ByteBufferOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encoder of ason messages over one long-lived connection, decoded by AsonSessionDecoder.
+ * Each message is framed as [length 4bytes][ason data]. Key names are written inline only the first
+ * time they appear on the connection, later messages carry key ids only.
+ * Messages must reach the decoder in the order they are encoded, a lost message breaks the session.
+ * Documents created on getDictMap() are written without id mapping.
+ * Not thread safe, use one encoder per connection.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonSessionEncoder {
+    private final ConcurrentKeyDictionary dictMap = new ConcurrentKeyDictionary();
+    private final AsonSerializer serializer;
+    private final ByteBufferOutput out = new ByteBufferOutput(1024, false);
+
+    /**
+     * @param flag output flag. see Ason.FLAG_XXX, dictionary flags are ignored.
+     */
+    public AsonSessionEncoder(int flag) {
+        serializer = new AsonSerializer(flag, dictMap);
+    }
+
+    /**
+     * get the session dictionary.
+     * @return session dictionary.
+     */
+    public AbstractKeyDictionary getDictMap() {
+        return dictMap;
+    }
+
+    /**
+     * encode one framed message.
+     * @param v value to be encoded
+     * @return frame between position and limit, the buffer is reused by the next call.
+     * @throws IOException 
+     */
+    public ByteBuffer encode(AsonValue v) throws IOException {
+        out.getBuffer().clear();
+        out.writeInt32(0);
+        serializer.serialize(v, out);
+        ByteBuffer ret = out.getBuffer();
+        ret.putInt(0, ret.position()-4);
+        ret.flip();
+        return ret;
+    }
+
+    /**
+     * encode one framed message and write it to channel.
+     * @param v value to be encoded
+     * @param channel channel to be write to, must be in blocking mode.
+     * @throws IOException 
+     */
+    public void write(AsonValue v, WritableByteChannel channel) throws IOException {
+        ByteBuffer b = encode(v);
+        while(b.hasRemaining()) channel.write(b);
+    }
+
+    /**
+     * encode one framed message and write it to outputstream.
+     * @param v value to be encoded
+     * @param os outputstream to be write to
+     * @throws IOException 
+     */
+    public void write(AsonValue v, OutputStream os) throws IOException {
+        ByteBuffer b = encode(v);
+        os.write(b.array(), b.arrayOffset()+b.position(), b.remaining());
+    }
+}
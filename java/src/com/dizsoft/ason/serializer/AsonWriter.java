@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.serializer;
+
+import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonValue;
+import com.dizsoft.ason.KeyDictionary;
+import com.dizsoft.ason.io.AsonOutput;
+import com.dizsoft.ason.io.StreamOutput;
+import com.dizsoft.ason.parser.AsonParser;
+import com.dizsoft.ason.utils.Utils;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer, emits stream mode ason (or json) directly without building an AsonValue tree.
+ * Key ids are allocated on the fly and written as inline dictionary entries at first use.
+ * <pre>
+ * w.beginObject().name("id").value(1).name("tags").beginArray().value("a").end().end();
+ * </pre>
+ * Each root value is a complete document with its own header and dictionary.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonWriter implements Closeable, Flushable {
+
+    private final AsonOutput out;
+    private final OutputStream os;
+    private final boolean json;
+    private final boolean flagBigId;
+    private final boolean flagVarint;
+
+    private final KeyDictionary dictMap = new KeyDictionary();
+
+    private byte stack[] = new byte[32]; // container types of open containers
+    private boolean first[] = new boolean[32]; // no element written yet in container, for json separators
+    private int depth;
+    private int pendingId = -1; // id of name() waiting for its value
+    private boolean documents;
+
+    /**
+     * @param os target stream, it is flushed by flush() and closed by close().
+     * @param flag Ason.FLAG_OUTPUTJSON for json, Ason.FLAG_FORCEBIGID for 32 bit ids, Ason.FLAG_VARINT for varint ids. other flags are ignored, output is always stream mode with inline dictionary.
+     */
+    public AsonWriter(OutputStream os, int flag) {
+        this(new StreamOutput(os), os, flag);
+    }
+
+    /**
+     * @param out target output, flush() flushes it.
+     * @param flag Ason.FLAG_OUTPUTJSON for json, Ason.FLAG_FORCEBIGID for 32 bit ids, Ason.FLAG_VARINT for varint ids. other flags are ignored, output is always stream mode with inline dictionary.
+     */
+    public AsonWriter(AsonOutput out, int flag) {
+        this(out, null, flag);
+    }
+
+    private AsonWriter(AsonOutput out, OutputStream os, int flag) {
+        this.out = out;
+        this.os = os;
+        json = (flag&Ason.FLAG_OUTPUTJSON)!=0;
+        flagVarint = !json && (flag&Ason.FLAG_VARINT)!=0;
+        flagBigId = !json && !flagVarint && (flag&Ason.FLAG_FORCEBIGID)!=0;
+    }
+
+    public AsonWriter beginObject() throws IOException {
+        beforeValue();
+        if(json) {
+            out.writeByte('{');
+        } else {
+            out.writeByte(AsonValue.TYPE_OBJECT);
+        }
+        push(AsonValue.TYPE_OBJECT);
+        return this;
+    }
+
+    public AsonWriter beginArray() throws IOException {
+        beforeValue();
+        if(json) {
+            out.writeByte('[');
+        } else {
+            out.writeByte(AsonValue.TYPE_ARRAY);
+        }
+        push(AsonValue.TYPE_ARRAY);
+        return this;
+    }
+
+    /**
+     * close the innermost open object or array.
+     * @return this
+     * @throws IOException
+     */
+    public AsonWriter end() throws IOException {
+        if(depth==0) throw new IllegalStateException("No open container.");
+        if(pendingId>=0) throw new IllegalStateException("Name without value.");
+        byte type = stack[--depth];
+        if(type==AsonValue.TYPE_OBJECT) {
+            if(json) {
+                out.writeByte('}');
+            } else if(flagVarint) {
+                out.writeByte(0);
+            } else if(flagBigId) {
+                out.writeInt32(0);
+            } else {
+                out.writeInt16(0);
+            }
+        } else {
+            out.writeByte(json?']':0);
+        }
+        return this;
+    }
+
+    /**
+     * write key name of next value, must be inside an object.
+     * @param name key name
+     * @return this
+     * @throws IOException
+     */
+    public AsonWriter name(String name) throws IOException {
+        if(depth==0 || stack[depth-1]!=AsonValue.TYPE_OBJECT) throw new IllegalStateException("Name outside of object.");
+        if(pendingId>=0) throw new IllegalStateException("Name without value.");
+        if(json) {
+            separator();
+            writeJsonString(name);
+            out.writeByte(':');
+            pendingId = 0;
+            return this;
+        }
+        int id = dictMap.getId(name);
+        if(id!=0) {
+            if(flagVarint) {
+                out.writeVarint(id<<1);
+            } else if(flagBigId) {
+                out.writeInt32(id);
+            } else {
+                out.writeInt16(id);
+            }
+        } else {
+            int len = Utils.Utf8Length(name);
+            if(len>255) throw new RuntimeException("Key string length must be <= 255 bytes.");
+            id = dictMap.add(name);
+            if(!flagVarint && id>(flagBigId?0x7FFFFFFF:0x7FFF)) throw new RuntimeException("Too many keys, use Ason.FLAG_FORCEBIGID.");
+            if(flagVarint) {
+                out.writeVarint((id<<1)|1);
+            } else if(flagBigId) {
+                out.writeInt32(id|0x80000000);
+            } else {
+                out.writeInt16(id|0x8000);
+            }
+            out.writeByte(len);
+            out.writeUtf8(name);
+        }
+        pendingId = id;
+        return this;
+    }
+
+    public AsonWriter value(long v) throws IOException {
+        beforeValue();
+        if(json) {
+            writeAscii(Long.toString(v));
+        } else if(v>=Byte.MIN_VALUE && v<=Byte.MAX_VALUE) {
+            out.writeByte(AsonValue.TYPE_INT8);
+            out.writeByte((int)v);
+        } else if(v>=Short.MIN_VALUE && v<=Short.MAX_VALUE) {
+            out.writeByte(AsonValue.TYPE_INT16);
+            out.writeInt16((int)v);
+        } else if(v>=Integer.MIN_VALUE && v<=Integer.MAX_VALUE) {
+            out.writeByte(AsonValue.TYPE_INT32);
+            out.writeInt32((int)v);
+        } else {
+            out.writeByte(AsonValue.TYPE_INT64);
+            out.writeInt64(v);
+        }
+        return this;
+    }
+
+    /**
+     * write a double value. NaN and infinity are written as null in json.
+     * @param v value
+     * @return this
+     * @throws IOException
+     */
+    public AsonWriter value(double v) throws IOException {
+        beforeValue();
+        if(json) {
+            writeAscii(Double.isNaN(v) || Double.isInfinite(v)?"null":Double.toString(v));
+        } else {
+            out.writeByte(AsonValue.TYPE_DOUBLE);
+            out.writeDouble(v);
+        }
+        return this;
+    }
+
+    /**
+     * write a float value. NaN and infinity are written as null in json.
+     * @param v value
+     * @return this
+     * @throws IOException
+     */
+    public AsonWriter value(float v) throws IOException {
+        beforeValue();
+        if(json) {
+            writeAscii(Float.isNaN(v) || Float.isInfinite(v)?"null":Float.toString(v));
+        } else {
+            out.writeByte(AsonValue.TYPE_FLOAT);
+            out.writeFloat(v);
+        }
+        return this;
+    }
+
+    public AsonWriter value(boolean v) throws IOException {
+        beforeValue();
+        if(json) {
+            writeAscii(v?"true":"false");
+        } else {
+            out.writeByte(v?AsonValue.TYPE_TRUE:AsonValue.TYPE_FALSE);
+        }
+        return this;
+    }
+
+    /**
+     * write a string value, null is written as null value.
+     * @param v value
+     * @return this
+     * @throws IOException
+     */
+    public AsonWriter value(String v) throws IOException {
+        if(v==null) return nullValue();
+        beforeValue();
+        if(json) {
+            writeJsonString(v);
+        } else {
+            out.writeByte(AsonValue.TYPE_STRING);
+            out.writeUtf8(v);
+            out.writeByte(0);
+        }
+        return this;
+    }
+
+    /**
+     * write a bytes value, it is written as base64 string in json. null is written as null value.
+     * @param v value
+     * @return this
+     * @throws IOException
+     */
+    public AsonWriter value(byte v[]) throws IOException {
+        if(v==null) return nullValue();
+        beforeValue();
+        if(json) {
+            out.writeByte('"');
+            out.write(java.util.Base64.getEncoder().encode(v));
+            out.writeByte('"');
+        } else {
+            out.writeByte(AsonValue.TYPE_BYTES);
+            int len = v.length;
+            int start = 0;
+            while(len>0) {
+                int tmp = len>255?255:len;
+                out.writeByte(tmp);
+                out.write(v, start, tmp);
+                start += tmp;
+                len -= tmp;
+            }
+            out.writeByte(0);
+        }
+        return this;
+    }
+
+    public AsonWriter nullValue() throws IOException {
+        beforeValue();
+        if(json) {
+            writeAscii("null");
+        } else {
+            out.writeByte(AsonValue.TYPE_NULL);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        if(os!=null) os.flush();
+    }
+
+    /**
+     * flush and close the stream given to constructor. open containers are not closed.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if(os!=null) os.close();
+    }
+
+    private void beforeValue() throws IOException {
+        if(depth==0) {
+            // new root document
+            if(json) {
+                if(documents) out.writeByte('\n');
+            } else {
+                out.writeInt32(0x80000000|(flagVarint?AsonParser.FLAG_VARINT:(flagBigId?0x40000000:0)));
+                dictMap.clear();
+            }
+            documents = true;
+        } else if(stack[depth-1]==AsonValue.TYPE_OBJECT) {
+            if(pendingId<0) throw new IllegalStateException("Value without name.");
+            pendingId = -1;
+        } else if(json) {
+            separator();
+        }
+    }
+
+    private void push(byte type) {
+        if(depth==stack.length) {
+            stack = java.util.Arrays.copyOf(stack, depth*2);
+            first = java.util.Arrays.copyOf(first, depth*2);
+        }
+        stack[depth] = type;
+        first[depth++] = true;
+    }
+
+    private void separator() throws IOException {
+        if(first[depth-1]) {
+            first[depth-1] = false;
+        } else {
+            out.writeByte(',');
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for(int i=0;i<s.length();++i) out.writeByte(s.charAt(i));
+    }
+
+    private void writeJsonString(String s) throws IOException {
+        out.writeByte('"');
+        int len = s.length();
+        int start = 0;
+        for(int i=0;i<len;++i) {
+            String esc = Utils.JsonEscape(s.charAt(i));
+            if(esc==null) continue;
+            out.writeUtf8(s, start, i);
+            start = i+1;
+            writeAscii(esc);
+        }
+        out.writeUtf8(s, start, len);
+        out.writeByte('"');
+    }
+}
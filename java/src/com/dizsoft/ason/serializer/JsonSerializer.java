@@ -25,57 +25,256 @@
  */
 package com.dizsoft.ason.serializer;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONArray;
-import com.alibaba.fastjson.JSONObject;
+import com.dizsoft.ason.AbstractKeyDictionary;
+import com.dizsoft.ason.AsonMap;
 import com.dizsoft.ason.AsonValue;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import com.dizsoft.ason.utils.Utils;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
 
 /**
- *
+ * Writes AsonValue tree as json text directly, through a char buffer into a StringBuilder or Writer.
+ * Pretty format indents with tabs. Bytes are written as base64 strings, NaN and infinity as null.
+ * Only '"', '\\', control characters and U+2028/U+2029 are escaped.
  * @author DizSoft Inc. jwang@dizsoft.com
  */
 public class JsonSerializer {
-    private Map<Integer,String> st;
+    private AbstractKeyDictionary st;
+    private boolean pretty;
+    private char buf[] = new char[8192];
+    private int len;
+    private StringBuilder sb;
+    private Writer writer;
 
     public String serialize(AsonValue ason,boolean prettyFormat) {
-        Map<String,Integer> tst = ason.getDictMap();
-        if(tst!=null) {
-            st = new HashMap<>();
-            Iterator<String> it = tst.keySet().iterator();
-            while(it.hasNext()) {
-                String k = it.next();
-                Integer v = tst.get(k);
-                st.put(v, k);
-            }
+        StringBuilder ret = new StringBuilder(256);
+        serialize(ason, ret, prettyFormat);
+        return ret.toString();
+    }
+
+    public void serialize(AsonValue ason,StringBuilder out,boolean prettyFormat) {
+        sb = out;
+        try {
+            write(ason, prettyFormat);
+        } catch(IOException e) {
+            throw new IllegalStateException(e); // StringBuilder does not throw
+        } finally {
+            sb = null;
         }
+    }
 
-        Object json = serializeValue(ason);
-        return JSON.toJSONString(json, prettyFormat);
+    public void serialize(AsonValue ason,Writer out,boolean prettyFormat) throws IOException {
+        writer = out;
+        try {
+            write(ason, prettyFormat);
+        } finally {
+            writer = null;
+        }
     }
-    
-    private Object serializeValue(AsonValue ason) {
-        if(ason.getType()==AsonValue.TYPE_ARRAY) {
-            JSONArray ret = new JSONArray(ason.size());
-            for(AsonValue v : ason) {
-                ret.add(serializeValue(v));
+
+    /**
+     * write json as UTF-8, os is flushed but not closed.
+     */
+    public void serialize(AsonValue ason,OutputStream os,boolean prettyFormat) throws IOException {
+        Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        serialize(ason, w, prettyFormat);
+        w.flush();
+    }
+
+    private void write(AsonValue ason,boolean prettyFormat) throws IOException {
+        st = ason.getDictMap();
+        pretty = prettyFormat;
+        len = 0;
+        serializeValue(ason, 0);
+        drain();
+    }
+
+    private void serializeValue(AsonValue ason,int depth) throws IOException {
+        switch(ason.getType()) {
+            case AsonValue.TYPE_OBJECT: {
+                AsonMap m = (AsonMap)ason.getValue();
+                append('{');
+                boolean first = true;
+                for(int i=0;i<m.slots();++i) {
+                    AsonValue v = m.valueAt(i);
+                    if(v==null) continue;
+                    if(!first) append(',');
+                    first = false;
+                    newLine(depth+1);
+                    int k = m.keyAt(i);
+                    String sk = st==null?null:st.getName(k);
+                    writeString(sk!=null?sk:Integer.toString(k));
+                    append(':');
+                    serializeValue(v, depth+1);
+                }
+                if(!first) newLine(depth);
+                append('}');
+                break;
             }
-            return ret;
-        } else if(ason.getType()==AsonValue.TYPE_OBJECT) {
-            JSONObject ret = new JSONObject(ason.size());
-            Iterator<Integer> it = ason.keyIterator();
-            while(it.hasNext()) {
-                Integer k = it.next();
-                String  sk = st==null?k.toString():st.get(k);
-                if(sk==null) sk = k.toString();
-                AsonValue v = ason.get(k);
-                ret.put(sk, serializeValue(v));
+            case AsonValue.TYPE_ARRAY: {
+                Object packed = ason.getPackedArray();
+                if(packed!=null) {
+                    writePacked(packed, depth);
+                    break;
+                }
+                List<?> l = (List<?>)ason.getValue();
+                append('[');
+                for(int i=0;i<l.size();++i) {
+                    if(i>0) append(',');
+                    newLine(depth+1);
+                    serializeValue((AsonValue)l.get(i), depth+1);
+                }
+                if(!l.isEmpty()) newLine(depth);
+                append(']');
+                break;
             }
-            return ret;
+            case AsonValue.TYPE_STRING:
+                writeString((String)ason.getValue());
+                break;
+            case AsonValue.TYPE_BYTES:
+                append('"');
+                append(Base64.getEncoder().encodeToString((byte[])ason.getValue()));
+                append('"');
+                break;
+            case AsonValue.TYPE_INT8:
+            case AsonValue.TYPE_INT16:
+            case AsonValue.TYPE_INT32:
+            case AsonValue.TYPE_INT64:
+                writeLong(ason.longValue());
+                break;
+            case AsonValue.TYPE_FLOAT: {
+                float f = (float)ason.doubleValue();
+                writeDecimal(Float.isNaN(f) || Float.isInfinite(f)?null:Float.toString(f));
+                break;
+            }
+            case AsonValue.TYPE_DOUBLE: {
+                double d = ason.doubleValue();
+                writeDecimal(Double.isNaN(d) || Double.isInfinite(d)?null:Double.toString(d));
+                break;
+            }
+            case AsonValue.TYPE_TRUE:
+                append("true");
+                break;
+            case AsonValue.TYPE_FALSE:
+                append("false");
+                break;
+            default:
+                append("null");
+        }
+    }
+
+    /**
+     * write the numbers of a packed array without creating element nodes.
+     */
+    private void writePacked(Object a,int depth) throws IOException {
+        int n = java.lang.reflect.Array.getLength(a);
+        append('[');
+        for(int i=0;i<n;++i) {
+            if(i>0) append(',');
+            newLine(depth+1);
+            if(a instanceof int[]) {
+                writeLong(((int[])a)[i]);
+            } else if(a instanceof long[]) {
+                writeLong(((long[])a)[i]);
+            } else if(a instanceof float[]) {
+                float f = ((float[])a)[i];
+                writeDecimal(Float.isNaN(f) || Float.isInfinite(f)?null:Float.toString(f));
+            } else {
+                double d = ((double[])a)[i];
+                writeDecimal(Double.isNaN(d) || Double.isInfinite(d)?null:Double.toString(d));
+            }
+        }
+        if(n>0) newLine(depth);
+        append(']');
+    }
+
+    private void newLine(int depth) throws IOException {
+        if(!pretty) return;
+        append('\n');
+        for(int i=0;i<depth;++i) append('\t');
+    }
+
+    /**
+     * shortest round trip text of Float/Double.toString, integral values without ".0".
+     */
+    private void writeDecimal(String s) throws IOException {
+        if(s==null) {
+            append("null");
+        } else if(s.endsWith(".0")) {
+            append(s, 0, s.length()-2);
+        } else {
+            append(s);
+        }
+    }
+
+    private void writeLong(long v) throws IOException {
+        if(v==Long.MIN_VALUE) {
+            append(Long.toString(v));
+            return;
+        }
+        if(len+20>buf.length) drain();
+        if(v<0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (char)('0'+v%10);
+            v /= 10;
+        } while(v!=0);
+        for(int i=start,j=len-1;i<j;++i,--j) {
+            char c = buf[i];
+            buf[i] = buf[j];
+            buf[j] = c;
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        append('"');
+        int n = s.length();
+        int start = 0;
+        for(int i=0;i<n;++i) {
+            String esc = Utils.JsonEscape(s.charAt(i));
+            if(esc==null) continue;
+            if(i>start) append(s, start, i);
+            start = i+1;
+            append(esc);
+        }
+        if(n>start) append(s, start, n);
+        append('"');
+    }
+
+    private void append(char c) throws IOException {
+        if(len==buf.length) drain();
+        buf[len++] = c;
+    }
+
+    private void append(String s) throws IOException {
+        append(s, 0, s.length());
+    }
+
+    private void append(String s,int start,int end) throws IOException {
+        while(start<end) {
+            if(len==buf.length) drain();
+            int n = Math.min(end-start, buf.length-len);
+            s.getChars(start, start+n, buf, len);
+            len += n;
+            start += n;
+        }
+    }
+
+    private void drain() throws IOException {
+        if(len==0) return;
+        if(sb!=null) {
+            sb.append(buf, 0, len);
         } else {
-            return ason.getValue();
+            writer.write(buf, 0, len);
         }
+        len = 0;
     }
 }
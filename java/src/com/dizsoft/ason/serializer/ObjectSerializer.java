@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.serializer;
+
+import com.dizsoft.ason.ObjectBinding;
+import com.dizsoft.ason.io.ByteBufferOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Writes java objects through AsonWriter, without AsonValue tree.
+ * the counterpart of ObjectParser, objects are written by the properties of their ObjectBinding.
+ * Collections and arrays are written as arrays, maps as objects with String.valueOf of their keys,
+ * enums by name and Character as one char string. null properties are written as null.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class ObjectSerializer {
+    private final int flag;
+
+    /**
+     * @param flag AsonWriter flag, Ason.FLAG_OUTPUTJSON, Ason.FLAG_FORCEBIGID or Ason.FLAG_VARINT.
+     */
+    public ObjectSerializer(int flag) {
+        this.flag = flag;
+    }
+
+    public byte[] serialize(Object obj) throws IOException {
+        ByteBufferOutput out = new ByteBufferOutput(1024, false);
+        AsonWriter w = new AsonWriter(out, flag);
+        write(w, obj);
+        w.flush();
+        return out.toByteArray();
+    }
+
+    public void serialize(Object obj, OutputStream os) throws IOException {
+        AsonWriter w = new AsonWriter(os, flag);
+        write(w, obj);
+        w.flush();
+    }
+
+    /**
+     * write obj as the next value of w.
+     * @param w writer
+     * @param obj value
+     * @throws IOException
+     */
+    public void write(AsonWriter w, Object obj) throws IOException {
+        if(obj==null) {
+            w.nullValue();
+        } else if(obj instanceof String) {
+            w.value((String)obj);
+        } else if(obj instanceof Number) {
+            if(obj instanceof Double || obj instanceof BigDecimal) {
+                w.value(((Number)obj).doubleValue());
+            } else if(obj instanceof Float) {
+                w.value(((Number)obj).floatValue());
+            } else {
+                w.value(((Number)obj).longValue());
+            }
+        } else if(obj instanceof Boolean) {
+            w.value((boolean)(Boolean)obj);
+        } else if(obj instanceof Character || obj instanceof Enum) {
+            w.value(obj instanceof Enum?((Enum<?>)obj).name():obj.toString());
+        } else if(obj instanceof byte[]) {
+            w.value((byte[])obj);
+        } else if(obj.getClass().isArray()) {
+            writeArray(w, obj);
+        } else if(obj instanceof Iterable) {
+            w.beginArray();
+            for(Object v : (Iterable<?>)obj) write(w, v);
+            w.end();
+        } else if(obj instanceof Map) {
+            w.beginObject();
+            for(Map.Entry<?,?> e : ((Map<?,?>)obj).entrySet()) {
+                w.name(String.valueOf(e.getKey()));
+                write(w, e.getValue());
+            }
+            w.end();
+        } else {
+            writeObject(w, obj, ObjectBinding.of(obj.getClass()));
+        }
+    }
+
+    private void writeObject(AsonWriter w, Object bean, ObjectBinding b) throws IOException {
+        w.beginObject();
+        for(ObjectBinding.Property p : b.getProperties()) {
+            w.name(p.getName());
+            switch(p.getKind()) {
+                case ObjectBinding.KIND_OBJECT: write(w, p.get(bean)); break;
+                case ObjectBinding.KIND_BOOLEAN: w.value(p.getBoolean(bean)); break;
+                case ObjectBinding.KIND_FLOAT: w.value((float)p.getDouble(bean)); break;
+                case ObjectBinding.KIND_DOUBLE: w.value(p.getDouble(bean)); break;
+                default: w.value(p.getLong(bean));
+            }
+        }
+        w.end();
+    }
+
+    private void writeArray(AsonWriter w, Object a) throws IOException {
+        w.beginArray();
+        if(a instanceof int[]) {
+            for(int v : (int[])a) w.value(v);
+        } else if(a instanceof long[]) {
+            for(long v : (long[])a) w.value(v);
+        } else if(a instanceof double[]) {
+            for(double v : (double[])a) w.value(v);
+        } else if(a instanceof Object[]) {
+            for(Object v : (Object[])a) write(w, v);
+        } else {
+            int n = Array.getLength(a);
+            for(int i=0;i<n;++i) write(w, Array.get(a, i));
+        }
+        w.end();
+    }
+}
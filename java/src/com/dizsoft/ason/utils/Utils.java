@@ -114,4 +114,65 @@ public class Utils {
         return Bytes2Int32(sour,offset)&0xFFFFFFFFL;
     }
 
+    /**
+     * 计算字符串的UTF-8编码字节数，不做实际编码
+     * @param s 要计算的字符串
+     * @return UTF-8编码后的字节数
+     */
+    public static int Utf8Length(String s) {
+        int len = s.length();
+        int ret = len;
+        for(int i=0;i<len;++i) {
+            char c = s.charAt(i);
+            if(c<0x80) continue;
+            if(c<0x800) {
+                ret += 1;
+            } else if(Character.isHighSurrogate(c) && i+1<len && Character.isLowSurrogate(s.charAt(i+1))) {
+                ret += 2;
+                ++i;
+            } else if(Character.isSurrogate(c)) {
+                // unpaired surrogate is encoded as '?'
+            } else {
+                ret += 2;
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * 计算无符号LEB128 varint编码后的字节数
+     * @param v 要编码的值，按无符号32位处理
+     * @return 1到5
+     */
+    public static int VarintSize(int v) {
+        return (v&~0x7F)==0?1:((v&~0x3FFF)==0?2:((v&~0x1FFFFF)==0?3:((v&~0xFFFFFFF)==0?4:5)));
+    }
+
+    private static final String JSON_ESCAPES[] = new String[0x20];
+    static {
+        for(int c=0;c<0x20;++c) JSON_ESCAPES[c] = String.format("\\u%04x", c);
+        JSON_ESCAPES['\b'] = "\\b";
+        JSON_ESCAPES['\f'] = "\\f";
+        JSON_ESCAPES['\n'] = "\\n";
+        JSON_ESCAPES['\r'] = "\\r";
+        JSON_ESCAPES['\t'] = "\\t";
+    }
+
+    /**
+     * 取得字符在JSON字符串中的转义序列，JsonSerializer和AsonWriter共用，保证两者输出相同
+     * 只转义'"'、'\\'、控制字符和U+2028/U+2029
+     * @param c 字符
+     * @return 转义序列，不需要转义时返回null
+     */
+    public static String JsonEscape(char c) {
+        if(c<0x20) return JSON_ESCAPES[c];
+        switch(c) {
+            case '"': return "\\\"";
+            case '\\': return "\\\\";
+            case '\u2028': return "\\u2028";
+            case '\u2029': return "\\u2029";
+        }
+        return null;
+    }
 }
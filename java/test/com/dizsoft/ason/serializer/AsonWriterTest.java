@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, DizSoft Inc. (jwang@dizsoft.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.dizsoft.ason.serializer;
+
+import com.dizsoft.ason.Ason;
+import com.dizsoft.ason.AsonValue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Round trips of byte arrays through AsonWriter.
+ * @author DizSoft Inc. jwang@dizsoft.com
+ */
+public class AsonWriterTest {
+
+    public static void main(String[] args) throws IOException {
+        emptyBytes();
+        chunkedBytes();
+        System.out.println("AsonWriterTest passed.");
+    }
+
+    /**
+     * an empty byte array is one 0 terminator, the value after it is read as the next token.
+     */
+    static void emptyBytes() throws IOException {
+        AsonValue v = roundTrip(new byte[0]);
+        check(v.size()==2, "size "+v.size());
+        check(((byte[])get(v, "b").getValue()).length==0, "b is not empty");
+        check(get(v, "c").longValue()==7, "c is "+get(v, "c").getValue());
+    }
+
+    /**
+     * lengths around the 255 byte chunk size.
+     */
+    static void chunkedBytes() throws IOException {
+        for(int n : new int[]{1, 254, 255, 256, 510, 511}) {
+            byte b[] = new byte[n];
+            for(int i=0;i<n;++i) b[i] = (byte)(i+1);
+            AsonValue v = roundTrip(b);
+            check(v.size()==2, n+": size "+v.size());
+            check(Arrays.equals((byte[])get(v, "b").getValue(), b), n+": b differs");
+            check(get(v, "c").longValue()==7, n+": c is "+get(v, "c").getValue());
+        }
+    }
+
+    private static AsonValue roundTrip(byte b[]) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AsonWriter w = Ason.CreateWriter(os, 0);
+        w.beginObject().name("b").value(b).name("c").value(7L).end();
+        w.flush();
+        return Ason.CreateFrom(os.toByteArray());
+    }
+
+    private static AsonValue get(AsonValue obj, String key) {
+        return obj.get(obj.getDictMap().getId(key));
+    }
+
+    private static void check(boolean ok, String message) {
+        if(!ok) throw new AssertionError(message);
+    }
+}